@@ -0,0 +1,33 @@
+package concurrent.examples;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loads the values of the keys missing in a {@link LRUCache}; see {@link LRUCache.Builder#loader(CacheLoader)}
+ */
+@FunctionalInterface
+public interface CacheLoader<Key, Value> {
+  /**
+   * @return the value of the key; null if there is none (which is then not cached)
+   */
+  Value load(Key key) throws Exception;
+
+  /**
+   * Loads the keys in one go; a loader backed by a store that can fetch in bulk should override this. The default
+   * loads them one by one.
+   *
+   * @return the values found; keys without a value may be left out
+   */
+  default Map<Key, Value> loadAll(Set<? extends Key> keys) throws Exception {
+    Map<Key, Value> values = new HashMap<Key, Value>();
+    for (Key key : keys) {
+      Value value = load(key);
+      if (value != null) {
+        values.put(key, value);
+      }
+    }
+    return values;
+  }
+}
@@ -0,0 +1,151 @@
+package concurrent.examples;
+
+/**
+ * A snapshot of the statistics of a {@link LRUCache}; see {@link LRUCache#stats()}. The counts only grow, so the
+ * activity over a period is the difference of two snapshots ({@link #minus(CacheStats)}).
+ */
+public final class CacheStats {
+  static final CacheStats EMPTY = new CacheStats(0, 0, 0, 0, 0, new long[RemovalCause.values().length], 0, 0);
+
+  private final long hitCount;
+  private final long missCount;
+  private final long loadSuccessCount;
+  private final long loadFailureCount;
+  private final long totalLoadTime;
+  /** by the ordinal of the cause */
+  private final long[] removalCounts;
+  private final long drainCount;
+  private final long totalDrainTime;
+
+  CacheStats(long hitCount, long missCount, long loadSuccessCount, long loadFailureCount, long totalLoadTime,
+      long[] removalCounts, long drainCount, long totalDrainTime) {
+    this.hitCount = hitCount;
+    this.missCount = missCount;
+    this.loadSuccessCount = loadSuccessCount;
+    this.loadFailureCount = loadFailureCount;
+    this.totalLoadTime = totalLoadTime;
+    this.removalCounts = removalCounts;
+    this.drainCount = drainCount;
+    this.totalDrainTime = totalDrainTime;
+  }
+
+  public long hitCount() {
+    return hitCount;
+  }
+
+  public long missCount() {
+    return missCount;
+  }
+
+  /**
+   * @return the share of the lookups that hit; 1 if there was none
+   */
+  public double hitRate() {
+    long requests = hitCount + missCount;
+    return requests == 0 ? 1.0 : (double) hitCount / requests;
+  }
+
+  /**
+   * @return the loads that found a value
+   */
+  public long loadSuccessCount() {
+    return loadSuccessCount;
+  }
+
+  /**
+   * @return the loads that failed or found no value
+   */
+  public long loadFailureCount() {
+    return loadFailureCount;
+  }
+
+  /**
+   * @return the nanoseconds spent loading
+   */
+  public long totalLoadTime() {
+    return totalLoadTime;
+  }
+
+  /**
+   * @return the mean nanoseconds of a load; a bulk load counts as one
+   */
+  public double averageLoadPenalty() {
+    long loads = loadSuccessCount + loadFailureCount;
+    return loads == 0 ? 0.0 : (double) totalLoadTime / loads;
+  }
+
+  /**
+   * @return the entries that left for the cause
+   */
+  public long removalCount(RemovalCause cause) {
+    return removalCounts[cause.ordinal()];
+  }
+
+  /**
+   * @return the entries evicted for the size or expired
+   */
+  public long evictionCount() {
+    return removalCount(RemovalCause.SIZE) + removalCount(RemovalCause.EXPIRED);
+  }
+
+  /**
+   * @return the times the read and write buffers were drained
+   */
+  public long drainCount() {
+    return drainCount;
+  }
+
+  /**
+   * @return the nanoseconds spent draining the buffers (and evicting) under the eviction lock
+   */
+  public long totalDrainTime() {
+    return totalDrainTime;
+  }
+
+  /**
+   * @return the mean nanoseconds of a drain
+   */
+  public double averageDrainTime() {
+    return drainCount == 0 ? 0.0 : (double) totalDrainTime / drainCount;
+  }
+
+  /**
+   * @return the sum of the statistics; such as of the segments of a cache (see {@link SegmentedLRUCache#stats()})
+   */
+  public CacheStats plus(CacheStats other) {
+    long[] removals = new long[removalCounts.length];
+    for (int i = 0; i < removals.length; i++) {
+      removals[i] = removalCounts[i] + other.removalCounts[i];
+    }
+    return new CacheStats(hitCount + other.hitCount, missCount + other.missCount,
+        loadSuccessCount + other.loadSuccessCount, loadFailureCount + other.loadFailureCount,
+        totalLoadTime + other.totalLoadTime, removals, drainCount + other.drainCount,
+        totalDrainTime + other.totalDrainTime);
+  }
+
+  /**
+   * @return the statistics since the given earlier snapshot
+   */
+  public CacheStats minus(CacheStats other) {
+    long[] removals = new long[removalCounts.length];
+    for (int i = 0; i < removals.length; i++) {
+      removals[i] = Math.max(0, removalCounts[i] - other.removalCounts[i]);
+    }
+    return new CacheStats(Math.max(0, hitCount - other.hitCount), Math.max(0, missCount - other.missCount),
+        Math.max(0, loadSuccessCount - other.loadSuccessCount), Math.max(0, loadFailureCount - other.loadFailureCount),
+        Math.max(0, totalLoadTime - other.totalLoadTime), removals, Math.max(0, drainCount - other.drainCount),
+        Math.max(0, totalDrainTime - other.totalDrainTime));
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("CacheStats{hits=").append(hitCount).append(", misses=").append(missCount)
+        .append(", loadSuccesses=").append(loadSuccessCount).append(", loadFailures=").append(loadFailureCount)
+        .append(", totalLoadTime=").append(totalLoadTime);
+    for (RemovalCause cause : RemovalCause.values()) {
+      sb.append(", ").append(cause.name().toLowerCase()).append('=').append(removalCount(cause));
+    }
+    return sb.append(", drains=").append(drainCount).append(", totalDrainTime=").append(totalDrainTime).append('}')
+        .toString();
+  }
+}
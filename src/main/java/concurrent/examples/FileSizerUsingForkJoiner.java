@@ -6,10 +6,13 @@ import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
 
 import concurrent.util.Forker;
-import concurrent.util.Joiner;
-public class FileSizerUsingForkJoiner implements Forker<File, Long>,
-        Joiner<Long, Long> {
-    Long totalSize = 0L;
+import concurrent.util.PartitionedJoiner;
+/**
+ * Sizes a directory; the sizes are summed up in per thread partials so that the
+ * files sized concurrently are also joined concurrently
+ */
+public class FileSizerUsingForkJoiner extends
+        PartitionedJoiner<Long, Long, Long> implements Forker<File, Long> {
 
     public void fork(File request,
             final CompletionService<Long> completionService)
@@ -26,15 +29,20 @@ public class FileSizerUsingForkJoiner implements Forker<File, Long>,
                     }
                 });
     }
-    public void clear() {
-        totalSize = 0L;
+
+    protected Long newPartial() {
+        return 0L;
+    }
+
+    protected Long accumulate(Long partial, Long result) {
+        return partial + result;
     }
 
-    public Long getResult() throws ExecutionException {
-        return totalSize;
+    protected Long combine(Long left, Long right) {
+        return left + right;
     }
 
-    public void join(Long result) throws ExecutionException {
-        totalSize += result;
+    protected Long finish(Long partial) {
+        return partial;
     }
 }
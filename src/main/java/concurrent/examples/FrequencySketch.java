@@ -0,0 +1,120 @@
+package concurrent.examples;
+
+/**
+ * A count-min sketch estimating the popularity of keys within a time window; used by {@link LRUCache} to decide
+ * whether a new key is worth admitting over the one it would evict (TinyLFU).
+ * <p>
+ * Each key maps to four 4-bit counters (so a frequency saturates at 15) packed sixteen to a long; the estimate is
+ * the least of the four. Once the number of increments reaches ten times the capacity, all the counters are halved
+ * (aging) so that keys once popular but no longer used fade away.
+ * <p>
+ * Not thread safe; the cache only touches it under its eviction lock.
+ */
+final class FrequencySketch<E> {
+  static final long[] SEED = {
+      0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+  static final long RESET_MASK = 0x7777777777777777L;
+  static final long ONE_MASK = 0x1111111111111111L;
+  static final int MAX_FREQUENCY = 15;
+  /** the most keys the table grows for */
+  static final int MAX_CAPACITY = 1 << 26;
+
+  private long[] table;
+  private int tableMask;
+  /** increments after which the counters are halved */
+  private int sampleSize;
+  /** increments since the last halving */
+  private int additions;
+
+  FrequencySketch(int capacity) {
+    int length = LRUCache.ceilingPowerOfTwo(Math.max(1, capacity));
+    table = new long[length];
+    tableMask = length - 1;
+    sampleSize = 10 * Math.max(1, capacity);
+  }
+
+  /**
+   * Grows the table for the given number of keys, dropping the counts; for a cache bounded by weight, whose number of
+   * keys is not known up front
+   */
+  void ensureCapacity(int capacity) {
+    capacity = Math.min(capacity, MAX_CAPACITY);
+    if (capacity <= table.length) {
+      return;
+    }
+    int length = LRUCache.ceilingPowerOfTwo(capacity);
+    table = new long[length];
+    tableMask = length - 1;
+    sampleSize = 10 * capacity;
+    additions = 0;
+  }
+
+  /**
+   * @return the bytes of the table
+   */
+  long bytes() {
+    return 8L * table.length;
+  }
+
+  /**
+   * @return the estimated number of times the key was seen; at most {@link #MAX_FREQUENCY}
+   */
+  int frequency(E e) {
+    int hash = spread(e.hashCode());
+    int start = (hash & 3) << 2;
+    int frequency = MAX_FREQUENCY;
+    for (int i = 0; i < 4; i++) {
+      int index = indexOf(hash, i);
+      int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+      frequency = Math.min(frequency, count);
+    }
+    return frequency;
+  }
+
+  /**
+   * Counts one more occurrence of the key; halves all the counters once the sample is full
+   */
+  void increment(E e) {
+    int hash = spread(e.hashCode());
+    int start = (hash & 3) << 2;
+    boolean added = false;
+    for (int i = 0; i < 4; i++) {
+      added |= incrementAt(indexOf(hash, i), start + i);
+    }
+    if (added && ++additions == sampleSize) {
+      reset();
+    }
+  }
+
+  private boolean incrementAt(int index, int counter) {
+    int offset = counter << 2;
+    long mask = 0xfL << offset;
+    if ((table[index] & mask) != mask) {
+      table[index] += 1L << offset;
+      return true;
+    }
+    return false;
+  }
+
+  private void reset() {
+    int odd = 0;
+    for (int i = 0; i < table.length; i++) {
+      odd += Long.bitCount(table[i] & ONE_MASK);
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    // the halving truncates the odd counters, each by a half; take that off before halving the count
+    additions = Math.max(0, additions - (odd >>> 2)) >>> 1;
+  }
+
+  private int indexOf(int hash, int i) {
+    long h = (hash + SEED[i]) * SEED[i];
+    h += h >>> 32;
+    return (int) h & tableMask;
+  }
+
+  private static int spread(int x) {
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    return (x >>> 16) ^ x;
+  }
+}
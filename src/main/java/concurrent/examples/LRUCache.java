@@ -2,84 +2,1264 @@ package concurrent.examples;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
+/**
+ * A concurrent LRU cache with O(1) get and put.
+ * <p>
+ * The entries are kept in a {@link ConcurrentHashMap} and the recency in access ordered doubly linked lists of the
+ * same nodes. The lists are only touched under the eviction lock and never by a reader: a get records the node in a
+ * (lossy) striped read buffer and a put queues its change in a write buffer; the buffers are drained in batches under
+ * the lock by a caller that finds a buffer past its threshold (with a tryLock, so it never waits).
+ * <p>
+ * There is no background thread: the maintenance (draining and eviction) piggybacks on the callers or, optionally,
+ * runs on a given {@link Executor}. A put that takes the cache beyond its size drains and evicts right away (waiting
+ * for the lock if need be); so the size is exceeded at most by the puts in progress. {@link #cleanUp()} may also be
+ * called to do the pending maintenance.
+ * <p>
+ * The {@link EvictionPolicy} decides what is evicted. With {@link EvictionPolicy#LRU} every new key is admitted and
+ * the least recently used one goes. With {@link EvictionPolicy#TINY_LFU} (Window TinyLFU) a new key is admitted to a
+ * small LRU window (1% of the size); a key falling off the window is let into the main space only if a count-min
+ * frequency sketch estimates it more popular than the one it would evict. The main space is a segmented LRU: a key
+ * read again moves from probation to the protected segment (80% of the main). So a scan or a burst of one-off keys
+ * churns through the window but does not push out the hot set. The sketch is updated while draining the buffers; a
+ * read remains allocation free.
+ * <p>
+ * An entry may also expire a given time after it was written and/or last read (see {@link Builder}). An expired entry
+ * is not returned right away; it is removed by the maintenance which advances a {@link TimerWheel} of the nodes by
+ * their expiry time. So there is no task scheduled per entry and {@link #size()} may count an expired entry till then.
+ * <p>
+ * Rather than by the number of entries, a cache may be bounded by the total weight of the entries as given by a
+ * {@link Weigher} (see {@link Builder#maximumWeight(long)}); weighing the values in bytes bounds it in memory. The
+ * segments then hold weights in place of counts and a candidate heavier than the victim may evict several victims
+ * to be let in. {@link #weightedSize()} and {@link #estimatedRetainedSize()} report the weight and the memory held.
+ * <p>
+ * Built with {@link Builder#recordStats()}, the cache counts its hits, misses, loads, removals by {@link RemovalCause}
+ * and the time spent draining, in striped counters that readers do not contend on (see {@link #stats()}). A
+ * {@link RemovalListener} is told of every entry leaving the cache (but by {@link #close()}) on an executor; so never
+ * on the hot path nor under the eviction lock (a notification the executor rejects is run by the caller once it is off
+ * the lock).
+ * <p>
+ * A miss may be loaded with {@link #get(Object, Function)}, or with {@link #getAsync(Object)} and
+ * {@link #getAll(Iterable)} given a {@link CacheLoader}. Only one load runs per key at a time: it is registered as a
+ * {@link CompletableFuture} which the other callers missing the same key wait on; and the misses of a getAll are
+ * loaded in one {@link CacheLoader#loadAll} call. With a refresh time, a read of an entry written longer ago than that
+ * reloads it in the background while the current value is still returned; so a refresh time shorter than the expiry
+ * time keeps a hot entry from ever expiring on its readers. A refresh writes back only if the entry was not written
+ * (or removed) while it loaded.
+ */
 public class LRUCache<Key, Value> implements Closeable {
-  private final int size;
-  private final Queue<Key> linkedQueue;
-  private final Map<Key, Value> hashMap;
-  private final ReentrantReadWriteLock rwLock;
-  private final ReadLock rLock;
-  private final WriteLock wLock;
-  private final ScheduledExecutorService es;
+  static final int NCPU = Runtime.getRuntime().availableProcessors();
+  /** number of read buffers; a power of two */
+  static final int READ_BUFFERS = ceilingPowerOfTwo(Math.min(NCPU, 16));
+  /** slots in a read buffer; a power of two */
+  static final int READ_BUFFER_SIZE = 32;
+  static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+  /** pending reads in a buffer that make a reader attempt a drain */
+  static final int READ_BUFFER_DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+  /** pending writes that make a writer attempt a drain */
+  static final int WRITE_BUFFER_DRAIN_THRESHOLD = 16;
+  /** drain status; a drain on the executor is scheduled only from IDLE */
+  static final int IDLE = 0, PROCESSING = 1;
+  /** the segment a node is linked in */
+  static final byte WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+  /**
+   * estimated bytes of heap an entry takes besides its key and value (with compressed references): the node, the
+   * node of the hash map and its share of the table
+   */
+  static final int ENTRY_OVERHEAD = 104;
+  /** the number of keys the sketch of a cache bounded by weight starts with */
+  static final int INITIAL_SKETCH_CAPACITY = 64;
+
+  /**
+   * What to evict once the cache is full
+   */
+  public enum EvictionPolicy {
+    /** admit every key and evict the least recently used */
+    LRU,
+    /** admit a key beyond a small window only if it is more frequently used than the one it evicts */
+    TINY_LFU
+  }
+
+  /** the maximum number of entries; or the maximum weight with a weigher */
+  private final long maximum;
+  /** null if bounded by the number of entries */
+  private final Weigher<? super Key, ? super Value> weigher;
+  /** the total weight of the entries in the map; null if bounded by the number of entries */
+  private final AtomicLong weightedSize;
+  private final ConcurrentHashMap<Key, Node<Key, Value>> hashMap;
+  private final ReentrantLock evictionLock;
+  /**
+   * sentinels of the access ordered segments; head.next is the least recently used. The window has all the nodes
+   * under LRU.
+   */
+  private final Node<Key, Value> windowHead;
+  private final Node<Key, Value> probationHead;
+  private final Node<Key, Value> protectedHead;
+  /** the maximum weight of each segment; the weight of an entry is 1 without a weigher */
+  private final long windowMax;
+  private final long mainMax;
+  private final long protectedMax;
+  /** null under LRU; guarded by evictionLock */
+  private final FrequencySketch<Key> sketch;
+  private final ReadBuffer<Key, Value>[] readBuffers;
+  private final Queue<Runnable> writeBuffer;
+  private final AtomicLong pendingWrites;
+  /** weight of the nodes linked in each segment; guarded by evictionLock */
+  private long windowWeight;
+  private long probationWeight;
+  private long protectedWeight;
+  /** runs the maintenance; null if the callers do */
+  private final Executor maintenanceExecutor;
+  private final AtomicInteger drainStatus;
+  private final Runnable drainTask;
+  /** time to live after a write and after a read; 0 if not expiring so */
+  private final long expireAfterWriteNanos;
+  private final long expireAfterAccessNanos;
+  /** null if not expiring; guarded by evictionLock */
+  private final TimerWheel<Key, Value> timerWheel;
+  /** time after a write that a read reloads the entry; 0 if not refreshing */
+  private final long refreshAfterWriteNanos;
+  /** whether the write and read times are kept */
+  private final boolean timed;
+  /** the loader of the builder (as a function); null if none */
+  private final Function<Key, Value> loader;
+  private final CacheLoader<Key, Value> cacheLoader;
+  private final Executor loaderExecutor;
+  /** called with every value removed or replaced; null if none */
+  private final BiConsumer<Key, Value> removalHook;
+  /** null if none */
+  private final RemovalListener<? super Key, ? super Value> removalListener;
+  private final Executor listenerExecutor;
+  /** the notifications the listener executor rejected; run by a caller off the eviction lock */
+  private final Queue<Runnable> rejectedNotifications;
+  /** null if not recording */
+  private final StatsCounter statsCounter;
+  /** the loads in flight by key */
+  private final ConcurrentHashMap<Key, CompletableFuture<Value>> loading;
 
   public LRUCache(final int size) {
-    this.size = size;
-    this.linkedQueue = new ConcurrentLinkedQueue<Key>();
-    this.hashMap = new ConcurrentHashMap<Key, Value>(size);
-    rwLock = new ReentrantReadWriteLock();
-    rLock = rwLock.readLock();
-    wLock = rwLock.writeLock();
-    es = Executors.newSingleThreadScheduledExecutor();
-    es.scheduleWithFixedDelay(() -> cleanup(), 0, 100, TimeUnit.MICROSECONDS);
+    this(size, EvictionPolicy.LRU, null);
+  }
+
+  public LRUCache(final int size, final Executor maintenanceExecutor) {
+    this(size, EvictionPolicy.LRU, maintenanceExecutor);
+  }
+
+  public LRUCache(final int size, final EvictionPolicy policy) {
+    this(size, policy, null);
+  }
+
+  /**
+   * @param size the maximum number of entries
+   * @param policy what to evict once full
+   * @param maintenanceExecutor runs the amortized maintenance off the callers (such as a common pool); null to have it
+   *          piggyback on the callers. A put beyond the size evicts on the caller in either case.
+   */
+  public LRUCache(final int size, final EvictionPolicy policy, final Executor maintenanceExecutor) {
+    this(new Builder<Key, Value>().size(size).evictionPolicy(policy).maintenanceExecutor(maintenanceExecutor));
+  }
+
+  private LRUCache(final Builder<Key, Value> builder) {
+    final EvictionPolicy policy = builder.policy;
+    if (policy == null) throw new NullPointerException();
+    weigher = builder.weigher;
+    if (weigher == null) {
+      if (builder.maximumWeight != 0) throw new IllegalStateException("maximum weight needs a weigher");
+      if (builder.size <= 0) throw new IllegalArgumentException("size must be positive");
+      maximum = builder.size;
+      weightedSize = null;
+      hashMap = new ConcurrentHashMap<Key, Node<Key, Value>>(builder.size);
+    } else {
+      if (builder.size != 0) throw new IllegalStateException("a weigher is bounded by the maximum weight, not the size");
+      if (builder.maximumWeight == 0) throw new IllegalStateException("weigher needs a maximum weight");
+      maximum = builder.maximumWeight;
+      weightedSize = new AtomicLong();
+      hashMap = new ConcurrentHashMap<Key, Node<Key, Value>>();
+    }
+    evictionLock = new ReentrantLock();
+    windowHead = sentinel();
+    probationHead = sentinel();
+    protectedHead = sentinel();
+    if (policy == EvictionPolicy.TINY_LFU) {
+      windowMax = Math.max(1, maximum / 100);
+      sketch = new FrequencySketch<Key>(weigher == null ? builder.size : INITIAL_SKETCH_CAPACITY);
+    } else {
+      windowMax = maximum;
+      sketch = null;
+    }
+    mainMax = maximum - windowMax;
+    protectedMax = mainMax - mainMax / 5;
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    ReadBuffer<Key, Value>[] buffers = new ReadBuffer[READ_BUFFERS];
+    readBuffers = buffers;
+    for (int i = 0; i < READ_BUFFERS; i++) {
+      readBuffers[i] = new ReadBuffer<Key, Value>();
+    }
+    writeBuffer = new ConcurrentLinkedQueue<Runnable>();
+    pendingWrites = new AtomicLong();
+    this.maintenanceExecutor = builder.maintenanceExecutor;
+    expireAfterWriteNanos = builder.expireAfterWriteNanos;
+    expireAfterAccessNanos = builder.expireAfterAccessNanos;
+    timerWheel = expires() ? new TimerWheel<Key, Value>(this, System.nanoTime()) : null;
+    refreshAfterWriteNanos = builder.refreshAfterWriteNanos;
+    timed = expires() || refreshAfterWriteNanos > 0;
+    cacheLoader = builder.loader;
+    if (refreshAfterWriteNanos > 0 && cacheLoader == null) throw new IllegalStateException("refresh needs a loader");
+    loader = cacheLoader == null ? null : k -> {
+      try {
+        return cacheLoader.load(k);
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new CompletionException(e);
+      }
+    };
+    loaderExecutor = builder.loaderExecutor;
+    loading = new ConcurrentHashMap<Key, CompletableFuture<Value>>();
+    removalHook = builder.removalHook;
+    removalListener = builder.removalListener;
+    listenerExecutor = builder.listenerExecutor;
+    rejectedNotifications = new ConcurrentLinkedQueue<Runnable>();
+    statsCounter = builder.recordStats ? new StatsCounter() : null;
+    drainStatus = new AtomicInteger(IDLE);
+    drainTask = () -> {
+      try {
+        cleanUp();
+      } finally {
+        drainStatus.set(IDLE);
+      }
+    };
+  }
+
+  /**
+   * @return a builder of a cache; for the expiry options
+   */
+  public static <Key, Value> Builder<Key, Value> builder() {
+    return new Builder<Key, Value>();
   }
 
   public Value get(final Key key) {
-    Value value = null;
-    rLock.lock();
+    Value value = getIfPresent(key);
+    if (statsCounter != null) {
+      if (value == null) {
+        statsCounter.recordMiss();
+      } else {
+        statsCounter.recordHit();
+      }
+    }
+    return value;
+  }
+
+  /**
+   * {@link #get(Object)} without counting a hit or miss
+   */
+  private Value getIfPresent(final Key key) {
+    Node<Key, Value> node = hashMap.get(key);
+    if (node == null) {
+      return null;
+    }
+    if (timed) {
+      long now = System.nanoTime();
+      if (hasExpired(node, now)) {
+        scheduleDrain();
+        return null;
+      }
+      if (expireAfterAccessNanos > 0) {
+        node.accessedAt = now;
+      }
+      if (refreshAfterWriteNanos > 0 && now - node.writtenAt >= refreshAfterWriteNanos) {
+        refresh(node);
+      }
+    }
+    afterRead(node);
+    return node.value;
+  }
+
+  /**
+   * Gets the value of the key; loading it on a miss. A caller missing a key being loaded waits for that load instead
+   * of loading it again.
+   *
+   * @param loader computes the value of a missing key on the calling thread; a null value is not cached
+   * @return the value; null if absent and loaded as null
+   * @throws RuntimeException as thrown by the loader (to every caller waiting on the load)
+   */
+  public Value get(final Key key, final Function<? super Key, ? extends Value> loader) {
+    if (loader == null) throw new NullPointerException();
+    Value value = get(key);
+    if (value != null) {
+      return value;
+    }
+    CompletableFuture<Value> future = new CompletableFuture<Value>();
+    CompletableFuture<Value> inFlight = loading.putIfAbsent(key, future);
+    if (inFlight != null) {
+      return join(inFlight);
+    }
+    // a load might have completed between the miss and the claim
+    value = getIfPresent(key);
+    if (value != null) {
+      loading.remove(key, future);
+      future.complete(value);
+      return value;
+    }
+    return load(key, future, loader, null, null);
+  }
+
+  /**
+   * Gets the value of the key; loading it on the loader executor with the {@link CacheLoader} on a miss. Concurrent
+   * misses of the key share the one load.
+   *
+   * @return a future of the value; completed already on a hit
+   * @throws IllegalStateException if built without a loader
+   */
+  public CompletableFuture<Value> getAsync(final Key key) {
+    if (loader == null) throw new IllegalStateException("no loader");
+    Value value = get(key);
+    if (value != null) {
+      return CompletableFuture.completedFuture(value);
+    }
+    CompletableFuture<Value> future = new CompletableFuture<Value>();
+    CompletableFuture<Value> inFlight = loading.putIfAbsent(key, future);
+    if (inFlight != null) {
+      return inFlight;
+    }
+    loadAsync(key, future, null, null);
+    return future;
+  }
+
+  /**
+   * Gets the values of the keys; the misses not already being loaded are loaded with one
+   * {@link CacheLoader#loadAll} call on the calling thread and the rest are waited for.
+   *
+   * @return the keys with a value in the order of the keys
+   * @throws IllegalStateException if built without a loader
+   */
+  public Map<Key, Value> getAll(final Iterable<? extends Key> keys) {
+    if (loader == null) throw new IllegalStateException("no loader");
+    // a miss is kept as null till loaded
+    Map<Key, Value> result = new LinkedHashMap<Key, Value>();
+    Map<Key, CompletableFuture<Value>> claimed = new LinkedHashMap<Key, CompletableFuture<Value>>();
+    Map<Key, CompletableFuture<Value>> inFlight = new LinkedHashMap<Key, CompletableFuture<Value>>();
+    for (Key key : keys) {
+      if (result.containsKey(key)) {
+        continue;
+      }
+      Value value = get(key);
+      result.put(key, value);
+      if (value != null) {
+        continue;
+      }
+      CompletableFuture<Value> future = new CompletableFuture<Value>();
+      CompletableFuture<Value> prior = loading.putIfAbsent(key, future);
+      if (prior == null) {
+        claimed.put(key, future);
+      } else {
+        inFlight.put(key, prior);
+      }
+    }
+    if (!claimed.isEmpty()) {
+      loadAll(claimed);
+    }
+    for (Map.Entry<Key, CompletableFuture<Value>> entry : claimed.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().getNow(null));
+    }
+    for (Map.Entry<Key, CompletableFuture<Value>> entry : inFlight.entrySet()) {
+      result.put(entry.getKey(), join(entry.getValue()));
+    }
+    result.values().removeIf(value -> value == null);
+    return result;
+  }
+
+  public void put(final Key key, final Value value) {
+    if (key == null || value == null) throw new NullPointerException();
+    put(key, value, null, null);
+  }
+
+  /**
+   * Puts the value; or, given the node a refresh was scheduled for and its value then, only if the key is still
+   * mapped to that node and value. So a refresh does not clobber a write made while it was loading.
+   *
+   * @return false if the refresh was not written back
+   */
+  private boolean put(Key key, Value value, Node<Key, Value> refreshed, Value expected) {
+    Node<Key, Value> node = new Node<Key, Value>(key, value, weigh(key, value));
+    if (timed) {
+      node.writtenAt = node.accessedAt = System.nanoTime();
+    }
+    for (;;) {
+      Node<Key, Value> prior = refreshed == null ? hashMap.putIfAbsent(key, node) : hashMap.get(key);
+      if (refreshed != null && prior != refreshed) {
+        return false; // removed or replaced meanwhile
+      }
+      if (prior == null) {
+        if (weightedSize != null) {
+          weightedSize.addAndGet(node.weight);
+        }
+        afterWrite(() -> link(node));
+        break;
+      }
+      boolean expired = expires() && hasExpired(prior, node.writtenAt);
+      if (!expired && prior.weight == node.weight) {
+        Value old = refreshed == null ? prior.swap(value) : prior.swap(expected, value);
+        if (old == null) {
+          if (refreshed != null) {
+            return false; // written or retired meanwhile
+          }
+          continue; // retired (removed or evicted) meanwhile; put afresh
+        }
+        removed(key, old, RemovalCause.REPLACED);
+        // the timer wheel finds it not expired and puts it back for the new time
+        prior.writtenAt = prior.accessedAt = node.writtenAt;
+        afterRead(prior);
+        return true;
+      }
+      // otherwise a new node rather than a new value in the old one; so that the weight of a node never changes and
+      // the expiry of the old one cannot drop the new value
+      if (hashMap.replace(key, prior, node)) {
+        if (weightedSize != null) {
+          weightedSize.addAndGet(node.weight - prior.weight);
+        }
+        Value old = prior.retire();
+        // a put may have swapped its value in before the node was off the map
+        boolean overwritten = refreshed != null && old != expected;
+        if (!overwritten) {
+          removed(key, old, expired ? RemovalCause.EXPIRED : RemovalCause.REPLACED);
+        }
+        afterWrite(() -> replace(prior, node, expired));
+        if (overwritten) {
+          put(key, old); // the later write wins
+          return false;
+        }
+        break;
+      }
+      if (refreshed != null) {
+        return false;
+      }
+    }
+    if (weightedSize == null ? hashMap.size() > maximum : weightedSize.get() > maximum) {
+      cleanUp(); // strictly bounded; do not wait for the amortized drain
+    }
+    return true;
+  }
+
+  /**
+   * Reloads the key of the node in the background unless a load of it is in flight; the value loaded is written back
+   * only if the node still has the value it has now
+   */
+  private void refresh(Node<Key, Value> node) {
+    Value expected = node.value;
+    if (expected == null || loading.containsKey(node.key)) {
+      return;
+    }
+    CompletableFuture<Value> future = new CompletableFuture<Value>();
+    if (loading.putIfAbsent(node.key, future) == null) {
+      loadAsync(node.key, future, node, expected);
+    }
+  }
+
+  private void loadAsync(final Key key, final CompletableFuture<Value> future, final Node<Key, Value> refreshed,
+      final Value expected) {
     try {
-      if ((value = hashMap.get(key)) != null) {
-        wLock.lock();
+      loaderExecutor.execute(() -> {
         try {
-          linkedQueue.remove(key);
-          linkedQueue.add(key);
-        } finally {
-          wLock.unlock();
+          load(key, future, loader, refreshed, expected);
+        } catch (RuntimeException | Error e) {
+          // surfaced through the future
         }
+      });
+    } catch (RuntimeException e) {
+      loading.remove(key, future);
+      future.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Loads the key for the future claimed in {@link #loading}; the value is put before the waiters are let go. A
+   * refresh (of the given node and its value then) writes back only if neither changed meanwhile.
+   */
+  private Value load(Key key, CompletableFuture<Value> future, Function<? super Key, ? extends Value> loader,
+      Node<Key, Value> refreshed, Value expected) {
+    long start = statsCounter == null ? 0L : System.nanoTime();
+    boolean found = false;
+    try {
+      Value value = loader.apply(key);
+      found = value != null;
+      if (value != null) {
+        put(key, value, refreshed, expected);
+      } else if (refreshed != null && refreshed.value == expected && hashMap.remove(key, refreshed)) {
+        removed(refreshed, expected); // none any more; not to keep a stale one being refreshed
       }
+      future.complete(value);
+      return value;
+    } catch (RuntimeException | Error e) {
+      future.completeExceptionally(e);
+      throw e;
     } finally {
-      rLock.unlock();
+      loading.remove(key, future);
+      if (statsCounter != null) {
+        statsCounter.recordLoad(found, System.nanoTime() - start);
+      }
     }
-    return value;
   }
 
-  public void put(final Key key, final Value value) {
-    wLock.lock();
+  /**
+   * Loads the keys of the futures claimed in {@link #loading} in one call
+   */
+  private void loadAll(Map<Key, CompletableFuture<Value>> claimed) {
+    long start = statsCounter == null ? 0L : System.nanoTime();
+    boolean found = false;
     try {
-      boolean removed=linkedQueue.removeIf(k -> hashMap.containsKey(key));
-      linkedQueue.add(key);
-      Value oldValue = removed ? hashMap.replace(key, value) : hashMap.put(key, value);
+      Map<Key, Value> values = cacheLoader.loadAll(Collections.unmodifiableSet(claimed.keySet()));
+      found = true;
+      for (Map.Entry<Key, CompletableFuture<Value>> entry : claimed.entrySet()) {
+        Value value = values.get(entry.getKey());
+        if (value != null) {
+          put(entry.getKey(), value);
+        }
+        entry.getValue().complete(value);
+      }
+    } catch (Exception e) {
+      RuntimeException failure = e instanceof RuntimeException ? (RuntimeException) e : new CompletionException(e);
+      for (CompletableFuture<Value> future : claimed.values()) {
+        future.completeExceptionally(failure);
+      }
+      throw failure;
+    } catch (Error e) {
+      for (CompletableFuture<Value> future : claimed.values()) {
+        future.completeExceptionally(e);
+      }
+      throw e;
     } finally {
-      wLock.unlock();
+      for (Map.Entry<Key, CompletableFuture<Value>> entry : claimed.entrySet()) {
+        loading.remove(entry.getKey(), entry.getValue());
+      }
+      if (statsCounter != null) {
+        statsCounter.recordLoad(found, System.nanoTime() - start);
+      }
+    }
+  }
+
+  /**
+   * Waits for a load; rethrowing its failure as is if unchecked
+   */
+  private static <Value> Value join(CompletableFuture<Value> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw e;
+    }
+  }
+
+  /**
+   * Removes the key
+   *
+   * @return the value removed; null if absent (or expired)
+   */
+  public Value remove(final Key key) {
+    Node<Key, Value> node = hashMap.remove(key);
+    if (node == null) {
+      return null;
     }
+    return removed(node, null);
+  }
+
+  /**
+   * Retires a node taken off the map by a removal. Given the value a refresh expected, a value put in the node
+   * meanwhile is put back as the later write.
+   *
+   * @return the value removed; null if expired (or put back)
+   */
+  private Value removed(Node<Key, Value> node, Value expected) {
+    if (weightedSize != null) {
+      weightedSize.addAndGet(-node.weight);
+    }
+    boolean expired = expires() && hasExpired(node, System.nanoTime());
+    Value value = node.retire();
+    boolean overwritten = expected != null && value != expected;
+    if (!overwritten) {
+      removed(node.key, value, expired ? RemovalCause.EXPIRED : RemovalCause.EXPLICIT);
+    }
+    afterWrite(() -> {
+      unlink(node);
+      if (timerWheel != null) {
+        timerWheel.deschedule(node);
+      }
+    });
+    if (overwritten) {
+      put(node.key, value);
+      return null;
+    }
+    return expired ? null : value;
+  }
+
+  /**
+   * @return number of entries; may exceed the size only by the puts in progress
+   */
+  public int size() {
+    return hashMap.size();
+  }
+
+  /**
+   * @return a snapshot of the statistics; all zero unless built with {@link Builder#recordStats()}
+   */
+  public CacheStats stats() {
+    return statsCounter == null ? CacheStats.EMPTY : statsCounter.snapshot();
+  }
+
+  /**
+   * @return the total weight of the entries; the number of entries without a weigher
+   */
+  public long weightedSize() {
+    return weightedSize == null ? hashMap.size() : weightedSize.get();
+  }
+
+  /**
+   * An estimate of the heap held by the cache: the overhead of the entries and the frequency sketch, plus the weight
+   * of the entries taken as their bytes. So it covers the keys and values only with a weigher of their bytes.
+   *
+   * @return the estimated bytes
+   */
+  public long estimatedRetainedSize() {
+    long bytes = (long) hashMap.size() * ENTRY_OVERHEAD;
+    if (weightedSize != null) {
+      bytes += weightedSize.get();
+    }
+    if (sketch != null) {
+      bytes += sketch.bytes();
+    }
+    return bytes;
   }
 
   @Override
   public void close() throws IOException {
-    es.shutdown();
-    linkedQueue.clear();
-    hashMap.clear();
+    evictionLock.lock();
+    try {
+      hashMap.clear();
+      writeBuffer.clear();
+      windowHead.prev = windowHead.next = windowHead;
+      probationHead.prev = probationHead.next = probationHead;
+      protectedHead.prev = protectedHead.next = protectedHead;
+      windowWeight = probationWeight = protectedWeight = 0;
+      if (weightedSize != null) {
+        weightedSize.set(0);
+      }
+      if (timerWheel != null) {
+        timerWheel.clear();
+      }
+    } finally {
+      unlockEviction();
+    }
+  }
+
+  /**
+   * The maintenance hook; drains the buffers, removes the expired entries and evicts the least recently used entries
+   * beyond the size. Callers may
+   * invoke this at will (say, when idle) though it is not needed for correctness.
+   */
+  public void cleanUp() {
+    evictionLock.lock();
+    try {
+      drainBuffers();
+    } finally {
+      unlockEviction();
+    }
+  }
+
+  private void afterRead(Node<Key, Value> node) {
+    ReadBuffer<Key, Value> buffer = readBuffers[(int) Thread.currentThread().getId() & (READ_BUFFERS - 1)];
+    long pending = buffer.record(node);
+    if (pending >= READ_BUFFER_DRAIN_THRESHOLD) {
+      scheduleDrain();
+    }
+  }
+
+  private void afterWrite(Runnable task) {
+    writeBuffer.add(task);
+    if (pendingWrites.incrementAndGet() >= WRITE_BUFFER_DRAIN_THRESHOLD) {
+      scheduleDrain();
+    }
+  }
+
+  private void scheduleDrain() {
+    if (maintenanceExecutor == null) {
+      tryToDrainBuffers();
+    } else if (drainStatus.get() == IDLE && drainStatus.compareAndSet(IDLE, PROCESSING)) {
+      try {
+        maintenanceExecutor.execute(drainTask);
+      } catch (RuntimeException e) {
+        drainStatus.set(IDLE);
+        tryToDrainBuffers();
+      }
+    }
+  }
+
+  private void tryToDrainBuffers() {
+    if (evictionLock.tryLock()) {
+      try {
+        drainBuffers();
+      } finally {
+        unlockEviction();
+      }
+    }
   }
 
-  private void cleanup() {
-    wLock.lock();
+  /** guarded by evictionLock */
+  private void drainBuffers() {
+    long start = statsCounter == null ? 0L : System.nanoTime();
+    // writes first so that the reads apply to linked nodes
+    Runnable task;
+    while ((task = writeBuffer.poll()) != null) {
+      pendingWrites.decrementAndGet();
+      task.run();
+    }
+    for (ReadBuffer<Key, Value> buffer : readBuffers) {
+      buffer.drainTo(this);
+    }
+    if (timerWheel != null) {
+      timerWheel.advance(System.nanoTime());
+    }
+    evict();
+    if (statsCounter != null) {
+      statsCounter.recordDrain(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Moves the overflow of the window to the main space; a candidate is let in if there is room or (under TinyLFU) if
+   * it is more popular than each victim, the least recently used of the main, that it takes evicting to make room.
+   * guarded by evictionLock
+   */
+  private void evict() {
+    if (sketch != null && weigher != null) {
+      sketch.ensureCapacity(hashMap.size());
+    }
+    while (windowWeight > windowMax) {
+      Node<Key, Value> candidate = windowHead.next;
+      unlink(candidate);
+      if (sketch == null || candidate.weight > mainMax) {
+        discard(candidate, RemovalCause.SIZE); // no main space under LRU, or too heavy for it
+        continue;
+      }
+      while (candidate != null && probationWeight + protectedWeight + candidate.weight > mainMax) {
+        Node<Key, Value> victim = probationHead.next != probationHead ? probationHead.next : protectedHead.next;
+        if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+          discard(victim, RemovalCause.SIZE);
+        } else {
+          discard(candidate, RemovalCause.SIZE);
+          candidate = null;
+        }
+      }
+      if (candidate != null) {
+        append(probationHead, candidate, PROBATION);
+      }
+    }
+    // an entry replaced by a heavier one may take the main beyond its weight
+    while (probationWeight + protectedWeight > mainMax) {
+      discard(probationHead.next != probationHead ? probationHead.next : protectedHead.next, RemovalCause.SIZE);
+    }
+  }
+
+  /** guarded by evictionLock */
+  private void discard(Node<Key, Value> node, RemovalCause cause) {
+    unlink(node);
+    if (timerWheel != null) {
+      timerWheel.deschedule(node);
+    }
+    if (hashMap.remove(node.key, node)) {
+      if (weightedSize != null) {
+        weightedSize.addAndGet(-node.weight);
+      }
+      removed(node.key, node.retire(), cause);
+    }
+  }
+
+  /**
+   * Evicts the entry next in line to be evicted even if within the size; for a store that has run out of room for a
+   * new value.
+   *
+   * @return false if there is no entry to evict
+   */
+  boolean evictOne() {
+    evictionLock.lock();
     try {
-      Key key;
-      while (linkedQueue.size() >= size && (key = linkedQueue.poll()) != null) {
-        hashMap.remove(key);
+      drainBuffers();
+      Node<Key, Value> victim = probationHead.next != probationHead ? probationHead.next
+          : protectedHead.next != protectedHead ? protectedHead.next : windowHead.next;
+      if (victim == windowHead) {
+        return false;
       }
+      discard(victim, RemovalCause.SIZE);
+      return true;
     } finally {
-      wLock.unlock();
+      unlockEviction();
+    }
+  }
+
+  /**
+   * @return the weight of the entry; 1 without a weigher
+   */
+  private int weigh(Key key, Value value) {
+    if (weigher == null) {
+      return 1;
+    }
+    int weight = weigher.weigh(key, value);
+    if (weight < 0) throw new IllegalArgumentException("negative weight");
+    return weight;
+  }
+
+  /**
+   * Counts the removal (by any means but {@link #close()}) or replacement of a value, hands it to the removal hook
+   * and tells the removal listener on its executor; or, if rejected, on the caller once off the eviction lock
+   */
+  private void removed(Key key, Value value, RemovalCause cause) {
+    if (value == null) {
+      return;
+    }
+    if (statsCounter != null) {
+      statsCounter.recordRemoval(cause);
+    }
+    if (removalHook != null) {
+      removalHook.accept(key, value);
+    }
+    if (removalListener != null) {
+      Runnable notification = () -> removalListener.onRemoval(key, value, cause);
+      try {
+        listenerExecutor.execute(notification);
+      } catch (RuntimeException e) {
+        rejectedNotifications.add(notification); // told late rather than never
+        runRejectedNotifications();
+      }
+    }
+  }
+
+  private void unlockEviction() {
+    evictionLock.unlock();
+    if (!rejectedNotifications.isEmpty()) {
+      runRejectedNotifications();
+    }
+  }
+
+  /**
+   * Tells the listener of the removals its executor rejected; on the caller but never under the eviction lock (where
+   * a slow listener would stall the maintenance)
+   */
+  private void runRejectedNotifications() {
+    if (evictionLock.isHeldByCurrentThread()) {
+      return; // left for the unlock
+    }
+    Runnable notification;
+    while ((notification = rejectedNotifications.poll()) != null) {
+      notification.run();
+    }
+  }
+
+  /**
+   * Removes a node the timer wheel found expired. guarded by evictionLock
+   */
+  void expire(Node<Key, Value> node) {
+    discard(node, RemovalCause.EXPIRED);
+  }
+
+  private boolean expires() {
+    return expireAfterWriteNanos > 0 || expireAfterAccessNanos > 0;
+  }
+
+  /**
+   * @return the time the node expires at; the earlier of the write and access expiry
+   */
+  long expiresAt(Node<Key, Value> node) {
+    long writeExpiry = expireAfterWriteNanos > 0 ? node.writtenAt + expireAfterWriteNanos : Long.MAX_VALUE;
+    long accessExpiry = expireAfterAccessNanos > 0 ? node.accessedAt + expireAfterAccessNanos : Long.MAX_VALUE;
+    return Math.min(writeExpiry, accessExpiry);
+  }
+
+  boolean hasExpired(Node<Key, Value> node, long now) {
+    return (expireAfterWriteNanos > 0 && now - node.writtenAt >= expireAfterWriteNanos)
+        || (expireAfterAccessNanos > 0 && now - node.accessedAt >= expireAfterAccessNanos);
+  }
+
+  /** guarded by evictionLock */
+  private void link(Node<Key, Value> node) {
+    // a node removed before its add was applied stays out
+    if (node.next != null || hashMap.get(node.key) != node) {
+      return;
+    }
+    if (sketch != null) {
+      sketch.increment(node.key);
+    }
+    append(windowHead, node, WINDOW);
+    if (timerWheel != null) {
+      timerWheel.schedule(node);
+    }
+  }
+
+  /**
+   * Links the node put in place of the prior one (of another weight) where the prior was, as a read of it; an expired
+   * prior is not revived but unlinked and the node linked as new. guarded by evictionLock
+   */
+  private void replace(Node<Key, Value> prior, Node<Key, Value> node, boolean expired) {
+    if (timerWheel != null) {
+      timerWheel.deschedule(prior);
+    }
+    if (expired || prior.next == null) {
+      unlink(prior);
+      link(node);
+      return;
+    }
+    if (node.next != null || hashMap.get(node.key) != node) {
+      unlink(prior); // removed or replaced again before this was applied
+      return;
+    }
+    node.prev = prior.prev;
+    node.next = prior.next;
+    node.prev.next = node;
+    node.next.prev = node;
+    node.queue = prior.queue;
+    prior.prev = prior.next = null;
+    addWeight(node.queue, node.weight - prior.weight);
+    if (timerWheel != null) {
+      timerWheel.schedule(node);
+    }
+    onAccess(node);
+  }
+
+  /** guarded by evictionLock */
+  private void unlink(Node<Key, Value> node) {
+    if (node.next == null) {
+      return;
+    }
+    node.prev.next = node.next;
+    node.next.prev = node.prev;
+    node.prev = node.next = null;
+    addWeight(node.queue, -node.weight);
+  }
+
+  /** guarded by evictionLock */
+  private void append(Node<Key, Value> head, Node<Key, Value> node, byte queue) {
+    Node<Key, Value> last = head.prev;
+    node.prev = last;
+    node.next = head;
+    last.next = node;
+    head.prev = node;
+    node.queue = queue;
+    addWeight(queue, node.weight);
+  }
+
+  /** guarded by evictionLock */
+  private void addWeight(byte queue, long weight) {
+    switch (queue) {
+      case WINDOW:
+        windowWeight += weight;
+        break;
+      case PROBATION:
+        probationWeight += weight;
+        break;
+      default:
+        protectedWeight += weight;
+    }
+  }
+
+  /**
+   * Applies a read; moves the node to the tail of its segment, or from probation to protected (demoting the least
+   * recently used of the protected if it overflows). guarded by evictionLock
+   */
+  void onAccess(Node<Key, Value> node) {
+    if (node.next == null) {
+      return;
+    }
+    if (sketch != null) {
+      sketch.increment(node.key);
+    }
+    switch (node.queue) {
+      case WINDOW:
+        moveToTail(windowHead, node);
+        break;
+      case PROBATION:
+        unlink(node);
+        append(protectedHead, node, PROTECTED);
+        while (protectedWeight > protectedMax) {
+          Node<Key, Value> demoted = protectedHead.next;
+          unlink(demoted);
+          append(probationHead, demoted, PROBATION);
+        }
+        break;
+      default:
+        moveToTail(protectedHead, node);
+    }
+  }
+
+  /** guarded by evictionLock */
+  private void moveToTail(Node<Key, Value> head, Node<Key, Value> node) {
+    if (node.next == head) {
+      return;
+    }
+    node.prev.next = node.next;
+    node.next.prev = node.prev;
+    Node<Key, Value> last = head.prev;
+    node.prev = last;
+    node.next = head;
+    last.next = node;
+    head.prev = node;
+  }
+
+  private static <Key, Value> Node<Key, Value> sentinel() {
+    Node<Key, Value> head = new Node<Key, Value>(null, null, 0);
+    head.prev = head.next = head;
+    return head;
+  }
+
+  static int ceilingPowerOfTwo(int x) {
+    return 1 << -Integer.numberOfLeadingZeros(Math.max(1, x) - 1);
+  }
+
+  static final class Node<Key, Value> {
+    @SuppressWarnings("rawtypes")
+    static final AtomicReferenceFieldUpdater<Node, Object> VALUE =
+        AtomicReferenceFieldUpdater.newUpdater(Node.class, Object.class, "value");
+    final Key key;
+    /** null once the node is retired (off the map) */
+    volatile Value value;
+    /** weighed when put; 1 without a weigher */
+    final int weight;
+    /** links of the access ordered segment; null when not linked. guarded by evictionLock */
+    Node<Key, Value> prev;
+    Node<Key, Value> next;
+    /** the segment linked in. guarded by evictionLock */
+    byte queue;
+    /** times of the last write and read; set only if expiring */
+    volatile long writtenAt;
+    volatile long accessedAt;
+    /** links of the timer wheel bucket; null when not scheduled. guarded by evictionLock */
+    Node<Key, Value> timerPrev;
+    Node<Key, Value> timerNext;
+
+    Node(Key key, Value value, int weight) {
+      this.key = key;
+      this.value = value;
+      this.weight = weight;
+    }
+
+    /**
+     * @return the value replaced; null if retired
+     */
+    @SuppressWarnings("unchecked")
+    Value swap(Value value) {
+      return (Value) VALUE.getAndSet(this, value);
+    }
+
+    /**
+     * @return the value replaced; null if it was not the expected one (written or retired meanwhile)
+     */
+    Value swap(Value expected, Value value) {
+      return VALUE.compareAndSet(this, expected, value) ? expected : null;
+    }
+
+    /**
+     * Takes the value off a node that is off the map; only the one that took it off the map retires it
+     */
+    @SuppressWarnings("unchecked")
+    Value retire() {
+      return (Value) VALUE.getAndSet(this, null);
+    }
+  }
+
+  /**
+   * Builds a {@link LRUCache}; either the size or a weigher and maximum weight is required and the rest optional
+   */
+  public static final class Builder<Key, Value> {
+    private int size;
+    private long maximumWeight;
+    private Weigher<? super Key, ? super Value> weigher;
+    private EvictionPolicy policy = EvictionPolicy.LRU;
+    private Executor maintenanceExecutor;
+    private long expireAfterWriteNanos;
+    private long expireAfterAccessNanos;
+    private long refreshAfterWriteNanos;
+    private CacheLoader<Key, Value> loader;
+    private Executor loaderExecutor = ForkJoinPool.commonPool();
+    private BiConsumer<Key, Value> removalHook;
+    private RemovalListener<? super Key, ? super Value> removalListener;
+    private Executor listenerExecutor = ForkJoinPool.commonPool();
+    private boolean recordStats;
+
+    public Builder<Key, Value> size(int size) {
+      this.size = size;
+      return this;
+    }
+
+    /**
+     * Bounds the cache by the total weight of the entries in place of their number; needs a weigher
+     */
+    public Builder<Key, Value> maximumWeight(long maximumWeight) {
+      if (maximumWeight <= 0) throw new IllegalArgumentException("maximum weight must be positive");
+      this.maximumWeight = maximumWeight;
+      return this;
+    }
+
+    /**
+     * Weighs the entries for the maximum weight
+     */
+    public Builder<Key, Value> weigher(Weigher<? super Key, ? super Value> weigher) {
+      if (weigher == null) throw new NullPointerException();
+      this.weigher = weigher;
+      return this;
+    }
+
+    public Builder<Key, Value> evictionPolicy(EvictionPolicy policy) {
+      this.policy = policy;
+      return this;
+    }
+
+    /**
+     * see {@link LRUCache#LRUCache(int, EvictionPolicy, Executor)}
+     */
+    public Builder<Key, Value> maintenanceExecutor(Executor maintenanceExecutor) {
+      this.maintenanceExecutor = maintenanceExecutor;
+      return this;
+    }
+
+    /**
+     * Expires an entry the given time after it was put (or replaced)
+     */
+    public Builder<Key, Value> expireAfterWrite(long duration, TimeUnit unit) {
+      expireAfterWriteNanos = toNanos(duration, unit);
+      return this;
+    }
+
+    /**
+     * Expires an entry the given time after it was last put or read
+     */
+    public Builder<Key, Value> expireAfterAccess(long duration, TimeUnit unit) {
+      expireAfterAccessNanos = toNanos(duration, unit);
+      return this;
+    }
+
+    /**
+     * Reloads an entry in the background when read the given time after it was written; needs a loader
+     */
+    public Builder<Key, Value> refreshAfterWrite(long duration, TimeUnit unit) {
+      refreshAfterWriteNanos = toNanos(duration, unit);
+      return this;
+    }
+
+    /**
+     * The loader of {@link LRUCache#getAsync(Object)}, {@link LRUCache#getAll(Iterable)} and the refreshes
+     */
+    public Builder<Key, Value> loader(CacheLoader<Key, Value> loader) {
+      this.loader = loader;
+      return this;
+    }
+
+    /**
+     * Runs the async loads and the refreshes; the common pool by default
+     */
+    public Builder<Key, Value> loaderExecutor(Executor loaderExecutor) {
+      if (loaderExecutor == null) throw new NullPointerException();
+      this.loaderExecutor = loaderExecutor;
+      return this;
+    }
+
+    /**
+     * Tells the listener of every entry removed, replaced, evicted or expired; on the listener executor
+     */
+    public Builder<Key, Value> removalListener(RemovalListener<? super Key, ? super Value> removalListener) {
+      if (removalListener == null) throw new NullPointerException();
+      this.removalListener = removalListener;
+      return this;
+    }
+
+    /**
+     * Runs the removal listener; the common pool by default
+     */
+    public Builder<Key, Value> listenerExecutor(Executor listenerExecutor) {
+      if (listenerExecutor == null) throw new NullPointerException();
+      this.listenerExecutor = listenerExecutor;
+      return this;
+    }
+
+    /**
+     * Counts the hits, misses, loads, removals and drains; see {@link LRUCache#stats()}
+     */
+    public Builder<Key, Value> recordStats() {
+      recordStats = true;
+      return this;
+    }
+
+    /**
+     * Called synchronously with every value removed or replaced; for a store that has to release the values
+     */
+    Builder<Key, Value> onRemoval(BiConsumer<Key, Value> removalHook) {
+      this.removalHook = removalHook;
+      return this;
+    }
+
+    public LRUCache<Key, Value> build() {
+      return new LRUCache<Key, Value>(this);
+    }
+
+    private static long toNanos(long duration, TimeUnit unit) {
+      if (duration <= 0) throw new IllegalArgumentException("duration must be positive");
+      return unit.toNanos(duration);
+    }
+  }
+
+  /**
+   * A lossy ring buffer of nodes read; written by many readers and drained under the eviction lock. A read is
+   * dropped when the buffer is full, which only costs the recency of that read.
+   */
+  static final class ReadBuffer<Key, Value> {
+    final AtomicReferenceArray<Node<Key, Value>> slots = new AtomicReferenceArray<Node<Key, Value>>(READ_BUFFER_SIZE);
+    final AtomicLong writeCounter = new AtomicLong();
+    /** written only under the eviction lock */
+    volatile long readCounter;
+
+    /**
+     * @return the number of pending reads in this buffer
+     */
+    long record(Node<Key, Value> node) {
+      long write = writeCounter.get();
+      long pending = write - readCounter;
+      if (pending < READ_BUFFER_SIZE && writeCounter.compareAndSet(write, write + 1)) {
+        slots.lazySet((int) write & READ_BUFFER_MASK, node);
+        return pending + 1;
+      }
+      return pending;
+    }
+
+    /** guarded by the eviction lock */
+    void drainTo(LRUCache<Key, Value> cache) {
+      long read = readCounter;
+      long write = writeCounter.get();
+      for (; read < write; read++) {
+        int index = (int) read & READ_BUFFER_MASK;
+        Node<Key, Value> node = slots.get(index);
+        if (node == null) {
+          break; // not yet published; picked up in the next drain
+        }
+        slots.lazySet(index, null);
+        cache.onAccess(node);
+      }
+      readCounter = read;
     }
   }
 }
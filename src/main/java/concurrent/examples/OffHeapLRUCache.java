@@ -0,0 +1,151 @@
+package concurrent.examples;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Function;
+
+import concurrent.examples.LRUCache.EvictionPolicy;
+import concurrent.examples.SlabAllocator.Chunk;
+
+/**
+ * The off-heap mode of {@link LRUCache}; for caching a large volume of serialized values without them weighing on
+ * the garbage collector.
+ * <p>
+ * A value is serialized with the given {@link Serializer} into a chunk of a direct {@link ByteBuffer} slab (see
+ * {@link SlabAllocator}) and the cache itself only keeps a small handle of the chunk per entry; so the heap holds the
+ * keys and a few tens of bytes per entry whatever the size of the values. A chunk is freed as soon as its entry is
+ * evicted, expired, removed or replaced.
+ * <p>
+ * {@link #read(Object, Function)} reads a value in place through a read only view without copying it on to the heap;
+ * {@link #get(Object)} deserializes it. When there is no free chunk of the size a put needs (and no slab left to carve
+ * one), entries are evicted in their order until one frees up; as the slabs stay with their chunk size, this may
+ * evict entries of other sizes first. A value for which no chunk can be freed at all is not cached.
+ */
+public class OffHeapLRUCache<Key, Value> implements Closeable {
+  /** default slab size; the largest value it can take is 4 bytes less */
+  public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+  private final LRUCache<Key, Chunk> index;
+  private final SlabAllocator slabs;
+  private final Serializer<Value> serializer;
+  private final Function<ByteBuffer, Value> deserializer;
+
+  /**
+   * @param size the maximum number of entries
+   * @param maxBytes the most off-heap memory to take (in slabs of {@link #DEFAULT_SLAB_SIZE})
+   * @param serializer of the values
+   */
+  public OffHeapLRUCache(final int size, final long maxBytes, final Serializer<Value> serializer) {
+    this(size, EvictionPolicy.LRU, maxBytes, DEFAULT_SLAB_SIZE, serializer);
+  }
+
+  /**
+   * @param size the maximum number of entries
+   * @param policy what to evict once full
+   * @param maxBytes the most off-heap memory to take
+   * @param slabSize the size of a slab; a power of two
+   * @param serializer of the values
+   */
+  public OffHeapLRUCache(final int size, final EvictionPolicy policy, final long maxBytes, final int slabSize,
+      final Serializer<Value> serializer) {
+    if (serializer == null) throw new NullPointerException();
+    final SlabAllocator slabs = new SlabAllocator(slabSize, maxBytes);
+    this.slabs = slabs;
+    this.serializer = serializer;
+    deserializer = buffer -> serializer.deserialize(buffer);
+    index = LRUCache.<Key, Chunk> builder().size(size).evictionPolicy(policy)
+        .onRemoval((key, chunk) -> slabs.free(chunk)).build();
+  }
+
+  /**
+   * @return a copy of the value on the heap; null if absent
+   */
+  public Value get(final Key key) {
+    return read(key, deserializer);
+  }
+
+  /**
+   * Applies the reader to a read only view of the serialized value in place (positioned at the value and limited to
+   * its end). The view is valid only within the reader and must not be kept; the reader may be called again if the
+   * value was replaced meanwhile.
+   *
+   * @return what the reader returned; null if absent
+   */
+  @SuppressWarnings("unchecked")
+  public <R> R read(final Key key, final Function<? super ByteBuffer, ? extends R> reader) {
+    if (reader == null) throw new NullPointerException();
+    for (;;) {
+      Chunk chunk = index.get(key);
+      if (chunk == null) {
+        return null;
+      }
+      Object result = slabs.read(chunk, reader);
+      if (result != SlabAllocator.FREED) {
+        return (R) result;
+      }
+    }
+  }
+
+  /**
+   * Puts the value off the heap; evicting entries if need be to free a chunk for it
+   *
+   * @throws IllegalArgumentException if the value is larger than a slab
+   */
+  public void put(final Key key, final Value value) {
+    if (key == null || value == null) throw new NullPointerException();
+    int length = serializer.size(value);
+    Chunk chunk;
+    while ((chunk = slabs.allocate(length)) == null) {
+      if (!slabs.reclaimable(length) || !index.evictOne()) {
+        index.remove(key); // not to leave the value it was to replace
+        return;
+      }
+    }
+    try {
+      slabs.write(chunk, serializer, value);
+    } catch (RuntimeException e) {
+      slabs.free(chunk);
+      throw e;
+    }
+    index.put(key, chunk);
+  }
+
+  /**
+   * Removes the key
+   *
+   * @return whether it was present
+   */
+  public boolean remove(final Key key) {
+    return index.remove(key) != null;
+  }
+
+  /**
+   * @return number of entries
+   */
+  public int size() {
+    return index.size();
+  }
+
+  /**
+   * @return the off-heap memory taken so far
+   */
+  public long allocatedBytes() {
+    return slabs.allocatedBytes();
+  }
+
+  /**
+   * see {@link LRUCache#cleanUp()}
+   */
+  public void cleanUp() {
+    index.cleanUp();
+  }
+
+  /**
+   * Clears the entries; the slabs are let go with this cache
+   */
+  @Override
+  public void close() throws IOException {
+    index.close();
+  }
+}
@@ -0,0 +1,22 @@
+package concurrent.examples;
+
+/**
+ * Why an entry left a {@link LRUCache}; see {@link RemovalListener}
+ */
+public enum RemovalCause {
+  /** removed by a call of {@link LRUCache#remove(Object)} (or a reload finding no value) */
+  EXPLICIT,
+  /** its value was replaced by a put */
+  REPLACED,
+  /** evicted for the size (or weight) of the cache */
+  SIZE,
+  /** evicted when its time to live was up */
+  EXPIRED;
+
+  /**
+   * @return whether the cache evicted the entry on its own
+   */
+  public boolean wasEvicted() {
+    return this == SIZE || this == EXPIRED;
+  }
+}
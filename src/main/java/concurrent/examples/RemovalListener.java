@@ -0,0 +1,13 @@
+package concurrent.examples;
+
+/**
+ * Told of the entries that leave a {@link LRUCache}; see {@link LRUCache.Builder#removalListener(RemovalListener)}
+ */
+@FunctionalInterface
+public interface RemovalListener<Key, Value> {
+  /**
+   * Called on the listener executor after the entry left the cache; so it may be called out of order, and the key
+   * may be back in the cache already. An exception thrown is left to the executor.
+   */
+  void onRemoval(Key key, Value value, RemovalCause cause);
+}
@@ -0,0 +1,129 @@
+package concurrent.examples;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import concurrent.examples.LRUCache.EvictionPolicy;
+
+/**
+ * A concurrent LRU cache striped over independent {@link LRUCache} segments for scaling over many cores.
+ * <p>
+ * A key is hashed to one of a power of two number of segments; each segment has its own map, buffers and eviction
+ * lock, so the maintenance of one segment never holds up another. The capacity is global but approximate: every
+ * segment holds up to size / segments (rounded up) entries and evicts by its own recency (or frequency); so an entry
+ * may be evicted while a colder one lives on in another segment, which evens out as the keys spread.
+ */
+public class SegmentedLRUCache<Key, Value> implements Closeable {
+  /** default number of segments; a few per processor */
+  static final int DEFAULT_SEGMENTS = LRUCache.ceilingPowerOfTwo(4 * LRUCache.NCPU);
+
+  private final LRUCache<Key, Value>[] segments;
+  private final int mask;
+
+  public SegmentedLRUCache(final int size) {
+    this(size, DEFAULT_SEGMENTS, EvictionPolicy.LRU);
+  }
+
+  public SegmentedLRUCache(final int size, final int segments) {
+    this(size, segments, EvictionPolicy.LRU);
+  }
+
+  public SegmentedLRUCache(final int size, final int segments, final EvictionPolicy policy) {
+    this(size, segments, policy, false);
+  }
+
+  /**
+   * @param size the maximum number of entries (approximately)
+   * @param segments the number of segments; rounded up to a power of two and down to at most the size
+   * @param policy the eviction policy of each segment
+   * @param recordStats whether the segments count their statistics; see {@link #stats()}
+   */
+  public SegmentedLRUCache(final int size, final int segments, final EvictionPolicy policy,
+      final boolean recordStats) {
+    if (size <= 0) throw new IllegalArgumentException("size must be positive");
+    if (segments <= 0) throw new IllegalArgumentException("segments must be positive");
+    int count = LRUCache.ceilingPowerOfTwo(segments);
+    while (count > size) {
+      count >>>= 1;
+    }
+    int segmentSize = (size + count - 1) / count;
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    LRUCache<Key, Value>[] caches = new LRUCache[count];
+    this.segments = caches;
+    for (int i = 0; i < count; i++) {
+      LRUCache.Builder<Key, Value> builder = LRUCache.<Key, Value> builder().size(segmentSize).evictionPolicy(policy);
+      this.segments[i] = (recordStats ? builder.recordStats() : builder).build();
+    }
+    mask = count - 1;
+  }
+
+  public Value get(final Key key) {
+    return segmentFor(key).get(key);
+  }
+
+  public void put(final Key key, final Value value) {
+    if (key == null || value == null) throw new NullPointerException();
+    segmentFor(key).put(key, value);
+  }
+
+  /**
+   * Removes the key
+   *
+   * @return the value removed; null if absent
+   */
+  public Value remove(final Key key) {
+    return segmentFor(key).remove(key);
+  }
+
+  /**
+   * @return number of entries; a sum over the segments and hence only an estimate while being updated
+   */
+  public int size() {
+    int size = 0;
+    for (LRUCache<Key, Value> segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  /**
+   * @return the statistics summed over the segments; all zero unless built to record them. Each segment is snapshot in
+   *         turn, so the sum is only an estimate while being updated
+   */
+  public CacheStats stats() {
+    CacheStats stats = CacheStats.EMPTY;
+    for (LRUCache<Key, Value> segment : segments) {
+      stats = stats.plus(segment.stats());
+    }
+    return stats;
+  }
+
+  /**
+   * @return the number of segments
+   */
+  public int getSegments() {
+    return segments.length;
+  }
+
+  /**
+   * Does the pending maintenance of every segment; see {@link LRUCache#cleanUp()}
+   */
+  public void cleanUp() {
+    for (LRUCache<Key, Value> segment : segments) {
+      segment.cleanUp();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (LRUCache<Key, Value> segment : segments) {
+      segment.close();
+    }
+  }
+
+  private LRUCache<Key, Value> segmentFor(Key key) {
+    // a different mix than the segment's own map so that a segment does not get keys of clustered buckets
+    int h = key.hashCode() * 0x9e3779b9;
+    return segments[(h ^ (h >>> 16)) & mask];
+  }
+}
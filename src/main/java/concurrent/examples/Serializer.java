@@ -0,0 +1,43 @@
+package concurrent.examples;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes values to and reads them from a {@link ByteBuffer}; used by {@link OffHeapLRUCache} to keep the values off
+ * the heap
+ */
+public interface Serializer<T> {
+  /**
+   * Serializes byte arrays as they are
+   */
+  Serializer<byte[]> BYTES = new Serializer<byte[]>() {
+    public int size(byte[] value) {
+      return value.length;
+    }
+
+    public void serialize(byte[] value, ByteBuffer target) {
+      target.put(value);
+    }
+
+    public byte[] deserialize(ByteBuffer source) {
+      byte[] value = new byte[source.remaining()];
+      source.get(value);
+      return value;
+    }
+  };
+
+  /**
+   * @return the number of bytes {@link #serialize} writes for the value
+   */
+  int size(T value);
+
+  /**
+   * Writes the value at the position of the target; which has exactly {@link #size} bytes remaining
+   */
+  void serialize(T value, ByteBuffer target);
+
+  /**
+   * Reads a value from the position of the source up to its limit
+   */
+  T deserialize(ByteBuffer source);
+}
@@ -0,0 +1,254 @@
+package concurrent.examples;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+
+/**
+ * Allocates chunks of off-heap memory for {@link OffHeapLRUCache} out of direct {@link ByteBuffer} slabs.
+ * <p>
+ * The chunk sizes are powers of two from 64 bytes up to the slab size. A slab is carved into chunks of one size when
+ * that size runs out of free chunks and stays with that size (as in memcached); a freed chunk goes to the free list of
+ * its size. Every chunk starts with a 4 byte stamp which is bumped when it is freed; a {@link Chunk} handle carries the
+ * stamp it was allocated with, so a stale handle is told apart and a double free is ignored.
+ * <p>
+ * Reads are optimistic: a read validates against the {@link StampedLock} of the slab, which a free takes for writing;
+ * a read overlapping a free in the same slab is done again under the read lock.
+ */
+final class SlabAllocator {
+  static final int MIN_CHUNK_SHIFT = 6;
+  /** bytes of the stamp at the start of a chunk */
+  static final int HEADER = 4;
+  /** read of a chunk freed */
+  static final Object FREED = new Object();
+
+  private final int slabSize;
+  private final Slab[] slabs;
+  private final SizeClass[] classes;
+  private final ReentrantLock slabLock = new ReentrantLock();
+  /** number of slabs allocated; written under slabLock */
+  private volatile int slabCount;
+
+  /**
+   * @param slabSize a power of two of at least 64
+   * @param maxBytes the most memory to take; in slabs
+   */
+  SlabAllocator(int slabSize, long maxBytes) {
+    if (slabSize < 1 << MIN_CHUNK_SHIFT || Integer.bitCount(slabSize) != 1)
+      throw new IllegalArgumentException("slab size must be a power of two of at least 64");
+    long maxSlabs = maxBytes / slabSize;
+    if (maxSlabs < 1 || maxSlabs > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("max bytes must be a positive number of slabs");
+    this.slabSize = slabSize;
+    slabs = new Slab[(int) maxSlabs];
+    classes = new SizeClass[Integer.numberOfTrailingZeros(slabSize) - MIN_CHUNK_SHIFT + 1];
+    for (int i = 0; i < classes.length; i++) {
+      classes[i] = new SizeClass(1 << (MIN_CHUNK_SHIFT + i));
+    }
+  }
+
+  /**
+   * @return a chunk of length bytes; null if there is no free chunk of its size and no slab left to carve one
+   * @throws IllegalArgumentException if the length does not fit a slab
+   */
+  Chunk allocate(int length) {
+    if (length < 0 || length > slabSize - HEADER)
+      throw new IllegalArgumentException("a value of " + length + " bytes does not fit a slab");
+    SizeClass sizeClass = classes[classOf(length + HEADER)];
+    sizeClass.lock.lock();
+    try {
+      Slab slab;
+      int offset;
+      if (sizeClass.free > 0) {
+        long address = sizeClass.freeList[--sizeClass.free];
+        slab = slabs[(int) (address >>> 32)];
+        offset = (int) address;
+      } else {
+        if (sizeClass.slab == null || sizeClass.carved == slabSize) {
+          Slab carve = newSlab(sizeClass);
+          if (carve == null) {
+            return null;
+          }
+          sizeClass.slab = carve;
+          sizeClass.carved = 0;
+        }
+        slab = sizeClass.slab;
+        offset = sizeClass.carved;
+        sizeClass.carved += sizeClass.chunkSize;
+      }
+      return new Chunk(slab.index, offset, length, slab.buffer.getInt(offset));
+    } finally {
+      sizeClass.lock.unlock();
+    }
+  }
+
+  /**
+   * @return whether a chunk for the length may be had by freeing others; false if there is no slab of its size
+   */
+  boolean reclaimable(int length) {
+    SizeClass sizeClass = classes[classOf(length + HEADER)];
+    sizeClass.lock.lock();
+    try {
+      return sizeClass.slab != null;
+    } finally {
+      sizeClass.lock.unlock();
+    }
+  }
+
+  /**
+   * Serializes the value into the chunk
+   */
+  <T> void write(Chunk chunk, Serializer<T> serializer, T value) {
+    ByteBuffer target = slabs[chunk.slab].buffer.duplicate();
+    target.position(chunk.offset + HEADER);
+    target.limit(chunk.offset + HEADER + chunk.length);
+    serializer.serialize(value, target);
+  }
+
+  /**
+   * Applies the reader to a read only view of the chunk.
+   *
+   * @return what the reader returned; {@link #FREED} if the chunk was freed
+   */
+  Object read(Chunk chunk, Function<? super ByteBuffer, ?> reader) {
+    Slab slab = slabs[chunk.slab];
+    long stamp = slab.lock.tryOptimisticRead();
+    if (stamp != 0L) {
+      if (slab.buffer.getInt(chunk.offset) != chunk.stamp) {
+        return FREED;
+      }
+      try {
+        Object result = reader.apply(slab.view(chunk));
+        if (slab.lock.validate(stamp)) {
+          return result;
+        }
+      } catch (RuntimeException e) {
+        // may have read a chunk being reused
+        if (slab.lock.validate(stamp)) throw e;
+      }
+    }
+    stamp = slab.lock.readLock();
+    try {
+      if (slab.buffer.getInt(chunk.offset) != chunk.stamp) {
+        return FREED;
+      }
+      return reader.apply(slab.view(chunk));
+    } finally {
+      slab.lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Frees the chunk; a chunk already freed is left alone
+   */
+  void free(Chunk chunk) {
+    Slab slab = slabs[chunk.slab];
+    long stamp = slab.lock.writeLock();
+    try {
+      if (slab.buffer.getInt(chunk.offset) != chunk.stamp) {
+        return;
+      }
+      slab.buffer.putInt(chunk.offset, chunk.stamp + 1);
+    } finally {
+      slab.lock.unlockWrite(stamp);
+    }
+    SizeClass sizeClass = slab.sizeClass;
+    sizeClass.lock.lock();
+    try {
+      if (sizeClass.free == sizeClass.freeList.length) {
+        sizeClass.freeList = Arrays.copyOf(sizeClass.freeList, Math.max(16, sizeClass.free * 2));
+      }
+      sizeClass.freeList[sizeClass.free++] = (long) chunk.slab << 32 | chunk.offset;
+    } finally {
+      sizeClass.lock.unlock();
+    }
+  }
+
+  /**
+   * @return the off-heap memory taken so far
+   */
+  long allocatedBytes() {
+    return (long) slabCount * slabSize;
+  }
+
+  private Slab newSlab(SizeClass sizeClass) {
+    slabLock.lock();
+    try {
+      int count = slabCount;
+      if (count == slabs.length) {
+        return null;
+      }
+      Slab slab = new Slab(count, sizeClass, ByteBuffer.allocateDirect(slabSize));
+      slabs[count] = slab;
+      slabCount = count + 1;
+      return slab;
+    } finally {
+      slabLock.unlock();
+    }
+  }
+
+  private static int classOf(int bytes) {
+    return Math.max(0, 32 - Integer.numberOfLeadingZeros(bytes - 1) - MIN_CHUNK_SHIFT);
+  }
+
+  /**
+   * The handle of an allocated chunk; kept on the heap in place of the value
+   */
+  static final class Chunk {
+    final int slab;
+    final int offset;
+    final int length;
+    final int stamp;
+
+    Chunk(int slab, int offset, int length, int stamp) {
+      this.slab = slab;
+      this.offset = offset;
+      this.length = length;
+      this.stamp = stamp;
+    }
+  }
+
+  static final class Slab {
+    final int index;
+    final SizeClass sizeClass;
+    /** used only with absolute gets and puts (or through duplicates) so that it is safe to share */
+    final ByteBuffer buffer;
+    final ByteBuffer readOnly;
+    /** the JDK's rather than concurrent.util's since its validate fences the (plain) reads of the view before it */
+    final StampedLock lock = new StampedLock();
+
+    Slab(int index, SizeClass sizeClass, ByteBuffer buffer) {
+      this.index = index;
+      this.sizeClass = sizeClass;
+      this.buffer = buffer;
+      this.readOnly = buffer.asReadOnlyBuffer();
+    }
+
+    ByteBuffer view(Chunk chunk) {
+      ByteBuffer view = readOnly.duplicate();
+      view.position(chunk.offset + HEADER);
+      view.limit(chunk.offset + HEADER + chunk.length);
+      return view;
+    }
+  }
+
+  /**
+   * The chunks of one size; guarded by its lock
+   */
+  static final class SizeClass {
+    final int chunkSize;
+    final ReentrantLock lock = new ReentrantLock();
+    /** addresses (slab index and offset) of the free chunks */
+    long[] freeList = new long[16];
+    int free;
+    /** the slab being carved and the bytes carved off it */
+    Slab slab;
+    int carved;
+
+    SizeClass(int chunkSize) {
+      this.chunkSize = chunkSize;
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package concurrent.examples;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters behind {@link CacheStats}; striped ({@link LongAdder}) so that the threads recording a hit or a miss
+ * do not contend on a shared counter. Summed up only when a snapshot is taken.
+ */
+final class StatsCounter {
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+  private final LongAdder loadSuccessCount = new LongAdder();
+  private final LongAdder loadFailureCount = new LongAdder();
+  private final LongAdder totalLoadTime = new LongAdder();
+  private final LongAdder[] removalCounts;
+  private final LongAdder drainCount = new LongAdder();
+  private final LongAdder totalDrainTime = new LongAdder();
+
+  StatsCounter() {
+    removalCounts = new LongAdder[RemovalCause.values().length];
+    for (int i = 0; i < removalCounts.length; i++) {
+      removalCounts[i] = new LongAdder();
+    }
+  }
+
+  void recordHit() {
+    hitCount.increment();
+  }
+
+  void recordMiss() {
+    missCount.increment();
+  }
+
+  /**
+   * @param found whether the load found a value; a failed load did not
+   */
+  void recordLoad(boolean found, long nanos) {
+    (found ? loadSuccessCount : loadFailureCount).increment();
+    totalLoadTime.add(nanos);
+  }
+
+  void recordRemoval(RemovalCause cause) {
+    removalCounts[cause.ordinal()].increment();
+  }
+
+  void recordDrain(long nanos) {
+    drainCount.increment();
+    totalDrainTime.add(nanos);
+  }
+
+  CacheStats snapshot() {
+    long[] removals = new long[removalCounts.length];
+    for (int i = 0; i < removals.length; i++) {
+      removals[i] = removalCounts[i].sum();
+    }
+    return new CacheStats(hitCount.sum(), missCount.sum(), loadSuccessCount.sum(), loadFailureCount.sum(),
+        totalLoadTime.sum(), removals, drainCount.sum(), totalDrainTime.sum());
+  }
+}
@@ -0,0 +1,130 @@
+package concurrent.examples;
+
+import concurrent.examples.LRUCache.Node;
+
+/**
+ * A hierarchical timing wheel of the nodes of an {@link LRUCache} by their expiry time; advanced by the cache
+ * maintenance so that expiry needs no scheduled task per entry.
+ * <p>
+ * Each of the five levels has 64 buckets; a bucket of the first level spans about a millisecond (2^20 ns), and of
+ * each next level 64 times the one before (about 67ms, 4.3s, 4.6min and 4.9h); so the wheel covers about 13 days
+ * and a node due beyond that waits in the last level. A node is put in the finest level whose whole span covers its
+ * delay. Advancing the wheel visits only the buckets whose time has passed and, per level, the one of the current
+ * time: a node found expired is evicted, the rest (read since, or placed in a coarse bucket) are put back for their
+ * current expiry. So a schedule, reschedule or removal is O(1) and the expiry is O(1) amortized per node.
+ * <p>
+ * Not thread safe; the cache only touches it under its eviction lock.
+ */
+final class TimerWheel<Key, Value> {
+  static final int BUCKETS = 64;
+  static final int LEVELS = 5;
+  /** log2 of the span of a bucket per level */
+  static final int[] SHIFT = {20, 26, 32, 38, 44};
+
+  private final LRUCache<Key, Value> cache;
+  /** sentinels of the buckets per level */
+  private final Node<Key, Value>[][] wheel;
+  /** time the wheel was last advanced to */
+  private long nanos;
+
+  TimerWheel(LRUCache<Key, Value> cache, long nanos) {
+    this.cache = cache;
+    this.nanos = nanos;
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    Node<Key, Value>[][] buckets = new Node[LEVELS][BUCKETS];
+    wheel = buckets;
+    for (int i = 0; i < LEVELS; i++) {
+      for (int j = 0; j < BUCKETS; j++) {
+        Node<Key, Value> sentinel = new Node<Key, Value>(null, null, 0);
+        sentinel.timerPrev = sentinel.timerNext = sentinel;
+        wheel[i][j] = sentinel;
+      }
+    }
+  }
+
+  /**
+   * Puts the node in the bucket of its expiry time
+   */
+  void schedule(Node<Key, Value> node) {
+    // one already due goes to the bucket of the current tick; every advance visits it, even within the same tick
+    // one due beyond the wheel waits in the farthest bucket of the last level, never in its current one
+    long delay = Math.min(Math.max(cache.expiresAt(node) - nanos, 0L), (BUCKETS - 1L) << SHIFT[LEVELS - 1]);
+    long time = nanos + delay;
+    int level = 0;
+    while (level < LEVELS - 1 && delay >= 1L << (SHIFT[level] + 6)) {
+      level++;
+    }
+    Node<Key, Value> sentinel = wheel[level][(int) (time >> SHIFT[level]) & (BUCKETS - 1)];
+    Node<Key, Value> last = sentinel.timerPrev;
+    node.timerPrev = last;
+    node.timerNext = sentinel;
+    last.timerNext = node;
+    sentinel.timerPrev = node;
+  }
+
+  /**
+   * Takes the node off its bucket if it is in one
+   */
+  void deschedule(Node<Key, Value> node) {
+    if (node.timerNext == null) {
+      return;
+    }
+    node.timerPrev.timerNext = node.timerNext;
+    node.timerNext.timerPrev = node.timerPrev;
+    node.timerPrev = node.timerNext = null;
+  }
+
+  void reschedule(Node<Key, Value> node) {
+    deschedule(node);
+    schedule(node);
+  }
+
+  /**
+   * Empties all the buckets
+   */
+  void clear() {
+    for (Node<Key, Value>[] level : wheel) {
+      for (Node<Key, Value> sentinel : level) {
+        sentinel.timerPrev = sentinel.timerNext = sentinel;
+      }
+    }
+  }
+
+  /**
+   * Moves the wheel to the given time; evicting the expired nodes of the buckets passed and of the current ones. A
+   * current bucket holds the nodes due within its tick (or already due when scheduled) and, at the coarse levels, the
+   * nodes scheduled while the wheel was behind; so it is visited even if the tick has not moved.
+   */
+  void advance(long currentTime) {
+    long previous = nanos;
+    nanos = currentTime;
+    for (int level = 0; level < LEVELS; level++) {
+      long previousTicks = previous >> SHIFT[level];
+      long currentTicks = currentTime >> SHIFT[level];
+      long ticks = Math.min(Math.max(currentTicks - previousTicks, 0), BUCKETS - 1);
+      for (long tick = currentTicks - ticks; tick <= currentTicks; tick++) {
+        expire(wheel[level][(int) tick & (BUCKETS - 1)], currentTime);
+      }
+    }
+  }
+
+  private void expire(Node<Key, Value> sentinel, long currentTime) {
+    if (sentinel.timerNext == sentinel) {
+      return;
+    }
+    // detach the bucket first since the nodes not expired may go back to it
+    Node<Key, Value> node = sentinel.timerNext;
+    sentinel.timerPrev.timerNext = null;
+    sentinel.timerPrev = sentinel.timerNext = sentinel;
+    while (node != null) {
+      Node<Key, Value> next = node.timerNext;
+      node.timerPrev = node.timerNext = null;
+      if (cache.hasExpired(node, currentTime)) {
+        cache.expire(node);
+      } else {
+        schedule(node);
+      }
+      node = next;
+    }
+  }
+}
@@ -0,0 +1,16 @@
+package concurrent.examples;
+
+/**
+ * Weighs the entries of a {@link LRUCache} bounded by a total weight rather than by a number of entries; see
+ * {@link LRUCache.Builder#weigher(Weigher)}. Weighing the values in bytes bounds the memory of the cache.
+ */
+@FunctionalInterface
+public interface Weigher<Key, Value> {
+  /**
+   * Weighs an entry once, when it is put; it keeps that weight while cached. An entry of no weight does not count
+   * towards the maximum weight.
+   *
+   * @return the weight of the entry; not negative
+   */
+  int weigh(Key key, Value value);
+}
@@ -1,11 +1,13 @@
 package concurrent.util;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import lombok.AccessLevel;
@@ -13,7 +15,13 @@ import lombok.experimental.FieldDefaults;
 
 /**
  * A Bounding decorator for a {@link CompletionService} that bounds the limit of tasks to
- * be submitted by means of a {@link Semaphore}.
+ * be submitted by means of a {@link PermitCounter}.
+ * <p>
+ * The {@link PermitCounter} is CAS based; submitters and takers do not
+ * park/unpark each other unless the bound is actually reached. The fair mode
+ * hands the freed permits to the waiting submitters in the order they came;
+ * the non-fair mode lets a submitter grab a freed permit without regard to the
+ * submitters already waiting.
  * 
  * @author vmurthy
  * @param <V>
@@ -22,9 +30,9 @@ import lombok.experimental.FieldDefaults;
 @FieldDefaults(level=AccessLevel.PRIVATE,makeFinal=true)
 public class BoundedCompletionService<V> implements CompletionService<V> {
 	/**
-	 * semaphore for bounding.
+	 * permits for bounding.
 	 */
-	Semaphore semaphore;
+	PermitCounter permits;
 	/**
 	 * delegateCompletionService which is the delegate
 	 */
@@ -51,42 +59,59 @@ public class BoundedCompletionService<V> implements CompletionService<V> {
 	 */
 	public BoundedCompletionService(CompletionService<V> completionService,
 			int maxTasks) {
+		this(completionService, maxTasks, true);
+	}
+
+	/**
+	 * This constructor ensures a maximum of maxTasks number of submits for the
+	 * {@link #delegateCompletionService} and lets choose the fairness
+	 * 
+	 * @param completionService
+	 *            to be bounded for task submission
+	 * @param maxTasks
+	 *            defines the bounding limit on number of tasks to be submitted
+	 * @param fair
+	 *            true hands the freed permits to the waiting submitters in
+	 *            the order they came; false would let a submitter barge ahead
+	 *            of the waiting ones
+	 */
+	public BoundedCompletionService(CompletionService<V> completionService,
+			int maxTasks, boolean fair) {
 		if (completionService == null)
 			throw new NullPointerException(
 					"Delegate Completion Service cannot be null");
 		if (maxTasks < 0)
 			throw new IllegalArgumentException(
-					"Semaphore permits must be non-negative");
+					"Permits must be non-negative");
 		this.delegateCompletionService = completionService;
-		// Create a fair semaphore by default.
-		this.semaphore = new Semaphore(maxTasks, true);
+		this.permits = new PermitCounter(maxTasks, fair);
 	}
 
 	/**
-	 * One semaphore permit will be releived if
+	 * One permit will be released if
 	 * {@link delegateCompletionService#poll()} is successful
 	 */
 	public Future<V> poll() {
 		Future<V> future = delegateCompletionService.poll();
 		if (future != null)
-			semaphore.release();
+			permits.release();
 		return future;
 	}
 
 	/**
-	 * One semaphore permit will be releived if
+	 * One permit will be released if
 	 * {@link delegateCompletionService#poll(timeout, unit)} is successful
 	 */
 	public Future<V> poll(long timeout, TimeUnit unit)
 			throws InterruptedException {
 		Future<V> future = delegateCompletionService.poll(timeout, unit);
 		if (future != null)
-			semaphore.release();
+			permits.release();
 		return future;
 	}
 
 	/**
-	 * First a semaphore permit would be acquired before
+	 * First a permit would be acquired before
 	 * {@link delegateCompletionService#submit(task)} is called
 	 * 
 	 * @param task
@@ -95,7 +120,7 @@ public class BoundedCompletionService<V> implements CompletionService<V> {
 	 */
 	public Future<V> submit(Callable<V> task) {
 		try {
-			semaphore.acquire();
+			permits.acquire();
 		} catch (InterruptedException ie) {
 			throw new RejectedExecutionException(ie);
 		}
@@ -103,14 +128,14 @@ public class BoundedCompletionService<V> implements CompletionService<V> {
 		try {
 			future = delegateCompletionService.submit(task);
 		} catch (RuntimeException re) {
-			semaphore.release();
+			permits.release();
 			throw re;
 		}
 		return future;
 	}
 
 	/**
-	 * First a semaphore permit would be acquired before
+	 * First a permit would be acquired before
 	 * {@link delegateCompletionService#submit(task)} is called
 	 * 
 	 * @param task
@@ -124,14 +149,79 @@ public class BoundedCompletionService<V> implements CompletionService<V> {
 	}
 
 	/**
-	 * One semaphore permit will be released per every take call and that would
+	 * One permit will be released per every take call and that would
 	 * be subsequent to {@link delegateCompletionService#take()}
 	 * 
 	 * @return future
 	 */
 	public Future<V> take() throws InterruptedException {
 		Future<V> future = delegateCompletionService.take();
-		semaphore.release();
+		permits.release();
 		return future;
 	}
+
+	/**
+	 * Submits all the tasks by acquiring the permits in bulk; i.e. it waits
+	 * for at least one permit and then grabs as many more as are free (upto the
+	 * tasks remaining) in one go, submits that many and repeats.
+	 * <p>
+	 * If a submit fails, the permits not used are given back and the exception
+	 * is thrown; the tasks submitted until then remain submitted.
+	 * 
+	 * @param tasks
+	 *            is the collection of {@link Callable}s to be submitted
+	 * @return futures in the order of the tasks iterated
+	 */
+	public List<Future<V>> submitAll(Collection<? extends Callable<V>> tasks) {
+		if (tasks == null)
+			throw new NullPointerException();
+		List<Future<V>> futures = new ArrayList<Future<V>>(tasks.size());
+		int remaining = tasks.size();
+		int held = 0;
+		try {
+			for (Callable<V> task : tasks) {
+				if (held == 0) {
+					try {
+						permits.acquire();
+					} catch (InterruptedException ie) {
+						throw new RejectedExecutionException(ie);
+					}
+					held = 1 + permits.drainPermits(remaining - 1);
+				}
+				futures.add(delegateCompletionService.submit(task));
+				--held;
+				--remaining;
+			}
+		} finally {
+			permits.release(held);
+		}
+		return futures;
+	}
+
+	/**
+	 * Drains the completed futures (without waiting) upto max into the passed
+	 * collection and releases the permits for all of them in one go.
+	 * 
+	 * @param futures
+	 *            the collection to drain into
+	 * @param max
+	 *            the maximum number of futures to be drained
+	 * @return the number of futures drained
+	 */
+	public int drainTo(Collection<? super Future<V>> futures, int max) {
+		if (futures == null)
+			throw new NullPointerException();
+		int drained = 0;
+		try {
+			Future<V> future;
+			while (drained < max
+					&& (future = delegateCompletionService.poll()) != null) {
+				futures.add(future);
+				++drained;
+			}
+		} finally {
+			permits.release(drained);
+		}
+		return drained;
+	}
 }
@@ -1,5 +1,7 @@
 package concurrent.util;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.Future;
@@ -28,7 +30,7 @@ public class BoundedTransactionalCompletionService<V> implements
 	/**
 	 * BoundedCompletionServce handle of the same service passed
 	 */
-	CompletionService<V> boundedCompletionService;
+	BoundedCompletionService<V> boundedCompletionService;
 
 	/**
 	 * Constructor constructs a bounded and a transactional flavor of passed
@@ -38,7 +40,7 @@ public class BoundedTransactionalCompletionService<V> implements
 	 *            is the passed instance of {@link CompletionService} to be
 	 *            decorated
 	 * @param maxTasks
-	 *            is the number of semaphore permits
+	 *            is the maximum number of tasks submitted but not yet taken
 	 */
 	public BoundedTransactionalCompletionService(
 			CompletionService<V> completionService, int maxTasks) {
@@ -53,7 +55,7 @@ public class BoundedTransactionalCompletionService<V> implements
 	 * @param transactionalCompletionService
 	 *            is the passed in service
 	 * @param maxTasks
-	 *            is the number of semaphore permits
+	 *            is the maximum number of tasks submitted but not yet taken
 	 */
 	public BoundedTransactionalCompletionService(
 			TransactionalCompletionService<V> transactionalCompletionService,
@@ -113,6 +115,20 @@ public class BoundedTransactionalCompletionService<V> implements
 		return boundedCompletionService.submit(task, result);
 	}
 
+	/**
+	 * delegated to {@link BoundedCompletionService#submitAll(Collection)}
+	 */
+	public List<Future<V>> submitAll(Collection<? extends Callable<V>> tasks) {
+		return boundedCompletionService.submitAll(tasks);
+	}
+
+	/**
+	 * delegated to {@link BoundedCompletionService#drainTo(Collection, int)}
+	 */
+	public int drainTo(Collection<? super Future<V>> futures, int max) {
+		return boundedCompletionService.drainTo(futures, max);
+	}
+
 	/**
 	 * delegated to {@link BoundedCompletionService#take()}
 	 */
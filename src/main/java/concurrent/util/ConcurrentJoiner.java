@@ -0,0 +1,15 @@
+package concurrent.util;
+
+/**
+ * A {@link Joiner} whose join may be called concurrently from many threads
+ * (such as the workers completing the forked tasks); getResult and clear are
+ * called when no join is in progress.
+ * 
+ * @author vmurthy
+ *
+ * @param <InterimResult>
+ * @param <FinalResult>
+ */
+public interface ConcurrentJoiner<InterimResult, FinalResult> extends
+		Joiner<InterimResult, FinalResult> {
+}
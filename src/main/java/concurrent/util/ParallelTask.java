@@ -3,8 +3,12 @@ package concurrent.util;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
@@ -12,72 +16,163 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import lombok.AccessLevel;
 import lombok.experimental.FieldDefaults;
-import lombok.experimental.NonFinal;
+
+/**
+ * ParallelTask runs a collection of callables on an executor with at most a window of them in flight and renders
+ * the results in completion order.
+ * <p>
+ * The admission is a sliding window: the first window of tasks is dispatched when the results are first asked
+ * for and thereafter every completing task admits the next one(s) from its own thread; so the consumer never stalls
+ * on admission and consumes while the tasks are being admitted. The results can be streamed out with
+ * {@link #forEachCompleted(Consumer)} or {@link #spliterator()} as they complete.
+ * <p>
+ * With the adaptive constructor the window moves between a minimum and a maximum based on the observed latency
+ * (dispatch to completion) of the tasks: it grows by one while the latency stays within twice the best seen and
+ * shrinks by a quarter when it does not (typically because the executor is saturated and the tasks queue up).
+ * <p>
+ * The {@link State} and the number of completed tasks are kept in one atomic word; so {@link #isDone()},
+ * {@link #isCancelled()}, {@link #cancel(boolean)} and the progress queries are O(1) and lock-free.
+ */
 @FieldDefaults(level=AccessLevel.PRIVATE,makeFinal=true)
 public class ParallelTask<V> implements Future<Collection<V>> {
+  /**
+   * The life cycle; PENDING till the results are first asked for, RUNNING till all the tasks complete (DONE) or
+   * till cancelled
+   */
+  public enum State {
+    PENDING, RUNNING, DONE, CANCELLED;
+    static final State[] STATES = values();
+  }
 
-  // FutureTask to release Semaphore as completed
-  private class SemaphoreBasedFuture extends FutureTask<V> {
-    SemaphoreBasedFuture(Callable<V> c) { super(c); }
-    SemaphoreBasedFuture(Runnable t, V r) { super(t, r); }
+  // FutureTask that admits the next task(s) as completed
+  private class WindowedFuture extends FutureTask<V> {
+    volatile boolean dispatched;
+    volatile long dispatchedAt;
+    WindowedFuture(Callable<V> c) { super(c); }
+    WindowedFuture(Runnable t, V r) { super(t, r); }
+    void dispatch() {
+      dispatchedAt = System.nanoTime();
+      dispatched = true;
+      try {
+        executor.execute(this);
+      } catch (RejectedExecutionException ree) {
+        rejection.compareAndSet(null, ree);
+        setException(ree);
+      }
+    }
+    void fail(Throwable t) { setException(t); }
     protected void done() {
-      semaphore.release();
+      if (dispatched) {
+        inFlight.decrementAndGet();
+        if (!isCancelled()) adapt(System.nanoTime() - dispatchedAt);
+      }
+      completed();
       responseQueue.add(this);
+      admit();
     }
   }
 
-  List<SemaphoreBasedFuture> requestQueue;
-  BlockingQueue<SemaphoreBasedFuture> responseQueue;
-  Semaphore semaphore;
+  List<WindowedFuture> requestQueue;
+  BlockingQueue<WindowedFuture> responseQueue;
   Executor executor;
   int size;
-  @NonFinal boolean cancelled = false;
+  /**
+   * State ordinal in the upper half and completed count in the lower half
+   */
+  AtomicLong state = new AtomicLong(word(State.PENDING, 0));
+  /**
+   * window bounds and the current window; fixed if min and max are the same
+   */
+  int minWindow;
+  int maxWindow;
+  AtomicInteger window;
+  /**
+   * tasks dispatched and not completed
+   */
+  AtomicInteger inFlight = new AtomicInteger();
+  /**
+   * index of the next task to be admitted
+   */
+  AtomicInteger nextTask = new AtomicInteger();
+  /**
+   * admissions asked for and not yet run; only the caller that moves it from zero admits, the others just count
+   */
+  AtomicInteger admitting = new AtomicInteger();
+  /**
+   * the first rejection by the executor; the tasks not yet admitted fail with it
+   */
+  AtomicReference<RejectedExecutionException> rejection = new AtomicReference<RejectedExecutionException>();
+  /**
+   * best latency seen so far and the count of slow completions since the last shrink of window
+   */
+  AtomicLong bestLatency = new AtomicLong(Long.MAX_VALUE);
+  AtomicInteger slowCompletions = new AtomicInteger();
 
+  /**
+   * Constructor with a fixed window
+   *
+   * @param service executor to run the tasks
+   * @param callable the tasks
+   * @param permits the number of tasks that may be in flight
+   */
   public ParallelTask(Executor service, Collection<Callable<V>> callable, int permits) {
+    this(service, callable, permits, permits);
+  }
+
+  /**
+   * Constructor with a window adapting to the observed latency
+   *
+   * @param service executor to run the tasks
+   * @param callable the tasks
+   * @param minPermits the least number of tasks in flight (also the starting window)
+   * @param maxPermits the most number of tasks in flight
+   */
+  public ParallelTask(Executor service, Collection<Callable<V>> callable, int minPermits, int maxPermits) {
     if (service == null || callable == null) throw new NullPointerException();
-		
+    if (minPermits <= 0 || maxPermits < minPermits) throw new IllegalArgumentException();
+
     executor = service;
-    semaphore = new Semaphore(permits);
+    minWindow = minPermits;
+    maxWindow = maxPermits;
+    window = new AtomicInteger(minPermits);
     size = callable.size();
-    requestQueue = new ArrayList<SemaphoreBasedFuture>(size);
-    responseQueue = new LinkedBlockingQueue<SemaphoreBasedFuture>(size);
+    requestQueue = new ArrayList<WindowedFuture>(size);
+    responseQueue = new LinkedBlockingQueue<WindowedFuture>(Math.max(1, size));
     for (Callable<V> c : callable) {
-      requestQueue.add(new SemaphoreBasedFuture(c));
+      requestQueue.add(new WindowedFuture(c));
     }
   }
 
   public boolean cancel(boolean mayInterruptIfRunning) {
-    if (isDone()) return false;
-    cancelled = true;
+    for (;;) {
+      long current = state.get();
+      State s = stateOf(current);
+      if (s == State.DONE || s == State.CANCELLED) return false;
+      if (state.compareAndSet(current, word(State.CANCELLED, completedOf(current)))) break;
+    }
     for (Future<?> f : requestQueue) {
       f.cancel(mayInterruptIfRunning);
     }
-    return cancelled;
+    return true;
   }
 
   public List<V> get() throws InterruptedException, ExecutionException {
-    List<V> result = new ArrayList<V>(requestQueue.size());
-    boolean done = false;
-    try {
-      for (SemaphoreBasedFuture f : requestQueue) {
-        if (isCancelled()) break;
-        semaphore.acquire();
-        executor.execute(f);
-      }
-      for (int i = 0; i < size; i++) {
-        if (isCancelled()) break;
-        result.add(responseQueue.take().get());
+    final List<V> result = new ArrayList<V>(size);
+    forEachCompleted(new Consumer<V>() {
+      public void accept(V v) {
+        result.add(v);
       }
-      done = true;
-    } finally {
-      if (!done) cancel(true);
-    }
+    });
     return result;
   }
 
@@ -85,42 +180,207 @@ public class ParallelTask<V> implements Future<Collection<V>> {
     throws InterruptedException, ExecutionException, TimeoutException {
     long totalTime = System.nanoTime() + unit.toNanos(timeout);
     boolean done = false;
-    List<V> result = new ArrayList<V>(requestQueue.size());
+    List<V> result = new ArrayList<V>(size);
+    start();
     try {
-      for (SemaphoreBasedFuture f : requestQueue) {
-        if (System.nanoTime() >= totalTime) throw new TimeoutException();
-        if (isCancelled()) break;
-        semaphore.acquire();
-        executor.execute(f);
-      }
       for (int i = 0; i < size; i++) {
         if (isCancelled()) break;
         long nowTime = System.nanoTime();
         if (nowTime >= totalTime) throw new TimeoutException();
-        SemaphoreBasedFuture f = responseQueue.poll(totalTime - nowTime, TimeUnit.NANOSECONDS);
+        WindowedFuture f = responseQueue.poll(totalTime - nowTime, TimeUnit.NANOSECONDS);
         if (f == null) throw new TimeoutException();
         result.add(f.get());
       }
       done = true;
     } finally {
-      //This is the thing; u will need to cancel all tasks if u aren't done	
+      //This is the thing; u will need to cancel all tasks if u aren't done
       if (!done) cancel(true);
     }
     return result;
   }
 
+  /**
+   * Streams the results to the consumer in the order of completion; as they complete. All the tasks are cancelled
+   * if this does not complete normally.
+   *
+   * @param consumer of the results
+   * @throws InterruptedException if interrupted while waiting
+   * @throws ExecutionException if a task failed
+   */
+  public void forEachCompleted(Consumer<? super V> consumer) throws InterruptedException, ExecutionException {
+    if (consumer == null) throw new NullPointerException();
+    boolean done = false;
+    start();
+    try {
+      for (int i = 0; i < size; i++) {
+        if (isCancelled()) break;
+        consumer.accept(responseQueue.take().get());
+      }
+      done = true;
+    } finally {
+      if (!done) cancel(true);
+    }
+  }
+
+  /**
+   * A {@link Spliterator} streaming the results in the order of completion. An interruption or a task failure while
+   * advancing cancels all the tasks and surfaces as {@link CancellationException} or {@link CompletionException}.
+   */
+  public Spliterator<V> spliterator() {
+    start();
+    return new Spliterators.AbstractSpliterator<V>(size, 0) {
+      int delivered = 0;
+
+      public boolean tryAdvance(Consumer<? super V> action) {
+        if (delivered == size || isCancelled()) return false;
+        try {
+          V v = responseQueue.take().get();
+          delivered++;
+          action.accept(v);
+          return true;
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          cancel(true);
+          throw new CancellationException("Interrupted while waiting for a result");
+        } catch (ExecutionException ee) {
+          cancel(true);
+          throw new CompletionException(ee.getCause());
+        }
+      }
+    };
+  }
+
   public boolean isCancelled() {
-    return cancelled;
+    return stateOf(state.get()) == State.CANCELLED;
   }
 
+  /**
+   * As in {@link Future#isDone()}; true if all the tasks completed or if cancelled
+   */
   public boolean isDone() {
-    return responseQueue.size() == size;
+    State s = stateOf(state.get());
+    return s == State.DONE || s == State.CANCELLED;
+  }
+
+  /**
+   * @return the current state
+   */
+  public State getState() {
+    return stateOf(state.get());
+  }
+
+  /**
+   * @return number of tasks completed (including the failed and cancelled ones)
+   */
+  public int getCompletedCount() {
+    return completedOf(state.get());
+  }
+
+  /**
+   * @return the number of tasks
+   */
+  public int getTaskCount() {
+    return size;
   }
-  
+
+  /**
+   * @return the current window
+   */
+  public int getWindow() {
+    return window.get();
+  }
+
+  /**
+   * Dispatches the first window of tasks; only once
+   */
+  private void start() {
+    State next = size == 0 ? State.DONE : State.RUNNING;
+    if (state.compareAndSet(word(State.PENDING, 0), word(next, 0))) admit();
+  }
+
+  /**
+   * Counts a completed task; the last one moves RUNNING to DONE
+   */
+  private void completed() {
+    for (;;) {
+      long current = state.get();
+      State s = stateOf(current);
+      int count = completedOf(current) + 1;
+      State next = s == State.RUNNING && count == size ? State.DONE : s;
+      if (state.compareAndSet(current, word(next, count))) return;
+    }
+  }
+
+  private static long word(State s, int completed) {
+    return (long) s.ordinal() << 32 | completed;
+  }
+
+  private static State stateOf(long word) {
+    return State.STATES[(int) (word >>> 32)];
+  }
+
+  private static int completedOf(long word) {
+    return (int) word;
+  }
+
+  /**
+   * Dispatches the next tasks while there is room in the window. Not recursive: a task completing within a dispatch
+   * (a direct executor or a rejection) calls back in here, which just counts the call and returns; the caller that
+   * admits loops till no call is left uncounted. So the stack stays flat however large the batch.
+   */
+  private void admit() {
+    if (admitting.getAndIncrement() != 0) return;
+    int missed = 1;
+    do {
+      dispatchWhileRoom();
+    } while ((missed = admitting.addAndGet(-missed)) != 0);
+  }
+
+  private void dispatchWhileRoom() {
+    for (;;) {
+      if (isCancelled() || nextTask.get() >= size) return;
+      RejectedExecutionException ree = rejection.get();
+      if (ree != null) {
+        // the executor is rejecting; fail the rest rather than dispatching them
+        for (int index; (index = nextTask.getAndIncrement()) < size;)
+          requestQueue.get(index).fail(ree);
+        return;
+      }
+      int running = inFlight.get();
+      if (running >= window.get()) return;
+      if (!inFlight.compareAndSet(running, running + 1)) continue;
+      int index = nextTask.getAndIncrement();
+      if (index >= size) {
+        inFlight.decrementAndGet();
+        return;
+      }
+      requestQueue.get(index).dispatch();
+    }
+  }
+
+  /**
+   * Grows the window by one while the latency is within twice the best; else shrinks it by a quarter once for
+   * every window number of slow completions.
+   */
+  private void adapt(long latency) {
+    if (minWindow == maxWindow) return;
+    long best = bestLatency.get();
+    while (latency < best && !bestLatency.compareAndSet(best, latency))
+      best = bestLatency.get();
+    best = Math.min(best, latency);
+    int current = window.get();
+    if (latency <= 2 * best) {
+      if (current < maxWindow) window.compareAndSet(current, current + 1);
+    } else if (current > minWindow && slowCompletions.incrementAndGet() >= current) {
+      slowCompletions.set(0);
+      window.compareAndSet(current, Math.max(minWindow, current - Math.max(1, current >> 2)));
+    }
+  }
+
   public static void main(String [] args) throws InterruptedException, ExecutionException, TimeoutException{
 	  ExecutorService service = Executors.newFixedThreadPool(10);
       Collection<Callable<Void>> taskCollection = new ArrayList<Callable<Void>>(10);
       ParallelTask<Void> pTask= new ParallelTask<Void>(service,taskCollection,5);
       List<Void> futures = pTask.get(30, TimeUnit.MINUTES);
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,96 @@
+package concurrent.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+
+/**
+ * A {@link ConcurrentJoiner} for associative joins; every joining thread
+ * accumulates in a partial of its own (so the joins do not contend) and the
+ * partials are combined only at {@link #getResult()}.
+ * <p>
+ * The combine must be associative and the partial from {@link #newPartial()}
+ * must be its identity; the order in which the partials are combined is not
+ * defined.
+ * 
+ * @author vmurthy
+ *
+ * @param <InterimResult>
+ * @param <Partial>
+ * @param <FinalResult>
+ */
+@FieldDefaults(level=AccessLevel.PRIVATE,makeFinal=true)
+public abstract class PartitionedJoiner<InterimResult, Partial, FinalResult>
+		implements ConcurrentJoiner<InterimResult, FinalResult> {
+	/**
+	 * A partial; written only by its own thread
+	 */
+	private static final class Cell<Partial> {
+		volatile Partial value;
+
+		Cell(Partial value) {
+			this.value = value;
+		}
+	}
+
+	/**
+	 * The partials by joining thread
+	 */
+	@NonFinal
+	volatile ConcurrentMap<Thread, Cell<Partial>> partials = new ConcurrentHashMap<Thread, Cell<Partial>>();
+
+	/**
+	 * @return a new (identity) partial
+	 */
+	protected abstract Partial newPartial();
+
+	/**
+	 * Accumulates an interim result in to the partial of the calling thread
+	 * 
+	 * @param partial
+	 * @param interimResult
+	 * @return the partial; may be the same instance if mutable
+	 */
+	protected abstract Partial accumulate(Partial partial,
+			InterimResult interimResult) throws ExecutionException;
+
+	/**
+	 * Combines two partials
+	 * 
+	 * @return combined partial; may be the same instance as one of them if
+	 *         mutable
+	 */
+	protected abstract Partial combine(Partial left, Partial right);
+
+	/**
+	 * @return the final result from the combined partial
+	 */
+	protected abstract FinalResult finish(Partial partial)
+			throws ExecutionException;
+
+	public void clear() {
+		partials = new ConcurrentHashMap<Thread, Cell<Partial>>();
+	}
+
+	public void join(InterimResult interimResult) throws ExecutionException {
+		Thread current = Thread.currentThread();
+		ConcurrentMap<Thread, Cell<Partial>> map = partials;
+		Cell<Partial> cell = map.get(current);
+		if (cell == null) {
+			cell = new Cell<Partial>(newPartial());
+			map.put(current, cell);
+		}
+		cell.value = accumulate(cell.value, interimResult);
+	}
+
+	public FinalResult getResult() throws ExecutionException {
+		Partial result = newPartial();
+		for (Cell<Partial> cell : partials.values())
+			result = combine(result, cell.value);
+		return finish(result);
+	}
+}
@@ -0,0 +1,317 @@
+package concurrent.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * A lock-free counting permit gate; a cheaper stand-in for a {@link Semaphore}
+ * when the permits are mostly available.
+ * <p>
+ * The permits are held in a single CAS counter so an uncontended
+ * acquire/release is one compare-and-set and never touches a queue. Only the
+ * threads that actually have to wait are parked. A release wakes up waiters
+ * only when there are some; every waiter whose count of permits fits in the
+ * ones available (so a waiter for many permits does not hold up the ones for
+ * fewer).
+ * <p>
+ * In the <b>fair</b> mode the waiters are in one FIFO queue and only its head
+ * may take permits; so a newly arriving thread will not barge ahead of the
+ * threads already waiting and the permits are handed over in arrival order
+ * (a head waiting for more permits than available holds up the ones behind,
+ * as in a fair {@link Semaphore}). In the <b>non-fair</b> mode the waiters are
+ * spread over a few stripes (picked by thread id) so that they do not contend
+ * on one queue head, and any thread may grab a permit the moment it is
+ * available.
+ *
+ * @author vmurthy
+ */
+@FieldDefaults(level=AccessLevel.PRIVATE,makeFinal=true)
+public class PermitCounter {
+	/**
+	 * A parked thread and the permits it waits for
+	 */
+	static final class Waiter {
+		final Thread thread;
+		final int permits;
+
+		Waiter(Thread thread, int permits) {
+			this.thread = thread;
+			this.permits = permits;
+		}
+	}
+
+	/**
+	 * The available permits
+	 */
+	AtomicInteger permits;
+	/**
+	 * The number of threads currently parked (or about to park) for permits
+	 */
+	AtomicInteger waiters = new AtomicInteger();
+	/**
+	 * Rotating index used to spread the wake ups over the stripes
+	 */
+	AtomicInteger wakeIndex = new AtomicInteger();
+	/**
+	 * The waiter stripes; just one in the fair mode
+	 */
+	Queue<Waiter>[] stripes;
+	/**
+	 * stripes.length - 1 (stripe count is a power of 2)
+	 */
+	int stripeMask;
+	/**
+	 * Whether new comers must queue up behind the existing waiters
+	 */
+	boolean fair;
+
+	/**
+	 * Constructor
+	 *
+	 * @param permits
+	 *            initial number of permits; must be non-negative
+	 * @param fair
+	 *            true if new comers should not barge ahead of waiters
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public PermitCounter(int permits, boolean fair) {
+		if (permits < 0)
+			throw new IllegalArgumentException("Permits must be non-negative");
+		this.permits = new AtomicInteger(permits);
+		this.fair = fair;
+		int n = 1;
+		while (!fair && n < Runtime.getRuntime().availableProcessors() && n < 64)
+			n <<= 1;
+		stripes = new Queue[n];
+		for (int i = 0; i < n; i++)
+			stripes[i] = new ConcurrentLinkedQueue<Waiter>();
+		stripeMask = n - 1;
+	}
+
+	/**
+	 * Acquires one permit; waiting if needed
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public void acquire() throws InterruptedException {
+		acquire(1);
+	}
+
+	/**
+	 * Acquires the given number of permits all at once; waiting if needed
+	 *
+	 * @param n
+	 *            number of permits
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public void acquire(int n) throws InterruptedException {
+		if (Thread.interrupted())
+			throw new InterruptedException();
+		if ((!fair || waiters.get() == 0) && tryTake(n))
+			return;
+		doAcquire(n, false, 0L);
+	}
+
+	/**
+	 * Acquires the given number of permits all at once if they become
+	 * available within the given time
+	 *
+	 * @param n
+	 *            number of permits
+	 * @param timeout
+	 *            the time to wait
+	 * @param unit
+	 *            unit of timeout
+	 * @return true if acquired
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public boolean tryAcquire(int n, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		if (Thread.interrupted())
+			throw new InterruptedException();
+		if ((!fair || waiters.get() == 0) && tryTake(n))
+			return true;
+		return doAcquire(n, true, unit.toNanos(timeout));
+	}
+
+	/**
+	 * Acquires the given number of permits only if available right away.
+	 * Note: just as {@link Semaphore#tryAcquire()} this barges even in fair
+	 * mode.
+	 *
+	 * @param n
+	 *            number of permits
+	 * @return true if acquired
+	 */
+	public boolean tryAcquire(int n) {
+		return tryTake(n);
+	}
+
+	/**
+	 * Acquires as many permits as available right now, but not more than max.
+	 * In the fair mode none are taken while threads are waiting.
+	 *
+	 * @param max
+	 *            upper limit on permits to be taken
+	 * @return the number of permits taken; may be 0
+	 */
+	public int drainPermits(int max) {
+		if (fair && waiters.get() > 0)
+			return 0;
+		for (;;) {
+			int available = permits.get();
+			int take = Math.min(available, max);
+			if (take <= 0)
+				return 0;
+			if (permits.compareAndSet(available, available - take))
+				return take;
+		}
+	}
+
+	/**
+	 * Releases one permit
+	 */
+	public void release() {
+		release(1);
+	}
+
+	/**
+	 * Releases the given number of permits and wakes up the waiters they fit
+	 *
+	 * @param n
+	 *            number of permits
+	 */
+	public void release(int n) {
+		if (n < 0)
+			throw new IllegalArgumentException();
+		if (n == 0)
+			return;
+		permits.addAndGet(n);
+		if (waiters.get() > 0)
+			signalWaiters();
+	}
+
+	/**
+	 * @return the currently available permits
+	 */
+	public int availablePermits() {
+		return permits.get();
+	}
+
+	/**
+	 * @return true if fair
+	 */
+	public boolean isFair() {
+		return fair;
+	}
+
+	/**
+	 * @return an estimate of the number of waiting threads
+	 */
+	public int getWaiterCount() {
+		return waiters.get();
+	}
+
+	/**
+	 * CAS loop to take n permits
+	 */
+	private boolean tryTake(int n) {
+		for (;;) {
+			int available = permits.get();
+			if (available < n)
+				return false;
+			if (permits.compareAndSet(available, available - n))
+				return true;
+		}
+	}
+
+	/**
+	 * The slow path; the current thread parks in its stripe until it gets the
+	 * permits, times out or is interrupted. In the fair mode it takes only
+	 * when at the head of the queue.
+	 */
+	private boolean doAcquire(int n, boolean timed, long nanos)
+			throws InterruptedException {
+		final long deadline = timed ? System.nanoTime() + nanos : 0L;
+		final Waiter waiter = new Waiter(Thread.currentThread(), n);
+		final Queue<Waiter> stripe = stripes[stripeFor(waiter.thread)];
+		// enqueue first and then announce; so a releaser that sees the
+		// announcement will also find this thread in a stripe
+		stripe.add(waiter);
+		waiters.incrementAndGet();
+		try {
+			for (;;) {
+				if ((!fair || stripe.peek() == waiter) && tryTake(n))
+					return true;
+				if (timed) {
+					nanos = deadline - System.nanoTime();
+					if (nanos <= 0L)
+						return false;
+					LockSupport.parkNanos(this, nanos);
+				} else
+					LockSupport.park(this);
+				if (Thread.interrupted())
+					throw new InterruptedException();
+			}
+		} finally {
+			stripe.remove(waiter);
+			waiters.decrementAndGet();
+			// pass on the wake up if there are still permits for others
+			// (also covers a wake up consumed by a timed out/interrupted one
+			// and, in the fair mode, a new head)
+			if (permits.get() > 0 && waiters.get() > 0)
+				signalWaiters();
+		}
+	}
+
+	/**
+	 * Wakes up the waiters the available permits fit; in the fair mode just
+	 * the head, if they fit it. In the non-fair mode every waiter whose count
+	 * fits in what is left after the ones woken before it, scanning from a
+	 * rotating stripe; so a waiter for more permits than available never
+	 * swallows the wake up of one for fewer.
+	 */
+	private void signalWaiters() {
+		int available = permits.get();
+		if (fair) {
+			Waiter head = stripes[0].peek();
+			if (head != null && head.permits <= available)
+				LockSupport.unpark(head.thread);
+			return;
+		}
+		int start = wakeIndex.getAndIncrement();
+		for (int i = 0; i <= stripeMask && available > 0; i++) {
+			for (Waiter waiter : stripes[(start + i) & stripeMask]) {
+				if (waiter.permits <= available) {
+					LockSupport.unpark(waiter.thread);
+					available -= waiter.permits;
+					if (available <= 0)
+						break;
+				}
+			}
+		}
+	}
+
+	private int stripeFor(Thread thread) {
+		long id = thread.getId();
+		int h = (int) (id ^ (id >>> 32));
+		h ^= (h >>> 16);
+		return (h * 0x9E3779B9) >>> 16 & stripeMask;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + "[Permits = " + permits.get() + ", Waiters = "
+				+ waiters.get() + (fair ? ", fair]" : ", non-fair]");
+	}
+}
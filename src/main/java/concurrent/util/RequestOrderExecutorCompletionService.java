@@ -1,16 +1,26 @@
 package concurrent.util;
 
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import lombok.AccessLevel;
 import lombok.experimental.FieldDefaults;
@@ -18,108 +28,346 @@ import lombok.experimental.FieldDefaults;
 /**
  * RequestOrderExecutorCompletionService; as the name implies is an {@link CompletionService} implementation <br>
  * that <b>renders the result (in the take/poll methods) of each task in the same order as the request task submission</b>.
- * 
+ * <p>
+ * It works as a re-order buffer: every submitted task gets a sequence number and on completion the task lands
+ * in a ring slot indexed by its sequence. The consumers advance a head sequence with a CAS; so two consumers can
+ * never get the same future and a consumer never blocks on a future that is not done.
+ * <p>
+ * A <b>window</b> bounds how far ahead of the head the execution may run; tasks submitted beyond the window are
+ * held back (not executed) until the head catches up. Submission itself never blocks.
+ *
  * @author vmurthy
  *
  * @param <V>
  */
 @FieldDefaults(level=AccessLevel.PRIVATE,makeFinal=true)
-public class RequestOrderExecutorCompletionService<V> implements CompletionService<V> {
+public class RequestOrderExecutorCompletionService<V> implements CompletionService<V>, Iterable<Future<V>> {
+    /**
+     * Default window of execution ahead of the head
+     */
+    public static final int DEFAULT_WINDOW = 1024;
+
+    /**
+     * A {@link FutureTask} that knows its request sequence and publishes itself to the ring when done
+     */
+    private class SequencedFuture extends FutureTask<V> {
+        final long       sequence;
+        volatile boolean dispatched;
+
+        SequencedFuture(Callable<V> callable, long sequence) {
+            super(callable);
+            this.sequence = sequence;
+        }
+
+        /**
+         * Completes this with the rejection so that the request order is not held up by a hole
+         */
+        void rejected(RejectedExecutionException ree) {
+            setException(ree);
+        }
+
+        @Override
+        protected void done() {
+            // a task cancelled while held back is published when dispatched
+            if (dispatched) publish(this);
+        }
+    }
+
     /**
      * executor that needs to be wrapped
      */
-    Executor                 executor;
+    Executor                                      executor;
+    /**
+     * The completed futures indexed by sequence (modulo the ring length)
+     */
+    AtomicReferenceArray<SequencedFuture>         ring;
+    /**
+     * ring length - 1
+     */
+    int                                           mask;
     /**
-     * requestTaskQueue basically holds the Futures in the order of
-     *              requests that are taken
+     * the number of sequences the execution may run ahead of head
      */
-    BlockingQueue<Future<V>> requestTaskQueue;
+    int                                           window;
+    /**
+     * the room that must open up in the window before the held back tasks are let through (as a batch)
+     */
+    int                                           refill;
+    /**
+     * next sequence to be given to a submitted task
+     */
+    AtomicLong                                    tail     = new AtomicLong();
+    /**
+     * next sequence to be handed to a consumer
+     */
+    AtomicLong                                    head     = new AtomicLong();
+    /**
+     * next sequence to be dispatched to the executor; tasks are dispatched in sequence
+     */
+    AtomicLong                                    cursor   = new AtomicLong();
+    /**
+     * tasks submitted but not yet dispatched; kept by sequence
+     */
+    ConcurrentMap<Long, SequencedFuture>          heldBack = new ConcurrentHashMap<Long, SequencedFuture>();
+    /**
+     * Lock and condition used only by consumers that have to wait for the head
+     */
+    Lock                                          headLock = new ReentrantLock();
+    Condition                                     headDone = headLock.newCondition();
+    /**
+     * number of consumers waiting on {@link #headDone}
+     */
+    AtomicInteger                                 waiters  = new AtomicInteger();
 
     /**
-     * Ctor
-     * As expected; the Blocking Queue will need to maintain request order (such as LinkedBlockingQueue)
+     * Ctor with a {@link #DEFAULT_WINDOW}
      * @param executor
      */
     public RequestOrderExecutorCompletionService(Executor executor) {
+        this(executor, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Ctor
+     *
+     * @param executor
+     * @param window
+     *            is the number of tasks that may execute ahead of the next one to be taken
+     */
+    public RequestOrderExecutorCompletionService(Executor executor, int window) {
         if (executor == null) throw new NullPointerException();
+        if (window <= 0) throw new IllegalArgumentException("window must be positive");
         this.executor = executor;
-        this.requestTaskQueue = new LinkedBlockingQueue<Future<V>>();
+        this.window = window;
+        this.refill = window >> 2;
+        int length = 1;
+        while (length < window)
+            length <<= 1;
+        this.ring = new AtomicReferenceArray<SequencedFuture>(length);
+        this.mask = length - 1;
     }
 
     /**
      * Ctor
-     * 
+     *
      * @param executor
      * @param requestQueue
      *            could be a BlockingQueue that adheres to order of insertion
+     * @deprecated the request order is now kept by sequence; the queue is not used except that a bounded
+     *             queue's capacity is taken as the window. Use {@link #RequestOrderExecutorCompletionService(Executor, int)}
      */
+    @Deprecated
     public RequestOrderExecutorCompletionService(Executor executor,
             BlockingQueue<Future<V>> requestQueue) {
-        if (executor == null || requestQueue == null)
-            throw new NullPointerException();
-        this.executor = executor;
-        this.requestTaskQueue = requestQueue;
+        this(executor, windowOf(requestQueue));
+    }
+
+    private static int windowOf(BlockingQueue<?> requestQueue) {
+        if (requestQueue == null) throw new NullPointerException();
+        int capacity = requestQueue.remainingCapacity();
+        return capacity > 0 && capacity < Integer.MAX_VALUE ? capacity : DEFAULT_WINDOW;
     }
 
     /**
-     * In this method we just add the future task to {@link #requestTaskQueue}.<br>
-     * This {@link #requestTaskQueue} also serves as the response queue
+     * In this method the task gets the next sequence and is executed right away if it is within the window
+     * else it is held back till the head moves up. A task rejected by the executor is rendered in its turn as
+     * a future failed with the {@link RejectedExecutionException}.
      */
     public Future<V> submit(Callable<V> task) {
         if (task == null) throw new NullPointerException();
-        FutureTask<V> futureTask = new FutureTask<V>(task);
-        requestTaskQueue.add(futureTask);
-        executor.execute(futureTask);
-        return futureTask;
+        long sequence = tail.getAndIncrement();
+        SequencedFuture future = new SequencedFuture(task, sequence);
+        if (sequence - head.get() < window && cursor.compareAndSet(sequence, sequence + 1)) {
+            dispatch(future);
+            // a later submitter may have missed the cursor and held back its task
+            if (cursor.get() < tail.get()) dispatchHeldBack(0);
+        } else {
+            heldBack.put(sequence, future);
+            // head might have moved up meanwhile
+            dispatchHeldBack(0);
+        }
+        return future;
     }
 
     /**
-     * In this method we just add the future task to {@link #requestTaskQueue}.<br>
-     * This {@link #requestTaskQueue} also serves as the response queue
+     * see {@link #submit(Callable)}
      */
     public Future<V> submit(Runnable task, V result) {
         return submit(Executors.callable(task, result));
     }
 
     /**
-     * The future will be first got
+     * Waits till the future of the next request in order is done
      */
     public Future<V> take() throws InterruptedException {
-        Future<V> future = requestTaskQueue.take();
-        try {
-            future.get();
-        } catch (ExecutionException e) {
+        for (;;) {
+            Future<V> future = poll();
+            if (future != null) return future;
+            headLock.lockInterruptibly();
+            waiters.incrementAndGet();
+            try {
+                while (!isHeadDone())
+                    headDone.await();
+            } finally {
+                waiters.decrementAndGet();
+                headLock.unlock();
+            }
         }
-        return future;
     }
 
     /**
-     * Poll will basically check if it is really ready/done (so do a peek)and then do an actual poll
+     * Poll will return the future of the next request in order only if it is done
      */
     public Future<V> poll() {
-        Future<V> future = requestTaskQueue.peek();
-        if (future != null) if (future.isDone())
-            requestTaskQueue.poll();
-        else
-            future = null;
-        return future;
+        for (;;) {
+            long h = head.get();
+            int slot = (int) h & mask;
+            SequencedFuture future = ring.get(slot);
+            if (future == null || future.sequence != h) return null;
+            if (head.compareAndSet(h, h + 1)) {
+                ring.compareAndSet(slot, future, null);
+                headMoved();
+                return future;
+            }
+        }
     }
 
     /**
-     * If after peeking u get a non null future; then wait on it and return
+     * Waits upto the given time for the future of the next request in order to be done
      */
     public Future<V> poll(long timeout, TimeUnit unit)
             throws InterruptedException {
-        Future<V> future = requestTaskQueue.peek();
-        if (future != null) try {
-            future.get(timeout, unit);
-            requestTaskQueue.poll();
-        } catch (TimeoutException e) {
-            future = null; // dont poll in this case this can be valid; u just
-            // need to retry
-        } catch (ExecutionException ee) {
-            requestTaskQueue.poll();
+        long nanos = unit.toNanos(timeout);
+        final long deadline = System.nanoTime() + nanos;
+        for (;;) {
+            Future<V> future = poll();
+            if (future != null) return future;
+            headLock.lockInterruptibly();
+            waiters.incrementAndGet();
+            try {
+                while (!isHeadDone()) {
+                    nanos = deadline - System.nanoTime();
+                    if (nanos <= 0L) return null;
+                    headDone.awaitNanos(nanos);
+                }
+            } finally {
+                waiters.decrementAndGet();
+                headLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * An in order iterator of the futures submitted; {@link Iterator#next()} waits till the next one in order is
+     * done. {@link Iterator#hasNext()} is true as long as there are submitted futures not yet taken and hence this is
+     * meant for a single consumer.
+     */
+    public Iterator<Future<V>> iterator() {
+        return new Iterator<Future<V>>() {
+            public boolean hasNext() {
+                return head.get() < tail.get();
+            }
+
+            public Future<V> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                try {
+                    return take();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new NoSuchElementException("Interrupted while waiting for the next future");
+                }
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * An ordered {@link Spliterator} over {@link #iterator()}
+     */
+    public Spliterator<Future<V>> spliterator() {
+        return Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED | Spliterator.NONNULL);
+    }
+
+    /**
+     * @return number of futures submitted and not yet taken
+     */
+    public long pending() {
+        return tail.get() - head.get();
+    }
+
+    /**
+     * @return the window
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    private boolean isHeadDone() {
+        long h = head.get();
+        SequencedFuture future = ring.get((int) h & mask);
+        return future != null && future.sequence == h;
+    }
+
+    private void dispatch(SequencedFuture future) {
+        future.dispatched = true;
+        if (future.isDone()) // cancelled while held back
+            publish(future);
+        else
+            try {
+                executor.execute(future);
+            } catch (RejectedExecutionException ree) {
+                future.rejected(ree);
+            }
+    }
+
+    /**
+     * Dispatches the held back tasks (in sequence) that now fall within the window provided at least room number
+     * of sequences are free. Only the one that moves the {@link #cursor} past a task dispatches it; and a task that
+     * is yet to be put in {@link #heldBack} is dispatched by its submitter.
+     */
+    private void dispatchHeldBack(int room) {
+        if (cursor.get() - head.get() >= window - room) return;
+        for (;;) {
+            long next = cursor.get();
+            if (next - head.get() >= window) return;
+            SequencedFuture future = heldBack.get(next);
+            if (future == null) return;
+            if (cursor.compareAndSet(next, next + 1)) {
+                heldBack.remove(next);
+                dispatch(future);
+            }
+        }
+    }
+
+    /**
+     * Puts the done future to its slot. A slot only ever moves to a higher sequence so a late (repeated) publish
+     * cannot hide a newer one.
+     */
+    private void publish(SequencedFuture future) {
+        int slot = (int) future.sequence & mask;
+        for (;;) {
+            SequencedFuture current = ring.get(slot);
+            if (current != null && current.sequence >= future.sequence) break;
+            if (ring.compareAndSet(slot, current, future)) break;
+        }
+        // only the head being done is of interest to the waiters
+        if (waiters.get() > 0 && head.get() == future.sequence) signalWaiters();
+    }
+
+    private void headMoved() {
+        if (cursor.get() < tail.get()) dispatchHeldBack(refill);
+        if (waiters.get() > 0 && isHeadDone()) signalWaiters();
+    }
+
+    private void signalWaiters() {
+        headLock.lock();
+        try {
+            headDone.signalAll();
+        } finally {
+            headLock.unlock();
         }
-        return future;
     }
 }
@@ -1,126 +1,165 @@
 package concurrent.util;
 
+import java.util.Collections;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import lombok.AccessLevel;
 import lombok.experimental.FieldDefaults;
 import lombok.extern.log4j.Log4j2;
+
+/**
+ * A {@link ForkJoiner} where the forker runs on a pool and submits the forked
+ * tasks in a transaction of a {@link TransactionalCompletionService} while the
+ * calling thread joins the interim results as they complete.
+ * <p>
+ * Constructed with a shared pool, every execute gets a transaction (service)
+ * of its own over the pool; so a single instance can serve any number of
+ * concurrent executes provided each of them passes its own joiner instance.
+ * Constructed with a given {@link TransactionalCompletionService}, the executes
+ * share that one transaction and hence are run one after the other.
+ */
 @Log4j2
 @FieldDefaults(level=AccessLevel.PRIVATE,makeFinal=true)
 public class SimpleForkJoiner<Task, InterimResult, FinalResult> implements
 		ForkJoiner<Task, InterimResult, FinalResult> {
 	/**
-	 * A Transactional Service that works multiple similar tasks
+	 * A Transactional Service that works multiple similar tasks; null if a
+	 * service is made per execute
 	 */
 	TransactionalCompletionService<InterimResult> transactionalForkedTaskService;
 	/**
-	 * A local completion service to control request submission and results gathering 
+	 * The pool running the forkers (and the forked tasks if a service is made
+	 * per execute)
+	 */
+	ExecutorService threadPool;
+	/**
+	 * Whether the pool is owned (and hence shut down) by this
 	 */
-	@SuppressWarnings({ "rawtypes" })
-	CompletionService localCompletionService;
+	boolean ownPool;
 	/**
-	 * A local threadPool
+	 * Serializes the executes sharing the given transactional service
 	 */
-	ThreadPoolExecutor threadPool;
+	Lock executeLock = new ReentrantLock();
+	/**
+	 * The transactions in progress; for cancel
+	 */
+	Set<TransactionalCompletionService<InterimResult>> transactions = Collections
+			.newSetFromMap(new ConcurrentHashMap<TransactionalCompletionService<InterimResult>, Boolean>());
 
 	/**
-	 * Constructor
+	 * Constructor with a transactional service shared by all executes
 	 */
-	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public SimpleForkJoiner(
 			TransactionalCompletionService<InterimResult> transactionalCompletionService) {
 		if (transactionalCompletionService == null)
 			throw new NullPointerException();
 		transactionalForkedTaskService = transactionalCompletionService;
 		threadPool = new ThreadPoolExecutor(2, 2, Long.MAX_VALUE,
-				TimeUnit.MICROSECONDS, new ArrayBlockingQueue(2),
+				TimeUnit.MICROSECONDS, new ArrayBlockingQueue<Runnable>(2),
 				SimpleThreadFactory.of());
-		localCompletionService = new ExecutorCompletionService(threadPool);
+		ownPool = true;
 	}
+
+	/**
+	 * Constructor with a shared pool; which is not shut down by
+	 * {@link #shutdown()}. Each execute gets its own transaction over this pool.
+	 * Note: the forker of each execute occupies a thread of the pool till it is
+	 * done forking.
+	 */
+	public SimpleForkJoiner(ExecutorService sharedPool) {
+		if (sharedPool == null)
+			throw new NullPointerException();
+		transactionalForkedTaskService = null;
+		threadPool = sharedPool;
+		ownPool = false;
+	}
+
 	/**
 	 * Execute
 	 */
-	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public FinalResult execute(final Task task,
 			final Forker<Task, InterimResult> forker,
 			final Joiner<InterimResult, FinalResult> joiner)
 			throws ExecutionException {
-		
+
 		if (task == null || forker == null || joiner == null)
 			throw new NullPointerException();
-		
-		FinalResult result = null;
-		int tasksPending = 0;
-		
-		Future<FinalResult> finalResult = null;
-		
-		transactionalForkedTaskService.startTransaction();
-		
-		localCompletionService.submit(new Callable() {
-			public Object call() throws Exception {
-				transactionalForkedTaskService.startTransaction();
-				forker.fork(task, transactionalForkedTaskService);
-				transactionalForkedTaskService.endTransaction();
-				return null;
-			}
-		});
-		// Always clear before use
-		joiner.clear();
-		// Now submit the Joiner callable
-		finalResult = localCompletionService
-				.submit(new Callable<FinalResult>() {
-					public FinalResult call() throws Exception {
-						while (!transactionalForkedTaskService.isTransactionFinished()) {
-							Future<InterimResult> interimResult = transactionalForkedTaskService
-									.take();
-							if (interimResult != null)
-								joiner.join(interimResult.get());
-							else
-								log.warn("Null Future from forker Callable");
-						}
-						return joiner.getResult();
-					}
-				});
-		tasksPending = 2; 
-		// upon
+
+		if (transactionalForkedTaskService == null)
+			return execute(task, forker, joiner,
+					new SimpleTransactionalCompletionService<InterimResult>(
+							new ExecutorCompletionService<InterimResult>(threadPool)));
+		executeLock.lock();
 		try {
-			while (tasksPending > 0) {
-				Future future = localCompletionService.take();
-				--tasksPending;
-				future.get();
-			}
-		} catch (Throwable throwable) {
-			transactionalForkedTaskService.cancelTransaction();
-			// Drain the internalCompletionService
-			while (tasksPending > 0)
-				try {
-					localCompletionService.take();
-					--tasksPending;
-				} catch (InterruptedException interruptedException) {
-					// We cannot bail from here. The completion service must be
-					// completely drained.
-				}
-			throw new ExecutionException(throwable);
+			return execute(task, forker, joiner, transactionalForkedTaskService);
+		} finally {
+			executeLock.unlock();
 		}
+	}
+
+	private FinalResult execute(final Task task,
+			final Forker<Task, InterimResult> forker,
+			final Joiner<InterimResult, FinalResult> joiner,
+			final TransactionalCompletionService<InterimResult> service)
+			throws ExecutionException {
+		transactions.add(service);
 		try {
-			result = finalResult.get();
-		} catch (InterruptedException interruptedException) {
-			throw new ExecutionException(interruptedException);
+			service.startTransaction();
+			Future<Void> forked = threadPool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					boolean forkedAll = false;
+					try {
+						forker.fork(task, service);
+						forkedAll = true;
+					} finally {
+						// lets the joiner finish either way
+						if (forkedAll)
+							service.endTransaction();
+						else
+							service.cancelTransaction();
+					}
+					return null;
+				}
+			});
+			// Always clear before use
+			joiner.clear();
+			try {
+				while (!service.isTransactionFinished()) {
+					Future<InterimResult> interimResult = service.take();
+					if (interimResult != null)
+						joiner.join(interimResult.get());
+					else
+						log.warn("Null Future from forker Callable");
+				}
+				forked.get();
+			} catch (Throwable throwable) {
+				service.cancelTransaction();
+				forked.cancel(true);
+				throw new ExecutionException(throwable);
+			}
+			return joiner.getResult();
+		} finally {
+			transactions.remove(service);
 		}
-		return result;
 	}
 
 	/**
-	 * shuts down any resources here
+	 * shuts down the pool if owned
 	 */
 	public void shutdown() {
+		if (!ownPool)
+			return;
 		threadPool.shutdown();
 		try {
 			threadPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
@@ -130,9 +169,10 @@ public class SimpleForkJoiner<Task, InterimResult, FinalResult> implements
 	}
 
 	/**
-	 * Cancel the splitter completion service
+	 * Cancel the transactions in progress
 	 */
 	public void cancel() {
-		transactionalForkedTaskService.cancelTransaction();
+		for (TransactionalCompletionService<InterimResult> service : transactions)
+			service.cancelTransaction();
 	}
-}
\ No newline at end of file
+}
@@ -1,13 +1,15 @@
 package concurrent.util;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -20,6 +22,18 @@ import lombok.extern.log4j.Log4j2;
 /**
  * An implementation of {@link TransactionalCompletionService}. Most method
  * actions are delegated to a delegateCompletionService
+ * <p>
+ * A taker first <i>claims</i> one of the submitted-but-not-yet-taken futures
+ * and then blocks on the delegate's own take; hence it wakes up as soon as a
+ * task completes. A taker with nothing to claim waits on the
+ * {@link #claimable} condition which is signalled by a submit, by the end
+ * (or cancel) of the transaction and, after the end, by the take out of the
+ * last pending future.
+ * <p>
+ * The futures in flight are tracked by a counter (for the transaction state)
+ * and a concurrent registry (for cancel) so that submit, take/poll and
+ * cancel are O(1) and submit and take/poll do not take the
+ * {@link #serviceLock} unless a taker has to wait.
  * 
  * @author vmurthy
  */
@@ -37,21 +51,34 @@ public class SimpleTransactionalCompletionService<V> implements
 	 */
 	CompletionService<V> delegateCompletionService;
 	/**
-	 * A List of future objects
+	 * Number of submitted futures that are yet to be taken/polled out
 	 */
-	List<Future<V>> futureQueue;
+	AtomicInteger pendingFutures;
 	/**
-	 * A {@link Lock} object used to control thread safety in accessing methods.
+	 * Registry of the futures in flight (keys compare by identity as futures
+	 * do not override equals). A value of {@link Boolean#TRUE} is a submitted
+	 * future and {@link Boolean#FALSE} is a tomb stone for a future that got
+	 * taken out even before its submit could register it.
+	 */
+	ConcurrentMap<Future<V>, Boolean> futureRegistry;
+	/**
+	 * A {@link Lock} object for the {@link #claimable} condition and for the
+	 * start of transaction.
 	 */
 	Lock serviceLock;
-
 	/**
-	 * A poll duration to be used in take method,<br>
-	 * TBD: (Do i need to make this configurable?)
-	 * 
-	 * @see #take()
+	 * Signalled when a future becomes claimable, the transaction ends or an
+	 * ended transaction gets finished
 	 */
-	static int defaultPollDurationInMilliSeconds = 20;
+	Condition claimable;
+	/**
+	 * Number of submitted futures that are not yet claimed by a take/poll
+	 */
+	AtomicInteger unclaimedFutures;
+	/**
+	 * Number of takers waiting on {@link #claimable}
+	 */
+	AtomicInteger waitingTakers;
 
 	/**
 	 * Constructor. It has a waitingQueue for tasks and receives a delegate
@@ -66,38 +93,52 @@ public class SimpleTransactionalCompletionService<V> implements
 			throw new NullPointerException(
 					"Delegate CompletionService cannot be null");
 		this.delegateCompletionService = completionService;
-		// Make sure the futureQueue is synchronized
-		futureQueue = Collections.synchronizedList(new ArrayList<Future<V>>());
+		pendingFutures = new AtomicInteger();
+		futureRegistry = new ConcurrentHashMap<Future<V>, Boolean>();
 		serviceLock = new ReentrantLock();
+		claimable = serviceLock.newCondition();
+		unclaimedFutures = new AtomicInteger();
+		waitingTakers = new AtomicInteger();
 	}
 
 	/**
-	 * Awaits for the {@link #serviceLock} to be available before submitting.
-	 * Additionally validates for if this service is in transaction
+	 * Validates for if this service is in transaction before submitting.
+	 * <p>
+	 * The transaction is checked before the pending count is raised; so a
+	 * submit outside a transaction never shows up in the count (where a
+	 * concurrent {@link #startTransaction()} would take it for a pending
+	 * future). It is checked again after, so that a transaction seen as
+	 * finished cannot get a future later.
 	 */
 	public Future<V> submit(Callable<V> task) {
+		checkInTransaction();
+		pendingFutures.incrementAndGet();
 		Future<V> future = null;
 		try {
-			serviceLock.lockInterruptibly();
-			if (!isInTransaction)
-				throw new IllegalStateException(
-						"The "
-								+ getClass().getName()
-								+ " is not in transaction. Please make sure to call startTransaction");
+			checkInTransaction();// ended meanwhile
 			if (log.isDebugEnabled())
 				log.debug("Submitting " + task);
 			future = delegateCompletionService.submit(task);
-			futureQueue.add(future);
-		} catch (InterruptedException ie) {
-		} finally {
-			serviceLock.unlock();
+		} catch (RuntimeException re) {
+			released();
+			throw re;
 		}
+		register(future);
+		unclaimedFutures.incrementAndGet();
+		signalTaker();
 		return future;
 	}
 
+	private void checkInTransaction() {
+		if (!isInTransaction)
+			throw new IllegalStateException(
+					"The "
+							+ getClass().getName()
+							+ " is not in transaction. Please make sure to call startTransaction");
+	}
+
 	/**
-	 * Awaits for the {@link #serviceLock} to be available before submitting.
-	 * Additionally validates for if this service is in transaction
+	 * Validates for if this service is in transaction before submitting.
 	 * 
 	 * @param task
 	 *            is a {@link Runnable} that would be made to a callable
@@ -114,69 +155,200 @@ public class SimpleTransactionalCompletionService<V> implements
 	}
 
 	/**
-	 * take method is slightly modified to make use of a poll with a duration.
-	 * and hence doesnt delegate to the take method of
-	 * {@link #delegateCompletionService}.
+	 * take method claims a submitted future and then waits on the
+	 * {@link #delegateCompletionService} take; so it wakes up right when a task
+	 * completes.
 	 * 
 	 * <p>
-	 * The reason being we need to take the transaction finished state into
-	 * consideration.
+	 * If there is nothing to claim, it waits till a submit happens or till the
+	 * transaction ends (in which case null is returned as nothing more would
+	 * come).
+	 * <p>
+	 * Note that a null only says there is nothing left to claim; the futures
+	 * claimed by the other takers may still be pending, so the transaction is
+	 * not necessarily finished (see {@link #isTransactionFinished()}).
 	 */
 	public Future<V> take() throws InterruptedException {
-		Future<V> future = null;
-		while (future == null && !isTransactionFinished()) {
-			if (log.isDebugEnabled())
-				log.debug("Trying to take.. ");
-			future = poll();
-			if (future == null) {
-				synchronized (this) {
-					this.wait(
-							defaultPollDurationInMilliSeconds);
+		for (;;) {
+			if (tryClaim()) {
+				Future<V> future;
+				try {
+					future = delegateCompletionService.take();
+				} catch (InterruptedException ie) {
+					unclaim();
+					throw ie;
 				}
+				retrieved(future);
+				return future;
+			}
+			serviceLock.lockInterruptibly();
+			waitingTakers.incrementAndGet();
+			try {
+				while (unclaimedFutures.get() == 0) {
+					if (!isInTransaction)
+						return null;
+					if (log.isDebugEnabled())
+						log.debug("Waiting to take.. ");
+					claimable.await();
+				}
+			} finally {
+				waitingTakers.decrementAndGet();
+				serviceLock.unlock();
 			}
 		}
-		return future;
 	}
 
 	/**
-	 * The poll method awaits for the lock to be available before making the
+	 * The poll method claims a submitted future (if any) before making the
 	 * poll call on the {@link #delegateCompletionService}
 	 */
 	public Future<V> poll() {
-		Future<V> future = null;
-		try {
+		if (!tryClaim())
+			return null;
+		if (log.isDebugEnabled())
+			log.debug("Trying to poll..");
+		Future<V> future = delegateCompletionService.poll();
+		if (future != null)
+			retrieved(future);
+		else
+			unclaim();
+		return future;
+	}
+
+	/**
+	 * The poll method claims a submitted future (waiting for a submit if
+	 * needed) before making the timed poll call on the
+	 * {@link #delegateCompletionService}
+	 */
+	public Future<V> poll(long timeOut, TimeUnit unit)
+			throws InterruptedException {
+		long nanos = unit.toNanos(timeOut);
+		final long deadline = System.nanoTime() + nanos;
+		for (;;) {
+			if (tryClaim()) {
+				Future<V> future;
+				try {
+					future = delegateCompletionService.poll(
+							deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+				} catch (InterruptedException ie) {
+					unclaim();
+					throw ie;
+				}
+				if (future != null)
+					retrieved(future);
+				else
+					unclaim();
+				return future;
+			}
 			serviceLock.lockInterruptibly();
-			if (log.isDebugEnabled())
-				log.debug("Trying to poll..");
-			future = delegateCompletionService.poll();
-			if (future != null)
-				futureQueue.remove(future);
-		} catch (InterruptedException ie) {
-			// What should we do here?
+			waitingTakers.incrementAndGet();
+			try {
+				while (unclaimedFutures.get() == 0) {
+					nanos = deadline - System.nanoTime();
+					if (!isInTransaction || nanos <= 0L)
+						return null;
+					claimable.awaitNanos(nanos);
+				}
+			} finally {
+				waitingTakers.decrementAndGet();
+				serviceLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Claims one unclaimed future, if any
+	 * 
+	 * @return true if claimed
+	 */
+	private boolean tryClaim() {
+		for (;;) {
+			int unclaimed = unclaimedFutures.get();
+			if (unclaimed == 0)
+				return false;
+			if (unclaimedFutures.compareAndSet(unclaimed, unclaimed - 1))
+				return true;
+		}
+	}
+
+	/**
+	 * Registers a submitted future; unless it has already been taken out (in
+	 * which case the tomb stone is cleared).
+	 */
+	private void register(Future<V> future) {
+		if (futureRegistry.putIfAbsent(future, Boolean.TRUE) != null)
+			futureRegistry.remove(future);
+	}
+
+	/**
+	 * Un-registers a future got from the delegate. As a fast task may get
+	 * completed before its submit has registered it, a tomb stone is left for
+	 * the submit to clear.
+	 */
+	private void retrieved(Future<V> future) {
+		if (futureRegistry.remove(future) == null
+				&& futureRegistry.putIfAbsent(future, Boolean.FALSE) != null)
+			futureRegistry.remove(future);
+		released();
+	}
+
+	/**
+	 * Counts a pending future out; the last one of an ended transaction wakes
+	 * the ones waiting for it to finish
+	 */
+	private void released() {
+		if (pendingFutures.decrementAndGet() == 0 && !isInTransaction)
+			signalAllTakers();
+	}
+
+	/**
+	 * Waits till the pending futures are all taken out by the other takers or
+	 * one of them gives its claim back
+	 */
+	private void awaitFinished() {
+		serviceLock.lock();
+		waitingTakers.incrementAndGet();
+		try {
+			while (pendingFutures.get() > 0 && unclaimedFutures.get() == 0)
+				claimable.awaitUninterruptibly();
 		} finally {
+			waitingTakers.decrementAndGet();
 			serviceLock.unlock();
 		}
-		return future;
 	}
 
 	/**
-	 * The poll method awaits for the lock to be available before making the
-	 * poll call on the {@link #delegateCompletionService}
+	 * Gives back a claim that could not be used and wakes a waiter for it
 	 */
-	public Future<V> poll(long timeOut, TimeUnit unit)
-			throws InterruptedException {
-		Future<V> future = null;
+	private void unclaim() {
+		unclaimedFutures.incrementAndGet();
+		signalTaker();
+	}
+
+	/**
+	 * Wakes a waiting taker, if there is one
+	 */
+	private void signalTaker() {
+		if (waitingTakers.get() == 0)
+			return;
+		serviceLock.lock();
 		try {
-			serviceLock.lockInterruptibly();
-			future = delegateCompletionService.poll(timeOut, unit);
-			if (future != null)
-				futureQueue.remove(future);
-		} catch (InterruptedException ie) {
-			// What should we do here?
+			claimable.signal();
+		} finally {
+			serviceLock.unlock();
+		}
+	}
+
+	/**
+	 * Wakes all the waiting takers; used when the transaction ends or finishes
+	 */
+	private void signalAllTakers() {
+		serviceLock.lock();
+		try {
+			claimable.signalAll();
 		} finally {
 			serviceLock.unlock();
 		}
-		return future;
 	}
 
 	/**
@@ -187,7 +359,7 @@ public class SimpleTransactionalCompletionService<V> implements
 		try {
 			serviceLock.lockInterruptibly();
 			log.info("Starting transaction..");
-			if (futureQueue.size() > 0)
+			if (pendingFutures.get() > 0)
 				throw new IllegalStateException();
 			isInTransaction = true;
 		} catch (InterruptedException ie) {
@@ -204,6 +376,7 @@ public class SimpleTransactionalCompletionService<V> implements
 	public void endTransaction() {
 		log.info("Ending transaction..");
 		isInTransaction = false;
+		signalAllTakers();
 	}
 
 	/**
@@ -211,24 +384,23 @@ public class SimpleTransactionalCompletionService<V> implements
 	 */
 	@Override
 	public void cancelTransaction() {
-		try {
-			serviceLock.lockInterruptibly();
-			isInTransaction = false;
-			log.info("After cancelling ;future Queue length:"
-					+ futureQueue.size());
-			for (Future<V> future : futureQueue)
-				future.cancel(true);
-			while (!isTransactionFinished())
-				try {
-					take();
-				} catch (InterruptedException interruptedException) {
-				}
-		} catch (InterruptedException ie) {
-			// What should we do here?
-		} finally {
-			serviceLock.unlock();
-		}
-
+		isInTransaction = false;
+		signalAllTakers();
+		log.info("After cancelling ;pending futures:" + pendingFutures.get());
+		for (Map.Entry<Future<V>, Boolean> entry : futureRegistry.entrySet())
+			if (entry.getValue())
+				entry.getKey().cancel(true);
+		boolean interrupted = false;
+		while (!isTransactionFinished())
+			try {
+				// null when the rest are claimed by other takers
+				if (take() == null)
+					awaitFinished();
+			} catch (InterruptedException interruptedException) {
+				interrupted = true;
+			}
+		if (interrupted)
+			Thread.currentThread().interrupt();
 	}
 
 	@Override
@@ -237,11 +409,11 @@ public class SimpleTransactionalCompletionService<V> implements
 	}
 
 	/**
-	 * isTransactionFinished checks if not in transaction and if the
-	 * {@link #futureQueue} is empty
+	 * isTransactionFinished checks if not in transaction and if there are no
+	 * {@link #pendingFutures}
 	 */
 	@Override
 	public boolean isTransactionFinished() {
-		return !isInTransaction && futureQueue.isEmpty();
+		return !isInTransaction && pendingFutures.get() == 0;
 	}
 }
@@ -0,0 +1,281 @@
+package concurrent.util;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * A {@link ForkJoiner} backed by a {@link ForkJoinPool}.
+ * <p>
+ * The forker runs as the root {@link CountedCompleter} of an execution and every task it submits to the given
+ * {@link CompletionService} becomes a child completer; forked on to the local deque of the submitting worker (so
+ * recursive splits such as a directory walk are spread by work stealing instead of going through one shared queue).
+ * A completed child hands its future to the joiner, which runs on the thread calling {@link #execute}; the root
+ * completes once the forker and all the children are done. A {@link ConcurrentJoiner} though is joined right on the
+ * worker that completed the child.
+ * <p>
+ * Unlike {@link SimpleForkJoiner} there is no transaction to be shared; so any number of executions may run at a
+ * time. {@link #execute} is meant to be called from outside the pool.
+ *
+ * @author vmurthy
+ *
+ * @param <Task>
+ * @param <InterimResult>
+ * @param <FinalResult>
+ */
+@FieldDefaults(level=AccessLevel.PRIVATE,makeFinal=true)
+public class WorkStealingForkJoiner<Task, InterimResult, FinalResult> implements
+		ForkJoiner<Task, InterimResult, FinalResult> {
+	/**
+	 * The pool
+	 */
+	ForkJoinPool pool;
+	/**
+	 * Whether the pool is owned (and hence shut down) by this
+	 */
+	boolean ownPool;
+	/**
+	 * Executions in progress; for cancel
+	 */
+	Set<Execution> executions = Collections.newSetFromMap(new ConcurrentHashMap<Execution, Boolean>());
+
+	/**
+	 * Constructor with a pool of its own; of parallelism as many as processors
+	 */
+	public WorkStealingForkJoiner() {
+		this(new ForkJoinPool(), true);
+	}
+
+	/**
+	 * Constructor with a shared pool which is not shut down by {@link #shutdown()}
+	 *
+	 * @param pool
+	 */
+	public WorkStealingForkJoiner(ForkJoinPool pool) {
+		this(pool, false);
+	}
+
+	private WorkStealingForkJoiner(ForkJoinPool pool, boolean ownPool) {
+		if (pool == null)
+			throw new NullPointerException();
+		this.pool = pool;
+		this.ownPool = ownPool;
+	}
+
+	/**
+	 * Execute
+	 */
+	public FinalResult execute(Task task, Forker<Task, InterimResult> forker,
+			Joiner<InterimResult, FinalResult> joiner) throws ExecutionException {
+		if (task == null || forker == null || joiner == null)
+			throw new NullPointerException();
+		Execution execution = new Execution(
+				joiner instanceof ConcurrentJoiner ? joiner : null);
+		executions.add(execution);
+		try {
+			// Always clear before use
+			joiner.clear();
+			pool.execute(new Root(execution, task, forker));
+			try {
+				for (;;) {
+					Future<InterimResult> interimResult = execution.completed.take();
+					if (interimResult == execution.end)
+						break;
+					if (!interimResult.isCancelled())
+						joiner.join(interimResult.get());
+				}
+			} catch (Throwable throwable) {
+				execution.cancel();
+				if (throwable instanceof InterruptedException)
+					Thread.currentThread().interrupt();
+				throw throwable instanceof ExecutionException ? (ExecutionException) throwable
+						: new ExecutionException(throwable);
+			}
+			if (execution.failure != null)
+				throw execution.failure instanceof ExecutionException ? (ExecutionException) execution.failure
+						: new ExecutionException(execution.failure);
+			if (execution.cancelled)
+				throw new ExecutionException(new CancellationException("Fork join execution is cancelled"));
+			return joiner.getResult();
+		} finally {
+			executions.remove(execution);
+		}
+	}
+
+	/**
+	 * Cancels the executions in progress; these end with an {@link ExecutionException}
+	 */
+	public void cancel() {
+		for (Execution execution : executions)
+			execution.cancel();
+	}
+
+	/**
+	 * shuts down the pool if owned
+	 */
+	public void shutdown() {
+		if (!ownPool)
+			return;
+		pool.shutdown();
+		try {
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * The state of one execution; also the completion service given to the forker
+	 */
+	private class Execution implements CompletionService<InterimResult> {
+		/**
+		 * completed futures in order of completion followed by {@link #end}
+		 */
+		final BlockingQueue<Future<InterimResult>> completed = new LinkedBlockingQueue<Future<InterimResult>>();
+		/**
+		 * marker for the end of the execution
+		 */
+		final Future<InterimResult> end = new FutureTask<InterimResult>(new Runnable() {
+			public void run() {
+			}
+		}, null);
+		/**
+		 * joiner to be called by the workers; null if the joining is on the caller
+		 */
+		final Joiner<InterimResult, ?> concurrentJoiner;
+		volatile Root root;
+		volatile boolean cancelled;
+		volatile Throwable failure;
+
+		Execution(Joiner<InterimResult, ?> concurrentJoiner) {
+			this.concurrentJoiner = concurrentJoiner;
+		}
+
+		/**
+		 * Submits the task as a child of the root; forked locally if called from a worker of the pool
+		 */
+		public Future<InterimResult> submit(Callable<InterimResult> task) {
+			if (task == null)
+				throw new NullPointerException();
+			if (cancelled)
+				throw new RejectedExecutionException("Fork join execution is cancelled");
+			Leaf leaf = new Leaf(root, new FutureTask<InterimResult>(task));
+			root.addToPendingCount(1);
+			if (ForkJoinTask.getPool() == pool)
+				leaf.fork();
+			else
+				pool.execute(leaf);
+			return leaf.future;
+		}
+
+		public Future<InterimResult> submit(Runnable task, InterimResult result) {
+			return submit(Executors.callable(task, result));
+		}
+
+		public Future<InterimResult> take() throws InterruptedException {
+			return completed.take();
+		}
+
+		public Future<InterimResult> poll() {
+			return completed.poll();
+		}
+
+		public Future<InterimResult> poll(long timeout, TimeUnit unit) throws InterruptedException {
+			return completed.poll(timeout, unit);
+		}
+
+		void cancel() {
+			cancelled = true;
+		}
+
+		void fail(Throwable throwable) {
+			if (failure == null)
+				failure = throwable;
+			cancel();
+		}
+	}
+
+	/**
+	 * The root; runs the forker
+	 */
+	private class Root extends CountedCompleter<Void> {
+		private static final long serialVersionUID = 1L;
+		final Execution execution;
+		final Task task;
+		final Forker<Task, InterimResult> forker;
+
+		Root(Execution execution, Task task, Forker<Task, InterimResult> forker) {
+			this.execution = execution;
+			this.task = task;
+			this.forker = forker;
+			execution.root = this;
+		}
+
+		@Override
+		public void compute() {
+			try {
+				forker.fork(task, execution);
+			} catch (Throwable throwable) {
+				execution.fail(throwable);
+			}
+			tryComplete();
+		}
+
+		@Override
+		public void onCompletion(CountedCompleter<?> caller) {
+			execution.completed.add(execution.end);
+		}
+	}
+
+	/**
+	 * A forked task
+	 */
+	private class Leaf extends CountedCompleter<Void> {
+		private static final long serialVersionUID = 1L;
+		final Execution execution;
+		final FutureTask<InterimResult> future;
+
+		Leaf(Root root, FutureTask<InterimResult> future) {
+			super(root);
+			this.execution = root.execution;
+			this.future = future;
+		}
+
+		@Override
+		public void compute() {
+			if (execution.cancelled)
+				future.cancel(false);
+			else
+				future.run();
+			if (execution.concurrentJoiner == null)
+				execution.completed.add(future);
+			else if (!future.isCancelled())
+				try {
+					execution.concurrentJoiner.join(future.get());
+				} catch (Throwable throwable) {
+					if (throwable instanceof InterruptedException)
+						Thread.currentThread().interrupt();
+					execution.fail(throwable);
+				}
+			tryComplete();
+		}
+	}
+}
@@ -1,13 +1,19 @@
 package util.collection;
 
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 /**
@@ -19,208 +25,227 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * <p>
  * This class doesnt extend java.util.AbstractMap (as in usual cases one would
  * do that) as it bases the approach on composition of using 2 concurrent maps.
- * 
+ * <p>
+ * Reads in either direction go straight to the concurrent maps and take no
+ * lock; so they scale just as a plain concurrent map does. A write keeps the
+ * key-value pairs one to one by locking the stripes of every key and value it
+ * touches (the ones it maps and the ones they were mapped to) in stripe order;
+ * so writes to unrelated pairs run in parallel and never deadlock. A reader may
+ * see a write half applied (say the key mapped but not yet the value), never a
+ * pair after the write that took it apart returned.
+ * <p>
+ * The two maps are held together in a {@link State}; an operation reads the
+ * state once and so works on one version of the pairs. {@link #replace(Map)}
+ * builds the maps of the new version off the lock and swaps the state in; so
+ * a reload never stalls a reader. {@link #snapshot()} gives an immutable,
+ * compact copy of the current version; copied on the first call after a write
+ * and shared until the next one.
+ *
  * @author vmurthy
- * 
+ *
  * @param <K>
  * @param <V>
  */
 public class BiDiMap<K, V> implements BiDirectionalMap<K, V> {
 
 	/**
-	 * One map for Key to value and another for value to key
+	 * A version of the pairs; swapped as a whole by replace
+	 */
+	static final class State<K, V> {
+
+		/**
+		 * One map for Key to value and another for value to key
+		 */
+		final ConcurrentMap<K, V> kToV;
+
+		/**
+		 * One map for vlue to key and another for value to key
+		 */
+		final ConcurrentMap<V, K> vToK;
+
+		/**
+		 * The snapshot of this version; null once a write changed it
+		 */
+		volatile SnapshotBiMap<K, V> snapshot = null;
+
+		State(ConcurrentMap<K, V> kToV, ConcurrentMap<V, K> vToK) {
+			this.kToV = kToV;
+			this.vToK = vToK;
+		}
+	}
+
+	/**
+	 * The current version; read once per operation
 	 */
-	ConcurrentMap<K, V> kToV = null;
+	volatile State<K, V> state = null;
 
 	/**
-	 * One map for vlue to key and another for value to key
+	 * the size the maps are created with
 	 */
-	ConcurrentMap<V, K> vToK = null;
+	int size;
 
 	/**
 	 * Even though concurrent hashmaps ensure operations on them as atomic;
 	 * however the composite operations on key-value and value-key is not
 	 * secured for concurrency.
 	 * <p>
-	 * Hence we also take a ReadWriteLock for the reads and write composite
-	 * operation
+	 * Hence a write takes the locks of the stripes its keys and values hash
+	 * to; a power of two of them
 	 */
-	ReadWriteLock rwLock = new ReentrantReadWriteLock();
+	ReentrantLock[] stripes = null;
 
 	/**
-	 * rLock meant for read purpose
+	 * The size from which the bulk lookups go parallel; and the lookups per
+	 * task
 	 */
-	Lock rLock = null;
+	static final int PARALLEL_THRESHOLD = 8192;
 
-	/**
-	 * wLock meant for write purpose
-	 */
-	Lock wLock = null;
+	static final int SLICE = 2048;
 
 	/**
-	 * Constructor initializes the read and write lock
+	 * Constructor initializes the lock stripes
 	 */
 	public BiDiMap() {
 		this(16);
 	}
 
 	/**
-	 * Constructor with size taht also constructs the read/write locks
-	 * 
+	 * Constructor with size taht also constructs the lock stripes
+	 *
 	 * @param size
 	 */
 	public BiDiMap(int size) {
-		kToV = Maps.concurrentMap(size);
-		vToK = Maps.concurrentMap(size);
-		rLock = rwLock.readLock();
-		wLock = rwLock.writeLock();
-
+		this.size = size;
+		state = new State<K, V>(Maps.<K, V> concurrentMap(size), Maps.<V, K> concurrentMap(size));
+		// a few per processor; rounded up to a power of two
+		int count = Integer.highestOneBit(4 * Runtime.getRuntime().availableProcessors() - 1) << 1;
+		stripes = new ReentrantLock[count];
+		for (int i = 0; i < count; i++)
+			stripes[i] = new ReentrantLock();
 	}
 
 	/**
 	 * put while putting key-vlue mapping; it ensures that the existing vlue-key
-	 * combintion is removed.
-	 * 
-	 * <pre>
-	 * public V put(K k, V v) {
-	 * 	wLock.lock();
-	 * 	try {
-	 * 		V oldV = kToV.put(k, v);
-	 * 		if (oldV != null)
-	 * 			vToK.remove(oldV);// remove the old value
-	 * 		vToK.put(v, k);
-	 * 		return oldV;
-	 * 	} finally {
-	 * 		wLock.unlock();
-	 * 	}
-	 * }
-	 * </pre>
-	 * 
+	 * combintion is removed; as well as the key the value was mapped to (so
+	 * that it stays one to one).
+	 * <p>
+	 * The old value and old key are read first to know the stripes to lock;
+	 * and read again under the locks to make sure they are still the same (and
+	 * the state; swapped only under all the locks). Putting a pair already
+	 * there changes nothing, and an entry that keeps its key or value is
+	 * overwritten rather than removed and added back; so a lock free reader
+	 * never misses it.
 	 */
 	@Override
 	public V put(K k, V v) {
-		wLock.lock();
-		try {
-			V oldV = kToV.put(k, v);
-			if (oldV != null)
-				vToK.remove(oldV);// remove the old value
-			vToK.put(v, k);
-			return oldV;
-		} finally {
-			wLock.unlock();
+		if (k == null || v == null)
+			throw new NullPointerException();
+		for (;;) {
+			State<K, V> s = state;
+			V oldV = s.kToV.get(k);
+			K oldK = s.vToK.get(v);
+			int[] locked = lock(k, v, oldK, oldV);
+			try {
+				if (state != s || s.kToV.get(k) != oldV || s.vToK.get(v) != oldK)
+					continue;// changed meanwhile
+				if (k.equals(oldK) && v.equals(oldV))
+					return oldV;// the pair already
+				if (oldV != null && !oldV.equals(v))
+					s.vToK.remove(oldV);// remove the old value
+				if (oldK != null && !oldK.equals(k))
+					s.kToV.remove(oldK);// and the key that held the value
+				s.vToK.put(v, k);
+				s.kToV.put(k, v);
+				s.snapshot = null;
+				return oldV;
+			} finally {
+				unlock(locked);
+			}
 		}
 	}
 
 	/**
 	 * containsKey follows stndard approach nd delegates to kToV
-	 * 
+	 *
 	 * <pre>
 	 * public boolean containsKey(Object k) {
-	 * 	rLock.lock();
-	 * 	try {
-	 * 		return kToV.containsKey(k);
-	 * 	} finally {
-	 * 		rLock.unlock();
-	 * 	}
+	 * 	return kToV.containsKey(k);
 	 * }
 	 * </pre>
 	 */
 	@Override
 	public boolean containsKey(Object k) {
-		rLock.lock();
-		try {
-			return kToV.containsKey(k);
-		} finally {
-			rLock.unlock();
-		}
+		return state.kToV.containsKey(k);
 	}
 
 	/**
 	 * containsValue will take advantage of Value-Key Mapping as its hashed out
 	 * so containsValue will be faster.
-	 * 
+	 *
 	 * <pre>
 	 * public boolean containsValue(Object value) {
-	 * 	rLock.lock();
-	 * 	try {
-	 * 		// Use hashed reverse-lookup for fast access
-	 * 		return vToK.containsKey(value);
-	 * 	} finally {
-	 * 		rLock.unlock();
-	 * 	}
+	 * 	// Use hashed reverse-lookup for fast access
+	 * 	return vToK.containsKey(value);
 	 * }
-	 * 
+	 *
 	 * </pre>
 	 */
 	@Override
 	public boolean containsValue(Object value) {
-		rLock.lock();
-		try {
-			// Use hashed reverse-lookup for fast access
-			return vToK.containsKey(value);
-		} finally {
-			rLock.unlock();
-		}
+		// Use hashed reverse-lookup for fast access
+		return state.vToK.containsKey(value);
 	}
 
 	/**
-	 * remove would remove key from kToV and as well as from vToK.
-	 * 
-	 * <pre>
-	 * public V remove(Object k) {
-	 * 	wLock.lock();
-	 * 	try {
-	 * 		V oldVal = kToV.remove(k);
-	 * 		vToK.remove(oldVal);
-	 * 		return oldVal;
-	 * 	} finally {
-	 * 		wLock.unlock();
-	 * 	}
-	 * }
-	 * 
-	 * </pre>
+	 * remove would remove key from kToV and as well as from vToK; under the
+	 * locks of the key and its value.
 	 */
 	@Override
 	public V remove(Object k) {
-		wLock.lock();
-		try {
-			V oldVal = kToV.remove(k);
-			vToK.remove(oldVal);
-			return oldVal;
-		} finally {
-			wLock.unlock();
+		for (;;) {
+			State<K, V> s = state;
+			V oldVal = s.kToV.get(k);
+			if (oldVal == null)
+				return null;
+			int[] locked = lock(k, oldVal, null, null);
+			try {
+				if (state != s || s.kToV.get(k) != oldVal)
+					continue;// changed meanwhile
+				s.kToV.remove(k);
+				s.vToK.remove(oldVal);
+				s.snapshot = null;
+				return oldVal;
+			} finally {
+				unlock(locked);
+			}
 		}
 	}
 
 	/**
-	 * RemoveValue is a new method added and is not in Map interface
-	 * 
+	 * RemoveValue is a new method added and is not in Map interface; removes
+	 * the value from vToK and its key from kToV under the locks of both.
+	 *
 	 * @param v
 	 * @return Key for this value (v) removed
-	 * 
-	 *         <pre>
-	 * public K removeValue(Object v) {
-	 * 	wLock.lock();
-	 * 	try {
-	 * 		K oldKey = vToK.remove(v);
-	 * 		kToV.remove(oldKey);
-	 * 		return oldKey;
-	 * 	} finally {
-	 * 		wLock.unlock();
-	 * 	}
-	 * }
-	 * 
-	 * </pre>
 	 */
 	@Override
 	public K removeValue(Object v) {
-		wLock.lock();
-		try {
-			K oldKey = vToK.remove(v);
-			kToV.remove(oldKey);
-			return oldKey;
-		} finally {
-			wLock.unlock();
+		for (;;) {
+			State<K, V> s = state;
+			K oldKey = s.vToK.get(v);
+			if (oldKey == null)
+				return null;
+			int[] locked = lock(oldKey, v, null, null);
+			try {
+				if (state != s || s.vToK.get(v) != oldKey)
+					continue;// changed meanwhile
+				s.vToK.remove(v);
+				s.kToV.remove(oldKey);
+				s.snapshot = null;
+				return oldKey;
+			} finally {
+				unlock(locked);
+			}
 		}
 	}
 
@@ -229,185 +254,319 @@ public class BiDiMap<K, V> implements BiDirectionalMap<K, V> {
 	 */
 	@Override
 	public V get(Object k) {
-		rLock.lock();
-		try {
-			return kToV.get(k);
-		} finally {
-			rLock.unlock();
-		}
+		return state.kToV.get(k);
 	}
 
 	/**
 	 * getKey is a new method added for BiDiMap and returns key for the value
-	 * 
+	 *
 	 * @param v
 	 * @returnKey for the value
-	 * 
+	 *
 	 *            <pre>
 	 * public K getKey(Object v) {
-	 * 	rLock.lock();
-	 * 	try {
-	 * 		return vToK.get(v);
-	 * 	} finally {
-	 * 		rLock.unlock();
-	 * 	}
+	 * 	return state.vToK.get(v);
 	 * }
 	 * </pre>
 	 */
 	@Override
 	public K getKey(Object v) {
-		rLock.lock();
-		try {
-			return vToK.get(v);
-		} finally {
-			rLock.unlock();
-		}
+		return state.vToK.get(v);
 	}
 
 	@Override
 	public Set<java.util.Map.Entry<K, V>> entrySet() {
-		rLock.lock();
-		try {
-			return kToV.entrySet();
-		} finally {
-			rLock.unlock();
-		}
+		return state.kToV.entrySet();
 	}
 
 	@Override
 	public Set<K> keySet() {
-		rLock.lock();
-		try {
-			return kToV.keySet();
-		} finally {
-			rLock.unlock();
-		}
+		return state.kToV.keySet();
 	}
 
 	/**
 	 * valueSet is a new method required to get the value set
-	 * 
+	 *
 	 * @return value set
 	 */
 	@Override
 	public Set<V> valueSet() {
-		rLock.lock();
-		try {
-			return vToK.keySet();
-		} finally {
-			rLock.unlock();
-		}
+		return state.vToK.keySet();
 	}
 
 	/**
-	 * size() method checks for consistency between the ktov and vtok maps
+	 * size() is that of kToV; vToK may differ by the writes in progress
 	 */
 	@Override
 	public int size() {
-		rLock.lock();
-		try {
-			assert kToV.size() == vToK.size();
-					//"The Key to Value and Value to Key Map sizes must be same";
-			return kToV.size();
-		} finally {
-			rLock.unlock();
-		}
+		return state.kToV.size();
 	}
 
 	/**
-	 * isEmpty() method checks for consistency between the ktov and vtok maps
+	 * isEmpty() is that of kToV; vToK may differ by the writes in progress
 	 **/
 	@Override
 	public boolean isEmpty() {
-		rLock.lock();
-		try {
-			assert kToV.isEmpty() == vToK.isEmpty();
-					//"The Key to Value and Value to Key Map sizes must be same");
-			return kToV.isEmpty();
-		} finally {
-			rLock.unlock();
-		}
+		return state.kToV.isEmpty();
 	}
 
+	/**
+	 * putAll puts the entries one by one; so a reader may see some of them
+	 * before the rest
+	 */
 	@Override
 	public void putAll(Map<? extends K, ? extends V> m) {
-		wLock.lock();
-		try {
-			for (Entry<? extends K, ? extends V> e : m.entrySet())
-				put(e.getKey(), e.getValue());
-		} finally {
-			wLock.unlock();
-		}
+		for (Entry<? extends K, ? extends V> e : m.entrySet())
+			put(e.getKey(), e.getValue());
 	}
 
 	/**
-	 * getValuesFor is a new method for set of keys
-	 * 
+	 * getValuesFor is a new method for set of keys; large collections are
+	 * looked up in parallel (see {@link #lookup(Function, Collection)})
+	 *
 	 * @param keys
 	 * @return
 	 */
 	@Override
 	public Set<V> getValuesFor(Collection<K> keys) {
-		rLock.lock();
-		try {
-			Set<V> valueSet = Sets.linked.create();
-			for (K k : keys)
-				valueSet.add(kToV.get(k));
-			return valueSet;
-		} finally {
-			rLock.unlock();
-		}
+		return lookup(state.kToV::get, keys);
 	}
 
 	/**
-	 * getKeysFor is a new method for set of values
-	 * 
+	 * getKeysFor is a new method for set of values; large collections are
+	 * looked up in parallel (see {@link #lookup(Function, Collection)})
+	 *
 	 * @param values
 	 * @return
 	 */
 	@Override
 	public Set<K> getKeysFor(Collection<V> values) {
-		rLock.lock();
-		try {
-			Set<K> keySet = Sets.linked.create();
-			for (V v : values)
-				keySet.add(vToK.get(v));
-			return keySet;
-		} finally {
-			rLock.unlock();
-		}
+		return lookup(state.vToK::get, values);
+	}
+
+	/**
+	 * streamValuesFor streams the values of the keys present; lazily and in
+	 * parallel for large collections
+	 *
+	 * @param keys
+	 * @return
+	 */
+	@Override
+	public Stream<V> streamValuesFor(Collection<K> keys) {
+		return stream(state.kToV::get, keys);
+	}
+
+	/**
+	 * streamKeysFor streams the keys of the values present; lazily and in
+	 * parallel for large collections
+	 *
+	 * @param values
+	 * @return
+	 */
+	@Override
+	public Stream<K> streamKeysFor(Collection<V> values) {
+		return stream(state.vToK::get, values);
 	}
 
+	/**
+	 * clear swaps in an empty state under all the stripes; so that no write
+	 * is half applied
+	 */
 	@Override
 	public void clear() {
-		wLock.lock();
-		try {
-			kToV.clear();
-			vToK.clear();
-		} finally {
-			wLock.unlock();
-		}
+		swap(new State<K, V>(Maps.<K, V> concurrentMap(size), Maps.<V, K> concurrentMap(size)));
 	}
 
 	@Override
 	public Collection<V> values() {
-		rLock.lock();
+		return state.vToK.keySet();
+	}
+
+	/**
+	 * replace builds the maps of the new version from the map off the lock
+	 * (keeping them one to one as put would) along with its snapshot; then
+	 * swaps it in under all the stripes. The readers go on with the old
+	 * version meanwhile and never wait; the writes that land before the swap
+	 * are replaced along with the rest.
+	 */
+	@Override
+	public void replace(Map<K, V> map) {
+		if (this == map)
+			return;
+		SnapshotBiMap<K, V> snapshot = new SnapshotBiMap<>(map);
+		int n = Math.max(size, snapshot.size());
+		State<K, V> fresh = new State<K, V>(Maps.<K, V> concurrentMap(n), Maps.<V, K> concurrentMap(n));
+		for (Entry<K, V> e : snapshot.entrySet()) {
+			fresh.kToV.put(e.getKey(), e.getValue());
+			fresh.vToK.put(e.getValue(), e.getKey());
+		}
+		fresh.snapshot = snapshot;
+		swap(fresh);
+	}
+
+	/**
+	 * snapshot returns an immutable, compact copy of the current version. It is
+	 * copied under all the stripes (so with no write half applied; the writers
+	 * wait, never the readers) on the first call after a write, and shared by
+	 * the calls until the next write.
+	 *
+	 * @return the snapshot of the pairs
+	 */
+	public SnapshotBiMap<K, V> snapshot() {
+		State<K, V> s = state;
+		SnapshotBiMap<K, V> snapshot = s.snapshot;
+		if (snapshot != null)
+			return snapshot;
+		lockAll();
 		try {
-			return vToK.keySet();
+			s = state;
+			if (s.snapshot == null)
+				s.snapshot = new SnapshotBiMap<>(s.kToV);
+			return s.snapshot;
 		} finally {
-			rLock.unlock();
+			unlockAll();
 		}
 	}
 
-	public void replace(Map<K, V> map) {
-		wLock.lock();
+	/**
+	 * Swaps the state in under all the stripes
+	 */
+	void swap(State<K, V> fresh) {
+		lockAll();
 		try {
-			if (this != map){
-				clear();
-				putAll(map);
-			}
+			state = fresh;
 		} finally {
-			wLock.unlock();
+			unlockAll();
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Looks up the collection with the get into a linked set (in the order of
+	 * the collection; null for the ones absent). The reads take no lock; so a
+	 * collection of at least {@link #PARALLEL_THRESHOLD} is copied to an array
+	 * and looked up in slices, and only the set is built serially. The slices
+	 * run on the pool of the calling fork join task if any (as a parallel
+	 * stream does) else on the common pool; and serially if that pool has no
+	 * parallelism.
+	 */
+	static <A, B> Set<B> lookup(Function<Object, B> get, Collection<A> in) {
+		int n = in.size();
+		Set<B> result = Sets.linked.create(Math.max(16, (int) (n / .75f) + 1));
+		boolean inPool = ForkJoinTask.inForkJoinPool();
+		ForkJoinPool pool = inPool ? ForkJoinTask.getPool() : ForkJoinPool.commonPool();
+		if (n < PARALLEL_THRESHOLD || pool.getParallelism() < 2) {
+			for (A a : in)
+				result.add(get.apply(a));
+			return result;
+		}
+		Object[] from = in.toArray();
+		Object[] to = new Object[from.length];
+		Lookup lookup = new Lookup(get, from, to, 0, from.length);
+		if (inPool)
+			lookup.invoke();
+		else
+			pool.invoke(lookup);
+		for (Object b : to) {
+			@SuppressWarnings("unchecked")
+			B value = (B) b;
+			result.add(value);
+		}
+		return result;
+	}
+
+	static <A, B> Stream<B> stream(Function<Object, B> get, Collection<A> in) {
+		return StreamSupport.stream(in.spliterator(), in.size() >= PARALLEL_THRESHOLD).map(get).filter(Objects::nonNull);
+	}
+
+	/**
+	 * Looks up the slice [low, high) of from into to; splitting it in halves
+	 * down to {@link BiDiMap#SLICE} lookups
+	 */
+	static class Lookup extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		final Function<Object, ?> get;
+
+		final Object[] from;
+
+		final Object[] to;
+
+		final int low;
+
+		final int high;
+
+		Lookup(Function<Object, ?> get, Object[] from, Object[] to, int low, int high) {
+			this.get = get;
+			this.from = from;
+			this.to = to;
+			this.low = low;
+			this.high = high;
+		}
+
+		@Override
+		protected void compute() {
+			if (high - low <= SLICE) {
+				for (int i = low; i < high; i++)
+					to[i] = get.apply(from[i]);
+			} else {
+				int mid = low + (high - low) / 2;
+				Lookup left = new Lookup(get, from, to, low, mid);
+				left.fork();
+				new Lookup(get, from, to, mid, high).compute();
+				left.join();
+			}
+		}
+	}
+
+	/**
+	 * The stripe of a key or value
+	 */
+	int stripeOf(Object o) {
+		int h = o.hashCode() * 0x9e3779b9;
+		return (h ^ (h >>> 16)) & (stripes.length - 1);
+	}
+
+	/**
+	 * Locks the stripes of the given keys and values (nulls are skipped) in
+	 * stripe order; each stripe once
+	 *
+	 * @return the stripes locked; to unlock
+	 */
+	int[] lock(Object k, Object v, Object otherK, Object otherV) {
+		int[] locked = new int[4];
+		int n = 0;
+		for (Object o : new Object[] { k, v, otherK, otherV }) {
+			if (o == null)
+				continue;
+			int stripe = stripeOf(o);
+			int i = n;
+			while (i > 0 && locked[i - 1] > stripe)
+				i--;
+			if (i > 0 && locked[i - 1] == stripe)
+				continue;
+			System.arraycopy(locked, i, locked, i + 1, n - i);
+			locked[i] = stripe;
+			n++;
+		}
+		int[] sorted = Arrays.copyOf(locked, n);
+		for (int stripe : sorted)
+			stripes[stripe].lock();
+		return sorted;
+	}
+
+	void unlock(int[] locked) {
+		for (int i = locked.length - 1; i >= 0; i--)
+			stripes[locked[i]].unlock();
+	}
+
+	void lockAll() {
+		for (ReentrantLock stripe : stripes)
+			stripe.lock();
+	}
+
+	void unlockAll() {
+		for (int i = stripes.length - 1; i >= 0; i--)
+			stripes[i].unlock();
+	}
+}
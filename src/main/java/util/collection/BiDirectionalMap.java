@@ -4,6 +4,7 @@ package util.collection;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Stream;
 
 /**
  * A Simple BiDirectional Map Interface extending from Map
@@ -38,6 +39,24 @@ public interface BiDirectionalMap<K, V> extends Map<K, V> {
 	 */
 	public abstract Set<V> getValuesFor(Collection<K> keys);
 
+	/**
+	 * Streams the keys of the eligible collection values; the absent ones are
+	 * skipped
+	 * 
+	 * @param values
+	 * @return stream of keys
+	 */
+	public abstract Stream<K> streamKeysFor(Collection<V> values);
+
+	/**
+	 * Streams the values of the collection of keys; the absent ones are
+	 * skipped
+	 * 
+	 * @param keys
+	 * @return stream of values
+	 */
+	public abstract Stream<V> streamValuesFor(Collection<K> keys);
+
 	/**
 	 * Return value as a set just like key set
 	 * 
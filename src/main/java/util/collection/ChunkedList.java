@@ -0,0 +1,170 @@
+package util.collection;
+
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An append only concurrent list; appends take no lock and copy nothing.
+ * <P>
+ * The elements are kept in chunks that double in size (the first of the
+ * sizing hint), so an index finds its chunk by a shift and a count of leading
+ * zeros; and a chunk once made never moves. An append makes the chunk of its
+ * index first if missing (one thread makes it while the others reaching it
+ * wait; so no chunk is made to be thrown away), then takes its index (or
+ * addAll the run of them) from a counter by a compare and set and stores the
+ * element. Against the copy of the whole array per add of a
+ * CopyOnWriteArrayList.
+ * <p>
+ * {@link #size()} counts the indexes taken; a get of one taken but not yet
+ * stored waits for its store, which is the next thing its writer does and
+ * cannot fail (a failure to make a chunk leaves no index taken). Null
+ * elements are not allowed; set, remove and clear are not supported and the
+ * iteration is weakly consistent (never a ConcurrentModificationException).
+ *
+ * @author vmurthy
+ *
+ * @param <T>
+ */
+public class ChunkedList<T> extends AbstractList<T> implements RandomAccess {
+
+	/**
+	 * log2 of the size of the first chunk; chunk c holds 2^(shift + c)
+	 * elements
+	 */
+	final int shift;
+
+	final AtomicReferenceArray<AtomicReferenceArray<T>> chunks;
+
+	/**
+	 * the elements the chunks can hold; so that no chunk reaches 2^31
+	 */
+	final int capacity;
+
+	/**
+	 * the indexes taken
+	 */
+	final AtomicInteger taken = new AtomicInteger();
+
+	/**
+	 * set while a thread makes chunks
+	 */
+	final AtomicBoolean growing = new AtomicBoolean();
+
+	/**
+	 * Constructor of default size
+	 */
+	public ChunkedList() {
+		this(16);
+	}
+
+	/**
+	 * Constructor with the size hint; the size of the first chunk
+	 *
+	 * @param size
+	 */
+	public ChunkedList(int size) {
+		shift = 32 - Integer.numberOfLeadingZeros(Math.max(16, Math.min(size, 1 << 30)) - 1);
+		chunks = new AtomicReferenceArray<>(31 - shift);
+		capacity = ((1 << (31 - shift)) - 1) << shift;
+	}
+
+	@Override
+	public boolean add(T e) {
+		if (e == null)
+			throw new NullPointerException();
+		store(take(1), e);
+		return true;
+	}
+
+	/**
+	 * addAll takes the indexes of the whole collection at once
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean addAll(Collection<? extends T> c) {
+		Object[] a = c.toArray();
+		for (Object e : a)
+			if (e == null)
+				throw new NullPointerException();
+		int index = take(a.length);
+		for (Object e : a)
+			store(index++, (T) e);
+		return a.length > 0;
+	}
+
+	@Override
+	public T get(int index) {
+		if (index < 0 || index >= taken.get())
+			throw new IndexOutOfBoundsException("Index: " + index);
+		int chunk = chunkOf(index);
+		// made before the index was taken
+		AtomicReferenceArray<T> elements = chunks.get(chunk);
+		int offset = offsetOf(index, chunk);
+		T e;
+		while ((e = elements.get(offset)) == null)
+			Thread.yield();// taken; the element is on its way
+		return e;
+	}
+
+	@Override
+	public int size() {
+		return taken.get();
+	}
+
+	/**
+	 * Takes n indexes; the chunks they fall in are made before
+	 */
+	int take(int n) {
+		for (;;) {
+			int index = taken.get();
+			if ((long) index + n > capacity)
+				throw new IllegalStateException("List full");
+			if (n > 0)
+				makeChunks(chunkOf(index + n - 1));
+			if (taken.compareAndSet(index, index + n))
+				return index;
+		}
+	}
+
+	/**
+	 * Makes the chunks up to the last given (so the chunks made are always a
+	 * run from the first); one thread at a time, the others wait for it. If
+	 * the allocation fails the next one reaching the chunk tries again
+	 */
+	void makeChunks(int last) {
+		while (chunks.get(last) == null) {
+			if (growing.compareAndSet(false, true)) {
+				try {
+					for (int chunk = 0; chunk <= last; chunk++)
+						if (chunks.get(chunk) == null)
+							chunks.set(chunk, new AtomicReferenceArray<T>(1 << (shift + chunk)));
+				} finally {
+					growing.set(false);
+				}
+			} else
+				Thread.yield();// the chunk is on its way
+		}
+	}
+
+	void store(int index, T e) {
+		int chunk = chunkOf(index);
+		chunks.get(chunk).set(offsetOf(index, chunk), e);
+	}
+
+	/**
+	 * The chunks before chunk c hold 2^shift * (2^c - 1) elements; so the
+	 * chunk of an index is the log2 of index / 2^shift + 1
+	 */
+	int chunkOf(int index) {
+		return 31 - Integer.numberOfLeadingZeros((index >>> shift) + 1);
+	}
+
+	int offsetOf(int index, int chunk) {
+		return index - (((1 << chunk) - 1) << shift);
+	}
+}
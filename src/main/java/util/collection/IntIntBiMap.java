@@ -0,0 +1,253 @@
+package util.collection;
+
+
+import java.util.Arrays;
+
+/**
+ * A bidirectional map of int keys to int values; the primitive counterpart of
+ * {@link BiDiMap} without a boxed key or value per pair or per lookup (see
+ * {@link PrimitiveBiMap} for the layout). Thread safe; reads take no lock
+ * unless a write gets in between.
+ * <p>
+ * A pair costs 8 bytes of entries and 8 to 16 bytes of hash tables; against
+ * about a hundred for the nodes and boxes of a {@link BiDiMap}.
+ *
+ * @author vmurthy
+ *
+ */
+public class IntIntBiMap extends PrimitiveBiMap {
+
+	/**
+	 * Receives the pairs of {@link IntIntBiMap#forEach(IntIntProcedure)}
+	 */
+	public interface IntIntProcedure {
+		void apply(int key, int value);
+	}
+
+	int[] keys = null;
+
+	int[] values = null;
+
+	public IntIntBiMap() {
+		this(16);
+	}
+
+	/**
+	 * @param size
+	 *            the expected number of pairs
+	 */
+	public IntIntBiMap(int size) {
+		super(size);
+		keys = new int[capacity];
+		values = new int[capacity];
+	}
+
+	/**
+	 * @return the value of the key; defaultValue if absent
+	 */
+	public int get(int key, int defaultValue) {
+		long stamp = lock.tryOptimisticRead();
+		try {
+			int entry = entryOfKey(key);
+			int value = entry < 0 ? defaultValue : values[entry];
+			if (lock.validate(stamp))
+				return value;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// read the arrays while being resized; read again under the lock
+		}
+		stamp = lock.readLock();
+		try {
+			int entry = entryOfKey(key);
+			return entry < 0 ? defaultValue : values[entry];
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * getKey returns key for the value
+	 *
+	 * @return the key of the value; defaultKey if absent
+	 */
+	public int getKey(int value, int defaultKey) {
+		long stamp = lock.tryOptimisticRead();
+		try {
+			int entry = entryOfValue(value);
+			int key = entry < 0 ? defaultKey : keys[entry];
+			if (lock.validate(stamp))
+				return key;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// read the arrays while being resized; read again under the lock
+		}
+		stamp = lock.readLock();
+		try {
+			int entry = entryOfValue(value);
+			return entry < 0 ? defaultKey : keys[entry];
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public boolean containsKey(int key) {
+		long stamp = lock.tryOptimisticRead();
+		try {
+			boolean found = entryOfKey(key) >= 0;
+			if (lock.validate(stamp))
+				return found;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// read the arrays while being resized; read again under the lock
+		}
+		stamp = lock.readLock();
+		try {
+			return entryOfKey(key) >= 0;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public boolean containsValue(int value) {
+		long stamp = lock.tryOptimisticRead();
+		try {
+			boolean found = entryOfValue(value) >= 0;
+			if (lock.validate(stamp))
+				return found;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// read the arrays while being resized; read again under the lock
+		}
+		stamp = lock.readLock();
+		try {
+			return entryOfValue(value) >= 0;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * put maps the key to the value; removing the old value of the key as well
+	 * as the key the value was mapped to (so that it stays one to one)
+	 */
+	public void put(int key, int value) {
+		long stamp = lock.writeLock();
+		try {
+			int entry = entryOfKey(key);
+			if (entry >= 0) {
+				if (values[entry] == value)
+					return;
+				delete(entry);
+			}
+			entry = entryOfValue(value);
+			if (entry >= 0)
+				delete(entry);
+			entry = append();
+			keys[entry] = key;
+			values[entry] = value;
+			link(entry);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @return whether the key was present
+	 */
+	public boolean remove(int key) {
+		long stamp = lock.writeLock();
+		try {
+			int entry = entryOfKey(key);
+			if (entry < 0)
+				return false;
+			delete(entry);
+			return true;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @return whether the value was present
+	 */
+	public boolean removeValue(int value) {
+		long stamp = lock.writeLock();
+		try {
+			int entry = entryOfValue(value);
+			if (entry < 0)
+				return false;
+			delete(entry);
+			return true;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Applies the procedure to every pair under the read lock
+	 */
+	public void forEach(IntIntProcedure procedure) {
+		long stamp = lock.readLock();
+		try {
+			for (int entry = 0; entry < size; entry++)
+				procedure.apply(keys[entry], values[entry]);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return the entry of the key; -1 if absent. The probe is bounded by the
+	 *         table so that an optimistic read cannot loop
+	 */
+	int entryOfKey(int key) {
+		int[] table = byKey;
+		int[] keys = this.keys;
+		int mask = table.length - 1;
+		for (int slot = hash(key) & mask, n = 0; n <= mask; slot = (slot + 1) & mask, n++) {
+			int entry = table[slot] - 1;
+			if (entry < 0)
+				return -1;
+			if (keys[entry] == key)
+				return entry;
+		}
+		return -1;
+	}
+
+	int entryOfValue(int value) {
+		int[] table = byValue;
+		int[] values = this.values;
+		int mask = table.length - 1;
+		for (int slot = hash(value) & mask, n = 0; n <= mask; slot = (slot + 1) & mask, n++) {
+			int entry = table[slot] - 1;
+			if (entry < 0)
+				return -1;
+			if (values[entry] == value)
+				return entry;
+		}
+		return -1;
+	}
+
+	@Override
+	int keyHash(int entry) {
+		return hash(keys[entry]);
+	}
+
+	@Override
+	int valueHash(int entry) {
+		return hash(values[entry]);
+	}
+
+	@Override
+	void move(int from, int to) {
+		keys[to] = keys[from];
+		values[to] = values[from];
+	}
+
+	@Override
+	void release(int entry) {
+		// nothing to let go of
+	}
+
+	@Override
+	void resize(int capacity) {
+		keys = Arrays.copyOf(keys, capacity);
+		values = Arrays.copyOf(values, capacity);
+	}
+}
@@ -70,6 +70,50 @@ public enum Lists {
 			// TODO Auto-generated method stub
 			return new LinkedList<>(Arrays.asList(tArray));
 		}
+	},
+	/**
+	 * An append only concurrent list ({@link ChunkedList}); lock free appends
+	 * and indexed reads with no copy per add. The size is the first chunk
+	 */
+	chunked {
+		@Override
+		public <T> List<T> create() {
+			return new ChunkedList<>();
+		}
+
+		@Override
+		public <T> List<T> create(int size) {
+			return new ChunkedList<>(size);
+		}
+
+		@Override
+		public <T> List<T> create(T... tArray) {
+			List<T> list = new ChunkedList<>(tArray.length);
+			list.addAll(Arrays.asList(tArray));
+			return list;
+		}
+	},
+	/**
+	 * A lock striped array list ({@link StripedArrayList}) for write heavy
+	 * shared lists; the size is spread over the stripes
+	 */
+	striped {
+		@Override
+		public <T> List<T> create() {
+			return new StripedArrayList<>();
+		}
+
+		@Override
+		public <T> List<T> create(int size) {
+			return new StripedArrayList<>(size);
+		}
+
+		@Override
+		public <T> List<T> create(T... tArray) {
+			List<T> list = new StripedArrayList<>(tArray.length);
+			list.addAll(Arrays.asList(tArray));
+			return list;
+		}
 	};
 	/**
 	 * Dont use this base type
@@ -0,0 +1,262 @@
+package util.collection;
+
+
+import java.util.Arrays;
+
+/**
+ * A bidirectional map of long keys to object values (such as ids to interned
+ * names); the primitive keyed counterpart of {@link BiDiMap} without a boxed
+ * key per pair or per lookup (see {@link PrimitiveBiMap} for the layout).
+ * Thread safe; reads take no lock unless a write gets in between.
+ * <p>
+ * A pair costs 12 bytes of entries (with compressed references) and 8 to 16
+ * bytes of hash tables besides the value itself; against about a hundred for
+ * the nodes and boxes of a {@link BiDiMap}.
+ *
+ * @author vmurthy
+ *
+ * @param <V>
+ */
+public class LongObjectBiMap<V> extends PrimitiveBiMap {
+
+	/**
+	 * Receives the pairs of {@link LongObjectBiMap#forEach(LongObjectProcedure)}
+	 */
+	public interface LongObjectProcedure<V> {
+		void apply(long key, V value);
+	}
+
+	long[] keys = null;
+
+	Object[] values = null;
+
+	public LongObjectBiMap() {
+		this(16);
+	}
+
+	/**
+	 * @param size
+	 *            the expected number of pairs
+	 */
+	public LongObjectBiMap(int size) {
+		super(size);
+		keys = new long[capacity];
+		values = new Object[capacity];
+	}
+
+	/**
+	 * @return the value of the key; null if absent
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		long stamp = lock.tryOptimisticRead();
+		try {
+			int entry = entryOfKey(key);
+			Object value = entry < 0 ? null : values[entry];
+			if (lock.validate(stamp))
+				return (V) value;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// read the arrays while being resized; read again under the lock
+		}
+		stamp = lock.readLock();
+		try {
+			int entry = entryOfKey(key);
+			return entry < 0 ? null : (V) values[entry];
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * getKey returns key for the value
+	 *
+	 * @return the key of the value; defaultKey if absent (or null)
+	 */
+	public long getKey(Object value, long defaultKey) {
+		long stamp = lock.tryOptimisticRead();
+		try {
+			int entry = entryOfValue(value);
+			long key = entry < 0 ? defaultKey : keys[entry];
+			if (lock.validate(stamp))
+				return key;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// read the arrays while being resized; read again under the lock
+		}
+		stamp = lock.readLock();
+		try {
+			int entry = entryOfValue(value);
+			return entry < 0 ? defaultKey : keys[entry];
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	public boolean containsValue(Object value) {
+		long stamp = lock.tryOptimisticRead();
+		try {
+			boolean found = entryOfValue(value) >= 0;
+			if (lock.validate(stamp))
+				return found;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// read the arrays while being resized; read again under the lock
+		}
+		stamp = lock.readLock();
+		try {
+			return entryOfValue(value) >= 0;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * put maps the key to the value; removing the old value of the key as well
+	 * as the key the value was mapped to (so that it stays one to one)
+	 *
+	 * @return the old value of the key; null if none
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null)
+			throw new NullPointerException();
+		long stamp = lock.writeLock();
+		try {
+			V oldV = null;
+			int entry = entryOfKey(key);
+			if (entry >= 0) {
+				oldV = (V) values[entry];
+				if (oldV.equals(value))
+					return oldV;
+				delete(entry);
+			}
+			entry = entryOfValue(value);
+			if (entry >= 0)
+				delete(entry);
+			entry = append();
+			keys[entry] = key;
+			values[entry] = value;
+			link(entry);
+			return oldV;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @return the value removed; null if absent
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		long stamp = lock.writeLock();
+		try {
+			int entry = entryOfKey(key);
+			if (entry < 0)
+				return null;
+			V oldV = (V) values[entry];
+			delete(entry);
+			return oldV;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @return whether the value was present
+	 */
+	public boolean removeValue(Object value) {
+		long stamp = lock.writeLock();
+		try {
+			int entry = entryOfValue(value);
+			if (entry < 0)
+				return false;
+			delete(entry);
+			return true;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Applies the procedure to every pair under the read lock
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEach(LongObjectProcedure<? super V> procedure) {
+		long stamp = lock.readLock();
+		try {
+			for (int entry = 0; entry < size; entry++)
+				procedure.apply(keys[entry], (V) values[entry]);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return the entry of the key; -1 if absent. The probe is bounded by the
+	 *         table so that an optimistic read cannot loop
+	 */
+	int entryOfKey(long key) {
+		int[] table = byKey;
+		long[] keys = this.keys;
+		int mask = table.length - 1;
+		for (int slot = hash(key) & mask, n = 0; n <= mask; slot = (slot + 1) & mask, n++) {
+			int entry = table[slot] - 1;
+			if (entry < 0)
+				return -1;
+			if (keys[entry] == key)
+				return entry;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the entry of the value; -1 if absent (a null value never is
+	 *         present)
+	 */
+	int entryOfValue(Object value) {
+		if (value == null)
+			return -1;
+		int[] table = byValue;
+		Object[] values = this.values;
+		int mask = table.length - 1;
+		for (int slot = hash(value.hashCode()) & mask, n = 0; n <= mask; slot = (slot + 1) & mask, n++) {
+			int entry = table[slot] - 1;
+			if (entry < 0)
+				return -1;
+			Object candidate = values[entry];
+			// null only if released under an optimistic read
+			if (candidate != null && value.equals(candidate))
+				return entry;
+		}
+		return -1;
+	}
+
+	@Override
+	int keyHash(int entry) {
+		return hash(keys[entry]);
+	}
+
+	@Override
+	int valueHash(int entry) {
+		return hash(values[entry].hashCode());
+	}
+
+	@Override
+	void move(int from, int to) {
+		keys[to] = keys[from];
+		values[to] = values[from];
+	}
+
+	@Override
+	void release(int entry) {
+		values[entry] = null;
+	}
+
+	@Override
+	void resize(int capacity) {
+		keys = Arrays.copyOf(keys, capacity);
+		values = Arrays.copyOf(values, capacity);
+	}
+}
@@ -8,6 +8,7 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import lombok.Data;
 public enum Maps {
@@ -59,6 +60,54 @@ public enum Maps {
 			return new BiDiMap<>(size);
 		}
 
+	},
+	/**
+	 * A lock striped LinkedHashMap ({@link StripedLinkedMap}); concurrent and
+	 * iterates in insertion order
+	 */
+	striped {
+		@Override
+		public <K, V> Map<K, V> create() {
+			return new StripedLinkedMap<>();
+		}
+
+		@Override
+		public <K, V> Map<K, V> create(int size) {
+			return new StripedLinkedMap<>(size);
+		}
+
+	},
+	/**
+	 * A {@link ConcurrentSkipListMap}; concurrent and sorted by key (the keys
+	 * have to be comparable). It takes no size
+	 */
+	skiplist {
+		@Override
+		public <K, V> Map<K, V> create() {
+			return new ConcurrentSkipListMap<>();
+		}
+
+		@Override
+		public <K, V> Map<K, V> create(int size) {
+			return new ConcurrentSkipListMap<>();
+		}
+
+	},
+	/**
+	 * A compact open addressing map ({@link OpenHashMap}); concurrent with
+	 * optimistic reads, for read mostly data
+	 */
+	openhash {
+		@Override
+		public <K, V> Map<K, V> create() {
+			return new OpenHashMap<>();
+		}
+
+		@Override
+		public <K, V> Map<K, V> create(int size) {
+			return new OpenHashMap<>(size);
+		}
+
 	};
 	/**
 	 * A Static Method for special map like {{@link BiDirectionalMap}
@@ -90,6 +139,50 @@ public enum Maps {
 		return (BiDirectionalMap<K, V>) BIDIMAP.create();
 	}
 
+	/**
+	 * A Static Method for the primitive bidirectional map {@link IntIntBiMap}
+	 * 
+	 * @param size
+	 * @return an {@link IntIntBiMap} instance of a specific size
+	 */
+	public static IntIntBiMap intIntBiMap(int size) {
+		return new IntIntBiMap(size);
+	}
+
+	/**
+	 * A Static Method for the primitive bidirectional map {@link IntIntBiMap}
+	 * 
+	 * @return an {@link IntIntBiMap} instance of a default size
+	 */
+	public static IntIntBiMap intIntBiMap() {
+		return new IntIntBiMap();
+	}
+
+	/**
+	 * A Static Method for the primitive keyed bidirectional map
+	 * {@link LongObjectBiMap}
+	 * 
+	 * @param <V>
+	 *            value of type V
+	 * @param size
+	 * @return an {@link LongObjectBiMap} instance of a specific size
+	 */
+	public static <V> LongObjectBiMap<V> longObjectBiMap(int size) {
+		return new LongObjectBiMap<>(size);
+	}
+
+	/**
+	 * A Static Method for the primitive keyed bidirectional map
+	 * {@link LongObjectBiMap}
+	 * 
+	 * @param <V>
+	 *            value of type V
+	 * @return an {@link LongObjectBiMap} instance of a default size
+	 */
+	public static <V> LongObjectBiMap<V> longObjectBiMap() {
+		return new LongObjectBiMap<>();
+	}
+
 	/**
 	 * A Static Method for special map like {{@link ConcurrentMap}
 	 * 
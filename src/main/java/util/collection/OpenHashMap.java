@@ -0,0 +1,347 @@
+package util.collection;
+
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A compact open addressing hash map for read mostly data.
+ * <P>
+ * The keys and values sit side by side in one array (a key at an even index
+ * and its value right after it) probed linearly from the hash of the key; no
+ * node per entry and a lookup reads one run of the array. The table is kept
+ * at most three quarters full and a removal shifts the following entries back
+ * instead of leaving a tombstone (as in {@link PrimitiveBiMap}).
+ * <p>
+ * Writes take the write lock of a StampedLock; reads are optimistic (no
+ * write to shared memory at all) and are done again under the read lock when
+ * a write got in between. So it suits data read far more often than written;
+ * for write heavy use a ConcurrentHashMap. The iteration is of a copy of the
+ * table.
+ *
+ * @author vmurthy
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class OpenHashMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+	final StampedLock lock = new StampedLock();
+
+	/**
+	 * key, value, key, value...; a power of two of pairs
+	 */
+	Object[] table = null;
+
+	int size;
+
+	/**
+	 * Constructor of default size
+	 */
+	public OpenHashMap() {
+		this(16);
+	}
+
+	/**
+	 * Constructor with the expected size
+	 *
+	 * @param size
+	 */
+	public OpenHashMap(int size) {
+		table = new Object[2 * capacityFor(size)];
+	}
+
+	@Override
+	public V get(Object k) {
+		long stamp = lock.tryOptimisticRead();
+		V value = find(table, k);
+		if (lock.validate(stamp))
+			return value;
+		stamp = lock.readLock();
+		try {
+			return find(table, k);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public boolean containsKey(Object k) {
+		return get(k) != null;
+	}
+
+	@Override
+	public int size() {
+		long stamp = lock.tryOptimisticRead();
+		int size = this.size;
+		if (lock.validate(stamp))
+			return size;
+		stamp = lock.readLock();
+		try {
+			return this.size;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public V put(K k, V v) {
+		return put(k, v, false);
+	}
+
+	@Override
+	public V putIfAbsent(K k, V v) {
+		return put(k, v, true);
+	}
+
+	@SuppressWarnings("unchecked")
+	V put(K k, V v, boolean onlyIfAbsent) {
+		if (k == null || v == null)
+			throw new NullPointerException();
+		long stamp = lock.writeLock();
+		try {
+			int i = indexOf(table, k);
+			if (table[i] != null) {
+				V old = (V) table[i + 1];
+				if (!onlyIfAbsent)
+					table[i + 1] = v;
+				return old;
+			}
+			if ((size + 1) * 4 > table.length / 2 * 3) {
+				resize(table.length);
+				i = indexOf(table, k);
+			}
+			table[i] = k;
+			table[i + 1] = v;
+			size++;
+			return null;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public V remove(Object k) {
+		return remove(k, null, false);
+	}
+
+	@Override
+	public boolean remove(Object k, Object v) {
+		return v != null && remove(k, v, true) != null;
+	}
+
+	@SuppressWarnings("unchecked")
+	V remove(Object k, Object v, boolean onlyIfValue) {
+		if (k == null)
+			return null;
+		long stamp = lock.writeLock();
+		try {
+			int i = indexOf(table, k);
+			if (table[i] == null)
+				return null;
+			V old = (V) table[i + 1];
+			if (onlyIfValue && !v.equals(old))
+				return null;
+			delete(i);
+			return old;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public boolean replace(K k, V oldValue, V newValue) {
+		if (oldValue == null || newValue == null)
+			throw new NullPointerException();
+		long stamp = lock.writeLock();
+		try {
+			int i = indexOf(table, k);
+			if (table[i] == null || !oldValue.equals(table[i + 1]))
+				return false;
+			table[i + 1] = newValue;
+			return true;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V replace(K k, V v) {
+		if (v == null)
+			throw new NullPointerException();
+		long stamp = lock.writeLock();
+		try {
+			int i = indexOf(table, k);
+			if (table[i] == null)
+				return null;
+			V old = (V) table[i + 1];
+			table[i + 1] = v;
+			return old;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public void clear() {
+		long stamp = lock.writeLock();
+		try {
+			table = new Object[table.length];
+			size = 0;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * entrySet iterates a copy of the table; its remove removes the key from
+	 * the map
+	 */
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		return new AbstractSet<Entry<K, V>>() {
+			@Override
+			public Iterator<Entry<K, V>> iterator() {
+				final Object[] copy = copy();
+				return new Iterator<Entry<K, V>>() {
+
+					int next = advance(0);
+
+					Object last = null;
+
+					int advance(int i) {
+						while (i < copy.length && copy[i] == null)
+							i += 2;
+						return i;
+					}
+
+					@Override
+					public boolean hasNext() {
+						return next < copy.length;
+					}
+
+					@Override
+					@SuppressWarnings("unchecked")
+					public Entry<K, V> next() {
+						if (next >= copy.length)
+							throw new NoSuchElementException();
+						last = copy[next];
+						Entry<K, V> e = new SimpleImmutableEntry<>((K) copy[next], (V) copy[next + 1]);
+						next = advance(next + 2);
+						return e;
+					}
+
+					@Override
+					public void remove() {
+						if (last == null)
+							throw new IllegalStateException();
+						OpenHashMap.this.remove(last);
+						last = null;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return OpenHashMap.this.size();
+			}
+		};
+	}
+
+	Object[] copy() {
+		long stamp = lock.readLock();
+		try {
+			return table.clone();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return the value of the key in the table; null if absent. The probe is
+	 *         bounded by the table so that an optimistic read cannot loop
+	 */
+	@SuppressWarnings("unchecked")
+	static <V> V find(Object[] table, Object k) {
+		if (k == null)
+			return null;
+		int mask = table.length - 2;
+		for (int i = (hash(k) << 1) & mask, n = 0; n < table.length; i = (i + 2) & mask, n += 2) {
+			Object key = table[i];
+			if (key == null)
+				return null;
+			if (key == k || k.equals(key))
+				return (V) table[i + 1];
+		}
+		return null;
+	}
+
+	/**
+	 * @return the index of the key in the table; or of the free slot it would
+	 *         go to. Under the lock
+	 */
+	static int indexOf(Object[] table, Object k) {
+		int mask = table.length - 2;
+		int i = (hash(k) << 1) & mask;
+		for (Object key; (key = table[i]) != null && key != k && !k.equals(key);)
+			i = (i + 2) & mask;
+		return i;
+	}
+
+	/**
+	 * Empties the pair at i shifting back the pairs after it that probed past
+	 * it (backward shift deletion); so that no probe stops short of its key
+	 */
+	void delete(int i) {
+		Object[] table = this.table;
+		int mask = table.length - 2;
+		int hole = i;
+		for (int j = (i + 2) & mask; table[j] != null; j = (j + 2) & mask) {
+			int home = (hash(table[j]) << 1) & mask;
+			// movable unless its home lies cyclically between the hole and it
+			if (((j - home) & mask) >= ((j - hole) & mask)) {
+				table[hole] = table[j];
+				table[hole + 1] = table[j + 1];
+				hole = j;
+			}
+		}
+		table[hole] = null;
+		table[hole + 1] = null;
+		size--;
+	}
+
+	/**
+	 * Doubles the table and puts the pairs back; under the write lock
+	 */
+	void resize(int length) {
+		Object[] old = table;
+		Object[] table = new Object[length * 2];
+		for (int i = 0; i < old.length; i += 2)
+			if (old[i] != null) {
+				int j = indexOf(table, old[i]);
+				table[j] = old[i];
+				table[j + 1] = old[i + 1];
+			}
+		this.table = table;
+	}
+
+	static int hash(Object k) {
+		int h = k.hashCode() * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return the pairs for the size at most three quarters full; a power of
+	 *         two
+	 */
+	static int capacityFor(int size) {
+		int pairs = Math.max(8, (int) (Math.max(0, size) / .75f) + 1);
+		return Integer.highestOneBit(pairs - 1) << 1;
+	}
+}
@@ -0,0 +1,194 @@
+package util.collection;
+
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The open addressing base of the primitive bidirectional maps (
+ * {@link IntIntBiMap}, {@link LongObjectBiMap}).
+ * <p>
+ * The pairs are kept densely in the entry arrays of the sub class (an entry
+ * is an index into them) and found through two hash tables of entry indexes
+ * (plus one, so that 0 is a free slot): one by the hash of the key and one by
+ * the hash of the value. The tables are probed linearly and kept at most half
+ * full; a removal shifts the following slots back instead of leaving a
+ * tombstone, and moves the last entry into the hole so that the entries stay
+ * dense. So a pair costs its primitives plus four ints of table at most, with
+ * no node or boxed object per pair.
+ * <p>
+ * Writes take the write lock of a StampedLock; reads are optimistic and are
+ * done again under the read lock when a write got in between.
+ *
+ * @author vmurthy
+ *
+ */
+abstract class PrimitiveBiMap {
+
+	static final int MIN_CAPACITY = 8;
+
+	final StampedLock lock = new StampedLock();
+
+	/**
+	 * slot to entry plus one by the hash of the key and by the hash of the
+	 * value; twice the capacity
+	 */
+	int[] byKey = null;
+
+	int[] byValue = null;
+
+	/**
+	 * the length of the entry arrays
+	 */
+	int capacity;
+
+	/**
+	 * the number of entries; entries 0 to size - 1 are in use
+	 */
+	int size;
+
+	PrimitiveBiMap(int expectedSize) {
+		capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, expectedSize) - 1) << 1);
+		byKey = new int[capacity * 2];
+		byValue = new int[capacity * 2];
+	}
+
+	/**
+	 * @return the hash of the key of the entry
+	 */
+	abstract int keyHash(int entry);
+
+	/**
+	 * @return the hash of the value of the entry
+	 */
+	abstract int valueHash(int entry);
+
+	/**
+	 * Copies the pair at from to the entry at to
+	 */
+	abstract void move(int from, int to);
+
+	/**
+	 * Lets go of the pair at the entry (no longer used)
+	 */
+	abstract void release(int entry);
+
+	/**
+	 * Resizes the entry arrays to the capacity
+	 */
+	abstract void resize(int capacity);
+
+	public int size() {
+		long stamp = lock.tryOptimisticRead();
+		int size = this.size;
+		if (lock.validate(stamp))
+			return size;
+		stamp = lock.readLock();
+		try {
+			return this.size;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public void clear() {
+		long stamp = lock.writeLock();
+		try {
+			Arrays.fill(byKey, 0);
+			Arrays.fill(byValue, 0);
+			for (int entry = 0; entry < size; entry++)
+				release(entry);
+			size = 0;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Takes the next free entry; growing if need be. Under the write lock; the
+	 * caller sets its pair and then {@link #link(int)}s it.
+	 */
+	int append() {
+		if (size == capacity) {
+			capacity *= 2;
+			resize(capacity);
+			byKey = new int[capacity * 2];
+			byValue = new int[capacity * 2];
+			for (int entry = 0; entry < size; entry++)
+				link(entry);
+		}
+		return size++;
+	}
+
+	/**
+	 * Adds the entry to both tables. Under the write lock
+	 */
+	void link(int entry) {
+		insert(byKey, keyHash(entry), entry);
+		insert(byValue, valueHash(entry), entry);
+	}
+
+	/**
+	 * Removes the entry from both tables and moves the last entry into its
+	 * place. Under the write lock
+	 */
+	void delete(int entry) {
+		unlink(byKey, slotOf(byKey, keyHash(entry), entry), true);
+		unlink(byValue, slotOf(byValue, valueHash(entry), entry), false);
+		int last = --size;
+		if (entry != last) {
+			byKey[slotOf(byKey, keyHash(last), last)] = entry + 1;
+			byValue[slotOf(byValue, valueHash(last), last)] = entry + 1;
+			move(last, entry);
+		}
+		release(last);
+	}
+
+	private static void insert(int[] table, int hash, int entry) {
+		int mask = table.length - 1;
+		int slot = hash & mask;
+		while (table[slot] != 0)
+			slot = (slot + 1) & mask;
+		table[slot] = entry + 1;
+	}
+
+	private static int slotOf(int[] table, int hash, int entry) {
+		int mask = table.length - 1;
+		int slot = hash & mask;
+		while (table[slot] != entry + 1)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/**
+	 * Empties the slot shifting back the entries after it that probed past it
+	 * (backward shift deletion); so that no probe stops short of its entry
+	 */
+	private void unlink(int[] table, int slot, boolean keys) {
+		int mask = table.length - 1;
+		int hole = slot;
+		for (int i = (slot + 1) & mask; table[i] != 0; i = (i + 1) & mask) {
+			int entry = table[i] - 1;
+			int home = (keys ? keyHash(entry) : valueHash(entry)) & mask;
+			// movable unless its home lies cyclically between the hole and it
+			if (((i - home) & mask) >= ((i - hole) & mask)) {
+				table[hole] = table[i];
+				hole = i;
+			}
+		}
+		table[hole] = 0;
+	}
+
+	static int hash(int h) {
+		h *= 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	static int hash(long h) {
+		return hash((int) (h ^ (h >>> 32)));
+	}
+}
@@ -0,0 +1,288 @@
+package util.collection;
+
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * An immutable, compact BiDirectional Map; a version of the pairs that never
+ * changes (see {@link BiDiMap#snapshot()}).
+ * <p>
+ * The pairs are kept in two arrays (a pair is an index into them) and found
+ * through two open addressing tables of indexes (plus one, so that 0 is a free
+ * slot) by the hash of the key and by the hash of the value; at most half
+ * full and probed linearly, as in {@link PrimitiveBiMap}. So a pair costs two
+ * references and at most four ints; against two nodes and their table slots
+ * per pair in each of the concurrent maps of a {@link BiDiMap}. Being
+ * immutable the reads take no lock at all and are safe from any thread.
+ *
+ * @author vmurthy
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class SnapshotBiMap<K, V> extends AbstractMap<K, V> implements BiDirectionalMap<K, V> {
+
+	final Object[] keys;
+
+	final Object[] values;
+
+	/**
+	 * index plus one by the hash of the key and by the hash of the value
+	 */
+	final int[] byKey;
+
+	final int[] byValue;
+
+	/**
+	 * Constructor copies the pairs of the map; keeping them one to one just as
+	 * {@link BiDiMap#put(Object, Object)} would (when two keys hold the same
+	 * value the later one keeps it)
+	 *
+	 * @param map
+	 */
+	public SnapshotBiMap(Map<? extends K, ? extends V> map) {
+		Object[] entries = map.entrySet().toArray();
+		int n = entries.length;
+		Object[] keys = new Object[n];
+		Object[] values = new Object[n];
+		byKey = new int[tableSize(n)];
+		byValue = new int[byKey.length];
+		int size = 0;
+		for (Object o : entries) {
+			Entry<?, ?> e = (Entry<?, ?>) o;
+			Object k = e.getKey(), v = e.getValue();
+			if (k == null || v == null)
+				throw new NullPointerException();
+			int index = indexOf(byValue, values, v);
+			if (index < 0) {
+				index = size++;
+				values[index] = v;
+				insert(byValue, v, index);
+			}
+			keys[index] = k;
+		}
+		for (int index = 0; index < size; index++)
+			insert(byKey, keys[index], index);
+		this.keys = size == n ? keys : Arrays.copyOf(keys, size);
+		this.values = size == n ? values : Arrays.copyOf(values, size);
+	}
+
+	@Override
+	public int size() {
+		return keys.length;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(Object k) {
+		int index = indexOf(byKey, keys, k);
+		return index < 0 ? null : (V) values[index];
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public K getKey(Object v) {
+		int index = indexOf(byValue, values, v);
+		return index < 0 ? null : (K) keys[index];
+	}
+
+	@Override
+	public boolean containsKey(Object k) {
+		return indexOf(byKey, keys, k) >= 0;
+	}
+
+	@Override
+	public boolean containsValue(Object v) {
+		return indexOf(byValue, values, v) >= 0;
+	}
+
+	@Override
+	public Set<V> getValuesFor(Collection<K> keys) {
+		return BiDiMap.lookup(this::get, keys);
+	}
+
+	@Override
+	public Set<K> getKeysFor(Collection<V> values) {
+		return BiDiMap.lookup(this::getKey, values);
+	}
+
+	@Override
+	public Stream<V> streamValuesFor(Collection<K> keys) {
+		return BiDiMap.stream(this::get, keys);
+	}
+
+	@Override
+	public Stream<K> streamKeysFor(Collection<V> values) {
+		return BiDiMap.stream(this::getKey, values);
+	}
+
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		return new AbstractSet<Entry<K, V>>() {
+			@Override
+			public Iterator<Entry<K, V>> iterator() {
+				return new Pairs<Entry<K, V>>() {
+					@Override
+					@SuppressWarnings("unchecked")
+					Entry<K, V> at(int index) {
+						return new SimpleImmutableEntry<>((K) keys[index], (V) values[index]);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return keys.length;
+			}
+		};
+	}
+
+	@Override
+	public Set<K> keySet() {
+		return new AbstractSet<K>() {
+			@Override
+			public Iterator<K> iterator() {
+				return new Pairs<K>() {
+					@Override
+					@SuppressWarnings("unchecked")
+					K at(int index) {
+						return (K) keys[index];
+					}
+				};
+			}
+
+			@Override
+			public boolean contains(Object k) {
+				return containsKey(k);
+			}
+
+			@Override
+			public int size() {
+				return keys.length;
+			}
+		};
+	}
+
+	@Override
+	public Set<V> valueSet() {
+		return new AbstractSet<V>() {
+			@Override
+			public Iterator<V> iterator() {
+				return new Pairs<V>() {
+					@Override
+					@SuppressWarnings("unchecked")
+					V at(int index) {
+						return (V) values[index];
+					}
+				};
+			}
+
+			@Override
+			public boolean contains(Object v) {
+				return containsValue(v);
+			}
+
+			@Override
+			public int size() {
+				return values.length;
+			}
+		};
+	}
+
+	@Override
+	public Collection<V> values() {
+		return valueSet();
+	}
+
+	@Override
+	public V put(K k, V v) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public V remove(Object k) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public K removeValue(Object v) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void putAll(Map<? extends K, ? extends V> m) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void replace(Map<K, V> map) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Iterates the pairs in index order; read only
+	 */
+	abstract class Pairs<T> implements Iterator<T> {
+
+		int next = 0;
+
+		abstract T at(int index);
+
+		@Override
+		public boolean hasNext() {
+			return next < keys.length;
+		}
+
+		@Override
+		public T next() {
+			if (next >= keys.length)
+				throw new NoSuchElementException();
+			return at(next++);
+		}
+	}
+
+	/**
+	 * @return the index of o in the array through the table; -1 if absent
+	 */
+	static int indexOf(int[] table, Object[] array, Object o) {
+		if (o == null)
+			return -1;
+		int mask = table.length - 1;
+		for (int slot = PrimitiveBiMap.hash(o.hashCode()) & mask;; slot = (slot + 1) & mask) {
+			int index = table[slot] - 1;
+			if (index < 0)
+				return -1;
+			if (o.equals(array[index]))
+				return index;
+		}
+	}
+
+	static void insert(int[] table, Object o, int index) {
+		int mask = table.length - 1;
+		int slot = PrimitiveBiMap.hash(o.hashCode()) & mask;
+		while (table[slot] != 0)
+			slot = (slot + 1) & mask;
+		table[slot] = index + 1;
+	}
+
+	/**
+	 * @return a power of two at least twice n; so that a table is at most half
+	 *         full
+	 */
+	static int tableSize(int n) {
+		return Integer.highestOneBit(Math.max(1, 2 * n - 1)) << 1;
+	}
+}
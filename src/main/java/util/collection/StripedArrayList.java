@@ -0,0 +1,338 @@
+package util.collection;
+
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A lock striped array list for write heavy shared lists.
+ * <P>
+ * The list is a power of two of ArrayLists (stripes) each under its own lock;
+ * a thread adds to the stripe of its id, so the threads adding at once mostly
+ * take different locks (as the cells of a LongAdder) and an add is the amortized
+ * O(1) of an ArrayList. Against a CopyOnWriteArrayList that copies the array
+ * per add and a Collections.synchronizedList that serializes them all.
+ * <p>
+ * The order is the elements of stripe 0, then of stripe 1 and so on; so the
+ * elements added by one thread stay in the order added but those of different
+ * threads are not in the order of time. An index is located by walking the
+ * stripe sizes (each under its lock) and is weakly consistent with the adds
+ * going on; the iteration is of a copy taken stripe by stripe (never a
+ * ConcurrentModificationException) and its remove removes an equal element.
+ * So are indexOf, lastIndexOf and subList (a copy of the range, not a view).
+ *
+ * @author vmurthy
+ *
+ * @param <T>
+ */
+public class StripedArrayList<T> extends AbstractList<T> {
+
+	ArrayList<T>[] lists = null;
+
+	ReentrantLock[] locks = null;
+
+	/**
+	 * Constructor of default size
+	 */
+	public StripedArrayList() {
+		this(16);
+	}
+
+	/**
+	 * Constructor with the size hint spread over the stripes
+	 *
+	 * @param size
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public StripedArrayList(int size) {
+		// a few per processor; rounded up to a power of two
+		int count = Integer.highestOneBit(4 * Runtime.getRuntime().availableProcessors() - 1) << 1;
+		lists = new ArrayList[count];
+		locks = new ReentrantLock[count];
+		for (int i = 0; i < count; i++) {
+			lists[i] = new ArrayList<>(Math.max(4, size / count + 1));
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+	@Override
+	public boolean add(T e) {
+		int stripe = stripeOf(Thread.currentThread());
+		locks[stripe].lock();
+		try {
+			return lists[stripe].add(e);
+		} finally {
+			locks[stripe].unlock();
+		}
+	}
+
+	/**
+	 * add at an index inserts into the stripe holding the index (or appends to
+	 * the last stripe at the end)
+	 */
+	@Override
+	public void add(int index, T e) {
+		if (index < 0)
+			throw new IndexOutOfBoundsException("Index: " + index);
+		int last = lists.length - 1;
+		for (int stripe = 0; stripe <= last; stripe++) {
+			locks[stripe].lock();
+			try {
+				int size = lists[stripe].size();
+				if (index < size || (index == size && stripe == last)) {
+					lists[stripe].add(index, e);
+					return;
+				}
+				index -= size;
+			} finally {
+				locks[stripe].unlock();
+			}
+		}
+		throw new IndexOutOfBoundsException("Index past the end by: " + index);
+	}
+
+	@Override
+	public T get(int index) {
+		if (index < 0)
+			throw new IndexOutOfBoundsException("Index: " + index);
+		for (int stripe = 0; stripe < lists.length; stripe++) {
+			locks[stripe].lock();
+			try {
+				int size = lists[stripe].size();
+				if (index < size)
+					return lists[stripe].get(index);
+				index -= size;
+			} finally {
+				locks[stripe].unlock();
+			}
+		}
+		throw new IndexOutOfBoundsException("Index past the end by: " + index);
+	}
+
+	@Override
+	public T set(int index, T e) {
+		if (index < 0)
+			throw new IndexOutOfBoundsException("Index: " + index);
+		for (int stripe = 0; stripe < lists.length; stripe++) {
+			locks[stripe].lock();
+			try {
+				int size = lists[stripe].size();
+				if (index < size)
+					return lists[stripe].set(index, e);
+				index -= size;
+			} finally {
+				locks[stripe].unlock();
+			}
+		}
+		throw new IndexOutOfBoundsException("Index past the end by: " + index);
+	}
+
+	@Override
+	public T remove(int index) {
+		if (index < 0)
+			throw new IndexOutOfBoundsException("Index: " + index);
+		for (int stripe = 0; stripe < lists.length; stripe++) {
+			locks[stripe].lock();
+			try {
+				int size = lists[stripe].size();
+				if (index < size)
+					return lists[stripe].remove(index);
+				index -= size;
+			} finally {
+				locks[stripe].unlock();
+			}
+		}
+		throw new IndexOutOfBoundsException("Index past the end by: " + index);
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		for (int stripe = 0; stripe < lists.length; stripe++) {
+			locks[stripe].lock();
+			try {
+				if (lists[stripe].remove(o))
+					return true;
+			} finally {
+				locks[stripe].unlock();
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		for (int stripe = 0; stripe < lists.length; stripe++) {
+			locks[stripe].lock();
+			try {
+				if (lists[stripe].contains(o))
+					return true;
+			} finally {
+				locks[stripe].unlock();
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (int stripe = 0; stripe < lists.length; stripe++) {
+			locks[stripe].lock();
+			try {
+				size += lists[stripe].size();
+			} finally {
+				locks[stripe].unlock();
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		for (int stripe = 0; stripe < lists.length; stripe++) {
+			locks[stripe].lock();
+			try {
+				lists[stripe].clear();
+			} finally {
+				locks[stripe].unlock();
+			}
+		}
+	}
+
+	/**
+	 * iterator iterates a copy; its remove removes an equal element
+	 */
+	@Override
+	public Iterator<T> iterator() {
+		return listIterator(0);
+	}
+
+	@Override
+	public ListIterator<T> listIterator() {
+		return listIterator(0);
+	}
+
+	/**
+	 * listIterator iterates a copy from the index; its remove removes an equal
+	 * element while set and add are not supported
+	 */
+	@Override
+	public ListIterator<T> listIterator(int index) {
+		final ListIterator<T> copy = copy().listIterator(index);
+		return new ListIterator<T>() {
+
+			T last = null;
+
+			boolean removable = false;
+
+			@Override
+			public boolean hasNext() {
+				return copy.hasNext();
+			}
+
+			@Override
+			public T next() {
+				last = copy.next();
+				removable = true;
+				return last;
+			}
+
+			@Override
+			public boolean hasPrevious() {
+				return copy.hasPrevious();
+			}
+
+			@Override
+			public T previous() {
+				last = copy.previous();
+				removable = true;
+				return last;
+			}
+
+			@Override
+			public int nextIndex() {
+				return copy.nextIndex();
+			}
+
+			@Override
+			public int previousIndex() {
+				return copy.previousIndex();
+			}
+
+			@Override
+			public void remove() {
+				if (!removable)
+					throw new IllegalStateException();
+				StripedArrayList.this.remove(last);
+				removable = false;
+			}
+
+			@Override
+			public void set(T e) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void add(T e) {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public int indexOf(Object o) {
+		return copy().indexOf(o);
+	}
+
+	@Override
+	public int lastIndexOf(Object o) {
+		return copy().lastIndexOf(o);
+	}
+
+	/**
+	 * subList is an unmodifiable copy of the range; not a view
+	 */
+	@Override
+	public List<T> subList(int fromIndex, int toIndex) {
+		return Collections.unmodifiableList(new ArrayList<>(copy().subList(fromIndex, toIndex)));
+	}
+
+	@Override
+	public Object[] toArray() {
+		return copy().toArray();
+	}
+
+	@Override
+	public <A> A[] toArray(A[] a) {
+		return copy().toArray(a);
+	}
+
+	/**
+	 * Copies the stripes one by one
+	 */
+	List<T> copy() {
+		List<T> copy = new ArrayList<>();
+		for (int stripe = 0; stripe < lists.length; stripe++) {
+			locks[stripe].lock();
+			try {
+				copy.addAll(lists[stripe]);
+			} finally {
+				locks[stripe].unlock();
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * The stripe of a thread
+	 */
+	int stripeOf(Thread t) {
+		int h = (int) t.getId() * 0x9e3779b9;
+		return (h ^ (h >>> 16)) & (lists.length - 1);
+	}
+}
@@ -0,0 +1,306 @@
+package util.collection;
+
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A lock striped LinkedHashMap; a concurrent map that iterates in insertion
+ * order.
+ * <P>
+ * The keys are spread by hash over a power of two of stripes; each a
+ * LinkedHashMap under its own lock. So the writes (and reads) of keys on
+ * different stripes run in parallel; against a single lock around one
+ * LinkedHashMap (Collections.synchronizedMap) that serializes all of them.
+ * <p>
+ * Each new key takes the next number of a shared sequence under its stripe
+ * lock; so a stripe is in sequence order and the iteration merges the stripes
+ * by it. The iteration is of a copy taken stripe by stripe (as weakly
+ * consistent as that of a ConcurrentHashMap); a key put again keeps its place,
+ * as in a LinkedHashMap.
+ *
+ * @author vmurthy
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class StripedLinkedMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+	/**
+	 * A value with the insertion number of its key
+	 */
+	static final class Slot<V> {
+
+		final long sequence;
+
+		V value;
+
+		Slot(long sequence, V value) {
+			this.sequence = sequence;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * An entry of the iteration; with the number to merge the stripes by
+	 */
+	static final class Ordered<K, V> extends SimpleImmutableEntry<K, V> {
+
+		private static final long serialVersionUID = 1L;
+
+		final long sequence;
+
+		Ordered(K key, V value, long sequence) {
+			super(key, value);
+			this.sequence = sequence;
+		}
+	}
+
+	final AtomicLong sequence = new AtomicLong();
+
+	LinkedHashMap<K, Slot<V>>[] maps = null;
+
+	ReentrantLock[] locks = null;
+
+	/**
+	 * Constructor of default size
+	 */
+	public StripedLinkedMap() {
+		this(16);
+	}
+
+	/**
+	 * Constructor with size spread over the stripes
+	 *
+	 * @param size
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public StripedLinkedMap(int size) {
+		// a few per processor; rounded up to a power of two
+		int count = Integer.highestOneBit(4 * Runtime.getRuntime().availableProcessors() - 1) << 1;
+		maps = new LinkedHashMap[count];
+		locks = new ReentrantLock[count];
+		for (int i = 0; i < count; i++) {
+			maps[i] = new LinkedHashMap<>(Math.max(16, (int) (size / count / .75f) + 1));
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+	@Override
+	public V get(Object k) {
+		int stripe = stripeOf(k);
+		locks[stripe].lock();
+		try {
+			Slot<V> slot = maps[stripe].get(k);
+			return slot == null ? null : slot.value;
+		} finally {
+			locks[stripe].unlock();
+		}
+	}
+
+	@Override
+	public boolean containsKey(Object k) {
+		return get(k) != null;
+	}
+
+	@Override
+	public V put(K k, V v) {
+		return put(k, v, false);
+	}
+
+	@Override
+	public V putIfAbsent(K k, V v) {
+		return put(k, v, true);
+	}
+
+	V put(K k, V v, boolean onlyIfAbsent) {
+		if (v == null)
+			throw new NullPointerException();
+		int stripe = stripeOf(k);
+		locks[stripe].lock();
+		try {
+			Slot<V> slot = maps[stripe].get(k);
+			if (slot == null) {
+				maps[stripe].put(k, new Slot<>(sequence.getAndIncrement(), v));
+				return null;
+			}
+			V old = slot.value;
+			if (!onlyIfAbsent)
+				slot.value = v;
+			return old;
+		} finally {
+			locks[stripe].unlock();
+		}
+	}
+
+	@Override
+	public V remove(Object k) {
+		int stripe = stripeOf(k);
+		locks[stripe].lock();
+		try {
+			Slot<V> slot = maps[stripe].remove(k);
+			return slot == null ? null : slot.value;
+		} finally {
+			locks[stripe].unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(Object k, Object v) {
+		int stripe = stripeOf(k);
+		locks[stripe].lock();
+		try {
+			Slot<V> slot = maps[stripe].get(k);
+			if (slot == null || v == null || !v.equals(slot.value))
+				return false;
+			maps[stripe].remove(k);
+			return true;
+		} finally {
+			locks[stripe].unlock();
+		}
+	}
+
+	@Override
+	public boolean replace(K k, V oldValue, V newValue) {
+		if (oldValue == null || newValue == null)
+			throw new NullPointerException();
+		int stripe = stripeOf(k);
+		locks[stripe].lock();
+		try {
+			Slot<V> slot = maps[stripe].get(k);
+			if (slot == null || !oldValue.equals(slot.value))
+				return false;
+			slot.value = newValue;
+			return true;
+		} finally {
+			locks[stripe].unlock();
+		}
+	}
+
+	@Override
+	public V replace(K k, V v) {
+		if (v == null)
+			throw new NullPointerException();
+		int stripe = stripeOf(k);
+		locks[stripe].lock();
+		try {
+			Slot<V> slot = maps[stripe].get(k);
+			if (slot == null)
+				return null;
+			V old = slot.value;
+			slot.value = v;
+			return old;
+		} finally {
+			locks[stripe].unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (int stripe = 0; stripe < maps.length; stripe++) {
+			locks[stripe].lock();
+			try {
+				size += maps[stripe].size();
+			} finally {
+				locks[stripe].unlock();
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		for (int stripe = 0; stripe < maps.length; stripe++) {
+			locks[stripe].lock();
+			try {
+				maps[stripe].clear();
+			} finally {
+				locks[stripe].unlock();
+			}
+		}
+	}
+
+	/**
+	 * entrySet iterates a copy in insertion order; its remove removes the key
+	 * from the map
+	 */
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		return new AbstractSet<Entry<K, V>>() {
+			@Override
+			public Iterator<Entry<K, V>> iterator() {
+				final Iterator<Ordered<K, V>> copy = ordered().iterator();
+				return new Iterator<Entry<K, V>>() {
+
+					Ordered<K, V> last = null;
+
+					@Override
+					public boolean hasNext() {
+						return copy.hasNext();
+					}
+
+					@Override
+					public Entry<K, V> next() {
+						return last = copy.next();
+					}
+
+					@Override
+					public void remove() {
+						if (last == null)
+							throw new IllegalStateException();
+						StripedLinkedMap.this.remove(last.getKey(), last.getValue());
+						last = null;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return StripedLinkedMap.this.size();
+			}
+		};
+	}
+
+	/**
+	 * Copies the stripes one by one and merges them by sequence (a stripe is
+	 * already in order; so the sort just merges the runs)
+	 */
+	List<Ordered<K, V>> ordered() {
+		List<Ordered<K, V>> copy = new ArrayList<>();
+		for (int stripe = 0; stripe < maps.length; stripe++) {
+			locks[stripe].lock();
+			try {
+				for (Entry<K, Slot<V>> e : maps[stripe].entrySet())
+					copy.add(new Ordered<>(e.getKey(), e.getValue().value, e.getValue().sequence));
+			} finally {
+				locks[stripe].unlock();
+			}
+		}
+		Collections.sort(copy, new Comparator<Ordered<K, V>>() {
+			@Override
+			public int compare(Ordered<K, V> a, Ordered<K, V> b) {
+				return Long.compare(a.sequence, b.sequence);
+			}
+		});
+		return copy;
+	}
+
+	/**
+	 * The stripe of a key
+	 */
+	int stripeOf(Object k) {
+		int h = k.hashCode() * 0x9e3779b9;
+		return (h ^ (h >>> 16)) & (maps.length - 1);
+	}
+}
@@ -7,7 +7,7 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses( { SynchronizedVsLockTest.class,TestProducerConsumer.class, TransactionalCompletionServiceTest.class, BoundedTransactionalCompletionServiceTest.class,
         ExecutorCompletionServiceTest.class, RequestOrderExecutorCompletionServiceTest.class,
-        BoundedCompletionServiceTest.class  })
+        BoundedCompletionServiceTest.class, ParallelTaskTest.class, PermitCounterTest.class })
 public class AllTests {
     public static junit.framework.Test suite() {
         junit.framework.TestSuite suite = new junit.framework.TestSuite();
@@ -16,6 +16,8 @@ public class AllTests {
         suite.addTest(ExecutorCompletionServiceTest.suite());
         suite.addTest(RequestOrderExecutorCompletionServiceTest.suite());
         suite.addTest(BoundedCompletionServiceTest.suite());
+        suite.addTest(ParallelTaskTest.suite());
+        suite.addTest(PermitCounterTest.suite());
         return suite;
     }
 }
@@ -0,0 +1,216 @@
+package concurrent.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import concurrent.util.BoundedCompletionService;
+
+/**
+ * Throughput loops comparing the {@link Semaphore} gated bounded completion
+ * service (as it used to be) against {@link BoundedCompletionService} (fair and
+ * non-fair and the batched submitAll/drainTo) for 1 to 64 submitting threads.
+ *
+ * @author vmurthy
+ */
+public class BoundedCompletionServiceLoops {
+    static final int             POOLSIZE = 8;
+    static final int             BOUND    = 64;
+    static final int             ITERS    = 200 * 1000;
+    static final int             BATCH    = 32;
+    static final ExecutorService pool     = Executors.newFixedThreadPool(POOLSIZE);
+    static boolean               print    = false;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = 64;
+        if (args.length > 0) maxThreads = Integer.parseInt(args[0]);
+        System.out.println("Warmup...");
+        for (int t = 1; t <= 4; t <<= 1) {
+            oneTest(t, semaphoreBounded());
+            oneTest(t, new BoundedCompletionService<Integer>(ecs(), BOUND, true));
+            oneTest(t, new BoundedCompletionService<Integer>(ecs(), BOUND, false));
+            batchTest(t, new BoundedCompletionService<Integer>(ecs(), BOUND, false));
+        }
+        print = true;
+        System.out.println("threads\tsemaphore(fair)\tcas(fair)\tcas(non-fair)\tcas(batched)   [ns per task]");
+        for (int t = 1; t <= maxThreads; t <<= 1) {
+            System.out.print(t);
+            oneTest(t, semaphoreBounded());
+            oneTest(t, new BoundedCompletionService<Integer>(ecs(), BOUND, true));
+            oneTest(t, new BoundedCompletionService<Integer>(ecs(), BOUND, false));
+            batchTest(t, new BoundedCompletionService<Integer>(ecs(), BOUND, false));
+            System.out.println();
+        }
+        pool.shutdown();
+    }
+
+    static CompletionService<Integer> ecs() {
+        return new ExecutorCompletionService<Integer>(pool);
+    }
+
+    static CompletionService<Integer> semaphoreBounded() {
+        return new SemaphoreBoundedCompletionService<Integer>(ecs(), BOUND);
+    }
+
+    static class Task implements Callable<Integer> {
+        public Integer call() {
+            int l = System.identityHashCode(this);
+            return LoopHelpers.compute1(l);
+        }
+    }
+
+    static class Producer implements Runnable {
+        final CompletionService<Integer> cs;
+        final int                        iters;
+        final CountDownLatch             start;
+
+        Producer(CompletionService<Integer> cs, int iters, CountDownLatch start) {
+            this.cs = cs;
+            this.iters = iters;
+            this.start = start;
+        }
+
+        public void run() {
+            try {
+                start.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (int i = 0; i < iters; ++i)
+                cs.submit(new Task());
+        }
+    }
+
+    static void oneTest(int producers, CompletionService<Integer> cs) throws Exception {
+        int perProducer = ITERS / producers;
+        int total = perProducer * producers;
+        CountDownLatch start = new CountDownLatch(1);
+        for (int p = 0; p < producers; p++)
+            new Thread(new Producer(cs, perProducer, start)).start();
+        long startTime = System.nanoTime();
+        start.countDown();
+        int r = 0;
+        for (int i = 0; i < total; ++i)
+            r += cs.take().get().intValue();
+        long elapsed = System.nanoTime() - startTime;
+        long tpi = elapsed / total;
+        if (print) System.out.print("\t" + LoopHelpers.rightJustify(tpi));
+        if (r == 0) // avoid overoptimization
+            System.out.println("useless result: " + r);
+    }
+
+    static class BatchProducer implements Runnable {
+        final BoundedCompletionService<Integer> cs;
+        final int                               iters;
+        final CountDownLatch                    start;
+
+        BatchProducer(BoundedCompletionService<Integer> cs, int iters, CountDownLatch start) {
+            this.cs = cs;
+            this.iters = iters;
+            this.start = start;
+        }
+
+        public void run() {
+            try {
+                start.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            List<Callable<Integer>> batch = new ArrayList<Callable<Integer>>(BATCH);
+            for (int i = 0; i < iters; ++i) {
+                batch.add(new Task());
+                if (batch.size() == BATCH || i == iters - 1) {
+                    cs.submitAll(batch);
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    static void batchTest(int producers, BoundedCompletionService<Integer> cs) throws Exception {
+        int perProducer = ITERS / producers;
+        int total = perProducer * producers;
+        CountDownLatch start = new CountDownLatch(1);
+        for (int p = 0; p < producers; p++)
+            new Thread(new BatchProducer(cs, perProducer, start)).start();
+        long startTime = System.nanoTime();
+        start.countDown();
+        int r = 0;
+        List<Future<Integer>> drained = new ArrayList<Future<Integer>>(BOUND);
+        for (int i = 0; i < total;) {
+            if (cs.drainTo(drained, BOUND) == 0) {
+                Future<Integer> f = cs.take();
+                r += f.get().intValue();
+                ++i;
+                continue;
+            }
+            for (Future<Integer> f : drained)
+                r += f.get().intValue();
+            i += drained.size();
+            drained.clear();
+        }
+        long elapsed = System.nanoTime() - startTime;
+        long tpi = elapsed / total;
+        if (print) System.out.print("\t" + LoopHelpers.rightJustify(tpi));
+        if (r == 0) // avoid overoptimization
+            System.out.println("useless result: " + r);
+    }
+
+    /**
+     * The fair {@link Semaphore} gated bounding decorator as the baseline.
+     */
+    static class SemaphoreBoundedCompletionService<V> implements CompletionService<V> {
+        final Semaphore            semaphore;
+        final CompletionService<V> delegate;
+
+        SemaphoreBoundedCompletionService(CompletionService<V> delegate, int maxTasks) {
+            this.delegate = delegate;
+            this.semaphore = new Semaphore(maxTasks, true);
+        }
+
+        public Future<V> submit(Callable<V> task) {
+            try {
+                semaphore.acquire();
+            } catch (InterruptedException ie) {
+                throw new RejectedExecutionException(ie);
+            }
+            try {
+                return delegate.submit(task);
+            } catch (RuntimeException re) {
+                semaphore.release();
+                throw re;
+            }
+        }
+
+        public Future<V> submit(Runnable task, V result) {
+            return submit(Executors.callable(task, result));
+        }
+
+        public Future<V> take() throws InterruptedException {
+            Future<V> future = delegate.take();
+            semaphore.release();
+            return future;
+        }
+
+        public Future<V> poll() {
+            Future<V> future = delegate.poll();
+            if (future != null) semaphore.release();
+            return future;
+        }
+
+        public Future<V> poll(long timeout, TimeUnit unit) throws InterruptedException {
+            Future<V> future = delegate.poll(timeout, unit);
+            if (future != null) semaphore.release();
+            return future;
+        }
+    }
+}
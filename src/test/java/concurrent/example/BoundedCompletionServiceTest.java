@@ -1,6 +1,8 @@
 package concurrent.example;
 
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.CountDownLatch;
@@ -278,6 +280,76 @@ public class BoundedCompletionServiceTest extends BaseTestCase {
         Assert.assertNull(f);//since we dont expect f to be valid as time here is very short
     }
 
+    /**
+     * Many submitters racing on a small bound in non-fair mode; every submitted task must be taken exactly once
+     */
+    @Test
+    public void testNonFairManySubmitters() throws Exception {
+        final int submitters = 8;
+        final int perSubmitter = 500;
+        final BoundedCompletionService<String> ecs = new BoundedCompletionService<String>(
+                new ExecutorCompletionService<String>(e), 3, false);
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int i = 0; i < submitters; i++)
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    for (int j = 0; j < perSubmitter; j++)
+                        ecs.submit(new StringTask());
+                }
+            }.start();
+        start.countDown();
+        for (int i = 0; i < submitters * perSubmitter; i++) {
+            Future<String> f = ecs.poll(LONG_DELAY_MS, TimeUnit.MILLISECONDS);
+            Assert.assertNotNull(f);
+            Assert.assertEquals(TEST_STRING, f.get());
+        }
+        Assert.assertNull(ecs.poll());
+    }
+
+    /**
+     * submitAll of more tasks than the bound must submit them all as permits get freed by drainTo
+     */
+    @Test
+    public void testSubmitAllAndDrainTo() throws Exception {
+        final int bound = 4;
+        final int count = 50;
+        final BoundedCompletionService<String> ecs = new BoundedCompletionService<String>(
+                new ExecutorCompletionService<String>(e), bound);
+        final List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+        for (int i = 0; i < count; i++)
+            tasks.add(new StringTask());
+        final List<Future<String>> submitted = new ArrayList<Future<String>>();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                submitted.addAll(ecs.submitAll(tasks));
+            }
+        };
+        t.start();
+        List<Future<String>> drained = new ArrayList<Future<String>>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LONG_DELAY_MS);
+        while (drained.size() < count && System.nanoTime() < deadline) {
+            int n = ecs.drainTo(drained, bound);
+            Assert.assertTrue(n <= bound);
+            if (n == 0)
+                Thread.yield();
+        }
+        t.join();
+        Assert.assertEquals(count, drained.size());
+        Assert.assertEquals(count, submitted.size());
+        for (Future<String> f : drained) {
+            Assert.assertTrue(f.isDone());
+            Assert.assertEquals(TEST_STRING, f.get());
+        }
+        Assert.assertEquals(0, ecs.drainTo(drained, bound));
+    }
+
     /**
      * This test checks for semaphore blocking on submit size exceeding semaphore's size. A rejected execution exception expected
      */
@@ -4,12 +4,16 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -20,6 +24,7 @@ import org.junit.Test;
 import concurrent.examples.DefaultForkJoinImpl;
 import concurrent.examples.DirectoryGrepUsingForkJoiner;
 import concurrent.examples.FileSizerUsingForkJoiner;
+import concurrent.examples.GrepResultObject;
 import concurrent.examples.StringReversingUsingForkJoiner;
 import concurrent.util.BoundedTransactionalCompletionService;
 import concurrent.util.RequestOrderExecutorCompletionService;
@@ -27,6 +32,7 @@ import concurrent.util.SimpleForkJoiner;
 import concurrent.util.SimpleThreadFactory;
 import concurrent.util.SimpleTransactionalCompletionService;
 import concurrent.util.TransactionalCompletionService;
+import concurrent.util.WorkStealingForkJoiner;
 
 public class ForkJoinTests extends BaseTestCase {
     private static final String SEARCH_STRING      = "CompletionService";
@@ -366,6 +372,148 @@ public class ForkJoinTests extends BaseTestCase {
         System.out.println(" ForkJoinBasedGrep(time)=" + (t3 - t2));
     }
 
+    @Test
+    public void workStealingReverseString() throws Exception {
+        String searchParam = "abcdefg";
+        StringReversingUsingForkJoiner stringReverser = new StringReversingUsingForkJoiner();
+        WorkStealingForkJoiner<String, String, String> workStealer = new WorkStealingForkJoiner<String, String, String>();
+        try {
+            Assert.assertEquals(new StringBuffer(searchParam).reverse().toString(),
+                    workStealer.execute(searchParam, stringReverser, stringReverser));
+        } finally {
+            workStealer.shutdown();
+        }
+    }
+
+    @Test(expected = ExecutionException.class)
+    public void workStealingErrorCheckingSplitterException()
+            throws ExecutionException {
+        DefaultForkJoinImpl<String, Void, Void> errorSPM = new DefaultForkJoinImpl<String, Void, Void>() {
+            @Override
+            public void fork(String request, CompletionService<Void> cs)
+                    throws ExecutionException {
+                throw new ExecutionException("Forker is in error", null);
+            }
+        };
+        WorkStealingForkJoiner<String, Void, Void> workStealer = new WorkStealingForkJoiner<String, Void, Void>();
+        try {
+            workStealer.execute("abcdefg", errorSPM, errorSPM);
+        } finally {
+            workStealer.shutdown();
+        }
+    }
+
+    @Test
+    public void testGrepDirectoryUsingWorkStealing() throws ExecutionException {
+        final File inputFolder = new File(INPUT_FOLDER);
+        if (!inputFolder.exists()) return;
+        FileFilter filter = new FileFilter() {
+            public boolean accept(File pathname) {
+                return pathname.getName().endsWith("java");
+            }
+        };
+        DirectoryGrepUsingForkJoiner directoryGrepSPM = new DirectoryGrepUsingForkJoiner(
+                SEARCH_STRING, filter);
+        WorkStealingForkJoiner<File, List<GrepResultObject>, String[]> workStealer = new WorkStealingForkJoiner<File, List<GrepResultObject>, String[]>();
+        try {
+            long t2 = System.nanoTime();
+            String[] computedStringArray = workStealer.execute(inputFolder,
+                    directoryGrepSPM, directoryGrepSPM);
+            long t3 = System.nanoTime();
+            assertArrayEqualsAfterSorting(expectedStringArray, computedStringArray);
+            System.out.println(" WorkStealingGrep(time)=" + (t3 - t2));
+        } finally {
+            workStealer.shutdown();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testFileSizesUsingWorkStealing() throws ExecutionException {
+        File inputFolder = new File(INPUT_FOLDER);
+        if (!inputFolder.exists()) return;
+        FileSizerUsingForkJoiner fileSizerSPM = new FileSizerUsingForkJoiner();
+        Long expectedSize = (Long) forkJoiner.execute(inputFolder,
+                fileSizerSPM, fileSizerSPM);
+        WorkStealingForkJoiner<File, Long, Long> workStealer = new WorkStealingForkJoiner<File, Long, Long>();
+        try {
+            Assert.assertEquals(expectedSize, workStealer.execute(inputFolder,
+                    fileSizerSPM, fileSizerSPM));
+        } finally {
+            workStealer.shutdown();
+        }
+    }
+
+    @Test
+    public void workStealingTaskExceptionUnderPartitionedJoiner() throws Exception {
+        final IllegalStateException failure = new IllegalStateException("Task is in error");
+        FileSizerUsingForkJoiner errorSizer = new FileSizerUsingForkJoiner() {
+            @Override
+            public void fork(File request, CompletionService<Long> cs) {
+                cs.submit(new Callable<Long>() {
+                    public Long call() {
+                        throw failure;
+                    }
+                });
+            }
+        };
+        WorkStealingForkJoiner<File, Long, Long> workStealer = new WorkStealingForkJoiner<File, Long, Long>();
+        try {
+            workStealer.execute(new File("."), errorSizer, errorSizer);
+            shouldThrow();
+        } catch (ExecutionException success) {
+            Assert.assertSame(failure, success.getCause());
+        } finally {
+            workStealer.shutdown();
+        }
+    }
+
+    @Test
+    public void testPartitionedJoinerConcurrentJoins() throws Exception {
+        final FileSizerUsingForkJoiner joiner = new FileSizerUsingForkJoiner();
+        joiner.clear();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 10000; j++)
+                            joiner.join(1L);
+                    } catch (ExecutionException e) {
+                        unexpectedException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        Assert.assertEquals(80000L, joiner.getResult().longValue());
+        joiner.clear();
+        Assert.assertEquals(0L, joiner.getResult().longValue());
+    }
+
+    @Test
+    public void testConcurrentExecutesOverSharedPool() throws Exception {
+        final SimpleForkJoiner<String, String, String> sharedForkJoiner = new SimpleForkJoiner<String, String, String>(e);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        ExecutorService callers = Executors.newFixedThreadPool(4);
+        try {
+            for (int i = 0; i < 20; i++)
+                results.add(callers.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        StringReversingUsingForkJoiner stringReverser = new StringReversingUsingForkJoiner();
+                        return sharedForkJoiner.execute("abcdefg", stringReverser, stringReverser);
+                    }
+                }));
+            for (Future<String> result : results)
+                Assert.assertEquals("gfedcba", result.get());
+        } finally {
+            joinPool(callers);
+        }
+    }
+
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(ForkJoinTests.class);
     }
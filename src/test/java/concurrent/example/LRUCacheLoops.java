@@ -0,0 +1,127 @@
+package concurrent.example;
+
+import java.util.concurrent.CountDownLatch;
+
+import concurrent.examples.LRUCache;
+import concurrent.examples.SegmentedLRUCache;
+
+/**
+ * Throughput loops of {@link LRUCache} against {@link SegmentedLRUCache} for 1 to 2 x processors threads doing 7 in 8
+ * gets and the rest puts over twice as many keys as the capacity.
+ *
+ * @author vmurthy
+ */
+public class LRUCacheLoops {
+    static final int       CAPACITY = 64 * 1024;
+    static final int       KEYS     = 2 * CAPACITY;
+    static final int       ITERS    = 4 * 1000 * 1000;
+    static final Integer[] keys     = new Integer[KEYS];
+    static boolean         print    = false;
+
+    /**
+     * The common face of the two caches for the loops
+     */
+    interface Cache {
+        Integer get(Integer key);
+
+        void put(Integer key, Integer value);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = 2 * Runtime.getRuntime().availableProcessors();
+        if (args.length > 0) maxThreads = Integer.parseInt(args[0]);
+        for (int i = 0; i < KEYS; i++)
+            keys[i] = Integer.valueOf(i);
+        System.out.println("Warmup...");
+        for (int t = 1; t <= 4; t <<= 1) {
+            oneTest(t, single());
+            oneTest(t, segmented());
+        }
+        print = true;
+        System.out.println("threads\tLRUCache\tSegmentedLRUCache   [ops per ms]");
+        for (int t = 1; t <= maxThreads; t <<= 1) {
+            System.out.print(t);
+            oneTest(t, single());
+            oneTest(t, segmented());
+            System.out.println();
+        }
+    }
+
+    static Cache single() {
+        final LRUCache<Integer, Integer> cache = new LRUCache<Integer, Integer>(CAPACITY);
+        return new Cache() {
+            public Integer get(Integer key) {
+                return cache.get(key);
+            }
+
+            public void put(Integer key, Integer value) {
+                cache.put(key, value);
+            }
+        };
+    }
+
+    static Cache segmented() {
+        final SegmentedLRUCache<Integer, Integer> cache = new SegmentedLRUCache<Integer, Integer>(CAPACITY);
+        return new Cache() {
+            public Integer get(Integer key) {
+                return cache.get(key);
+            }
+
+            public void put(Integer key, Integer value) {
+                cache.put(key, value);
+            }
+        };
+    }
+
+    static class Runner implements Runnable {
+        final Cache          cache;
+        final int            iters;
+        final CountDownLatch start;
+        final CountDownLatch done;
+        int                  seed;
+
+        Runner(Cache cache, int iters, CountDownLatch start, CountDownLatch done) {
+            this.cache = cache;
+            this.iters = iters;
+            this.start = start;
+            this.done = done;
+            this.seed = System.identityHashCode(this) | 1;
+        }
+
+        public void run() {
+            try {
+                start.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            int r = 0;
+            for (int i = 0; i < iters; ++i) {
+                seed = LoopHelpers.compute7(seed);
+                Integer key = keys[(seed & 0x7fffffff) % KEYS];
+                if ((seed >>> 28) < 2) // about 1 in 8
+                    cache.put(key, key);
+                else {
+                    Integer value = cache.get(key);
+                    if (value != null) r += value.intValue();
+                }
+            }
+            if (r == 42) // avoid overoptimization
+                System.out.println("useless result: " + r);
+            done.countDown();
+        }
+    }
+
+    static void oneTest(int threads, Cache cache) throws Exception {
+        int perThread = ITERS / threads;
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++)
+            new Thread(new Runner(cache, perThread, start, done)).start();
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - startTime;
+        long opsPerMs = (long) perThread * threads * 1000000L / elapsed;
+        if (print) System.out.print("\t" + LoopHelpers.rightJustify(opsPerMs));
+    }
+}
@@ -0,0 +1,581 @@
+package concurrent.example;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import concurrent.examples.CacheLoader;
+import concurrent.examples.CacheStats;
+import concurrent.examples.LRUCache;
+import concurrent.examples.LRUCache.EvictionPolicy;
+import concurrent.examples.OffHeapLRUCache;
+import concurrent.examples.RemovalCause;
+import concurrent.examples.RemovalListener;
+import concurrent.examples.SegmentedLRUCache;
+import concurrent.examples.Serializer;
+import concurrent.examples.Weigher;
+
+public class LRUCacheTest extends BaseTestCase {
+
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LRUCacheTest.class);
+    }
+
+    /**
+     * The least recently used (not the least recently put) entry is evicted
+     */
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        LRUCache<Integer, String> cache = new LRUCache<Integer, String>(3);
+        try {
+            cache.put(1, "1");
+            cache.put(2, "2");
+            cache.put(3, "3");
+            Assert.assertEquals("1", cache.get(1));
+            cache.put(4, "4");
+            Assert.assertNull(cache.get(2));
+            Assert.assertEquals("1", cache.get(1));
+            Assert.assertEquals("3", cache.get(3));
+            Assert.assertEquals("4", cache.get(4));
+            Assert.assertEquals(3, cache.size());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testPutReplacesAndRemove() throws Exception {
+        LRUCache<Integer, String> cache = new LRUCache<Integer, String>(10);
+        try {
+            cache.put(1, "1");
+            cache.put(1, "one");
+            Assert.assertEquals("one", cache.get(1));
+            Assert.assertEquals("one", cache.remove(1));
+            Assert.assertNull(cache.get(1));
+            Assert.assertNull(cache.remove(1));
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * The size is kept on the put itself even with the maintenance on an executor
+     */
+    @Test
+    public void testBoundedWithMaintenanceExecutor() throws Exception {
+        ExecutorService e = Executors.newSingleThreadExecutor();
+        LRUCache<Integer, Integer> cache = new LRUCache<Integer, Integer>(10, e);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                cache.put(i, i);
+                Assert.assertTrue(cache.size() <= 10);
+            }
+            cache.cleanUp();
+            Assert.assertEquals(10, cache.size());
+            Assert.assertEquals(Integer.valueOf(999), cache.get(999));
+            Assert.assertNull(cache.get(0));
+        } finally {
+            cache.close();
+            joinPool(e);
+        }
+    }
+
+    /**
+     * Under TinyLFU a scan of one-off keys does not push out the frequently read ones
+     */
+    @Test
+    public void testTinyLfuKeepsHotSetThroughScan() throws Exception {
+        LRUCache<Integer, Integer> cache = new LRUCache<Integer, Integer>(100, EvictionPolicy.TINY_LFU);
+        try {
+            for (int round = 0; round < 10; round++)
+                for (int key = 0; key < 50; key++)
+                    if (cache.get(key) == null)
+                        cache.put(key, key);
+            for (int key = 1000; key < 2000; key++)
+                if (cache.get(key) == null)
+                    cache.put(key, key);
+            cache.cleanUp();
+            Assert.assertTrue(cache.size() <= 100);
+            for (int key = 0; key < 50; key++)
+                Assert.assertEquals(Integer.valueOf(key), cache.get(key));
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * An entry expires the given time after it is put; a put renews it and the maintenance removes the expired ones
+     */
+    @Test
+    public void testExpireAfterWrite() throws Exception {
+        LRUCache<Integer, String> cache = LRUCache.<Integer, String> builder().size(10)
+                .expireAfterWrite(SMALL_DELAY_MS, TimeUnit.MILLISECONDS).build();
+        try {
+            cache.put(1, "1");
+            cache.put(2, "2");
+            Thread.sleep(SHORT_DELAY_MS);
+            Assert.assertEquals("1", cache.get(1));
+            cache.put(2, "two");
+            Thread.sleep(SMALL_DELAY_MS - SHORT_DELAY_MS / 2);
+            Assert.assertNull(cache.get(1));
+            Assert.assertEquals("two", cache.get(2));
+            cache.cleanUp();
+            Assert.assertEquals(1, cache.size());
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * An entry already due when the maintenance links it is removed by that same maintenance, even within the tick
+     * the wheel was last advanced to
+     */
+    @Test
+    public void testDueEntryRemovedByOneCleanUp() throws Exception {
+        LRUCache<Integer, String> cache = LRUCache.<Integer, String> builder().size(10)
+                .expireAfterWrite(1, TimeUnit.NANOSECONDS).build();
+        try {
+            for (int key = 0; key < 100; key++) {
+                cache.put(key, String.valueOf(key));
+                cache.cleanUp();
+                Assert.assertEquals(0, cache.size());
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * An entry read within the time does not expire; one not read does
+     */
+    @Test
+    public void testExpireAfterAccess() throws Exception {
+        LRUCache<Integer, String> cache = LRUCache.<Integer, String> builder().size(10)
+                .expireAfterAccess(SMALL_DELAY_MS, TimeUnit.MILLISECONDS).build();
+        try {
+            cache.put(1, "1");
+            cache.put(2, "2");
+            for (int i = 0; i < 10; i++) {
+                Thread.sleep(SHORT_DELAY_MS);
+                Assert.assertEquals("1", cache.get(1));
+            }
+            Assert.assertNull(cache.get(2));
+            cache.cleanUp();
+            Assert.assertEquals(1, cache.size());
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * Concurrent misses of a key share one load
+     */
+    @Test
+    public void testLoadIsCoalesced() throws Exception {
+        final LRUCache<Integer, String> cache = new LRUCache<Integer, String>(10);
+        final AtomicInteger loads = new AtomicInteger();
+        final Function<Integer, String> loader = new Function<Integer, String>() {
+            public String apply(Integer key) {
+                loads.incrementAndGet();
+                try {
+                    Thread.sleep(SHORT_DELAY_MS);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return TEST_STRING;
+            }
+        };
+        ExecutorService e = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> futures = new ArrayList<Future<String>>();
+            for (int i = 0; i < 8; i++)
+                futures.add(e.submit(new Callable<String>() {
+                    public String call() {
+                        return cache.get(1, loader);
+                    }
+                }));
+            for (Future<String> future : futures)
+                Assert.assertEquals(TEST_STRING, future.get());
+            Assert.assertEquals(1, loads.get());
+            Assert.assertEquals(TEST_STRING, cache.get(1));
+        } finally {
+            joinPool(e);
+            cache.close();
+        }
+    }
+
+    /**
+     * getAll loads the misses in one bulk call and getAsync loads with the loader
+     */
+    @Test
+    public void testGetAllAndGetAsync() throws Exception {
+        final AtomicInteger bulkLoads = new AtomicInteger();
+        LRUCache<Integer, String> cache = LRUCache.<Integer, String> builder().size(10)
+                .loader(new CacheLoader<Integer, String>() {
+                    public String load(Integer key) {
+                        return key == 0 ? null : "v" + key;
+                    }
+
+                    public Map<Integer, String> loadAll(Set<? extends Integer> keys) {
+                        bulkLoads.incrementAndGet();
+                        Map<Integer, String> values = new HashMap<Integer, String>();
+                        for (Integer key : keys)
+                            if (key != 0)
+                                values.put(key, "v" + key);
+                        return values;
+                    }
+                }).build();
+        try {
+            cache.put(1, "one");
+            Map<Integer, String> values = cache.getAll(Arrays.asList(1, 2, 3, 0));
+            Assert.assertEquals(1, bulkLoads.get());
+            Assert.assertEquals(Arrays.asList(1, 2, 3), new ArrayList<Integer>(values.keySet()));
+            Assert.assertEquals("one", values.get(1));
+            Assert.assertEquals("v3", cache.get(3));
+            Assert.assertEquals("v4", cache.getAsync(4).get(LONG_DELAY_MS, TimeUnit.MILLISECONDS));
+            Assert.assertNull(cache.getAsync(0).get(LONG_DELAY_MS, TimeUnit.MILLISECONDS));
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * A refresh still loading when the key is put does not write its value over the newer one; with and
+     * without a weigher (the value swapped in the node or the node replaced)
+     */
+    @Test
+    public void testRefreshDoesNotClobberConcurrentPut() throws Exception {
+        Weigher<Integer, String> byLength = new Weigher<Integer, String>() {
+            public int weigh(Integer key, String value) {
+                return value.length();
+            }
+        };
+        for (Weigher<Integer, String> weigher : Arrays.asList(null, byLength)) {
+            final CountDownLatch loading = new CountDownLatch(1);
+            final CountDownLatch loaded = new CountDownLatch(1);
+            ExecutorService e = Executors.newSingleThreadExecutor();
+            LRUCache.Builder<Integer, String> builder = LRUCache.<Integer, String> builder()
+                    .refreshAfterWrite(SHORT_DELAY_MS, TimeUnit.MILLISECONDS).loaderExecutor(e)
+                    .loader(new CacheLoader<Integer, String>() {
+                        public String load(Integer key) throws Exception {
+                            loading.countDown();
+                            loaded.await();
+                            return "stale";
+                        }
+                    });
+            LRUCache<Integer, String> cache = (weigher == null ? builder.size(10)
+                    : builder.maximumWeight(100).weigher(weigher)).build();
+            try {
+                cache.put(1, "old");
+                Thread.sleep(2 * SHORT_DELAY_MS);
+                Assert.assertEquals("old", cache.get(1)); // schedules the refresh
+                Assert.assertTrue(loading.await(LONG_DELAY_MS, TimeUnit.MILLISECONDS));
+                cache.put(1, "new");
+                loaded.countDown();
+                e.shutdown();
+                Assert.assertTrue(e.awaitTermination(LONG_DELAY_MS, TimeUnit.MILLISECONDS));
+                Assert.assertEquals("new", cache.get(1));
+            } finally {
+                cache.close();
+                joinPool(e);
+            }
+        }
+    }
+
+    /**
+     * A cache bounded by weight evicts by the total weight of the entries and keeps it up to date on replacement
+     */
+    @Test
+    public void testMaximumWeight() throws Exception {
+        Weigher<Integer, String> byLength = new Weigher<Integer, String>() {
+            public int weigh(Integer key, String value) {
+                return value.length();
+            }
+        };
+        for (EvictionPolicy policy : EvictionPolicy.values()) {
+            LRUCache<Integer, String> cache = LRUCache.<Integer, String> builder().evictionPolicy(policy)
+                    .maximumWeight(1000).weigher(byLength).build();
+            try {
+                StringBuilder value = new StringBuilder();
+                for (int i = 0; i < 200; i++) {
+                    cache.put(i, value.toString());
+                    value.append('x');
+                }
+                cache.cleanUp();
+                long weight = 0;
+                for (int i = 0; i < 200; i++) {
+                    String cached = cache.get(i);
+                    if (cached != null)
+                        weight += cached.length();
+                }
+                Assert.assertTrue(cache.weightedSize() <= 1000);
+                Assert.assertEquals(weight, cache.weightedSize());
+                Assert.assertTrue(cache.size() < 200);
+                cache.put(-1, "");
+                cache.put(-1, "abc");
+                Assert.assertEquals(weight + 3, cache.weightedSize());
+                Assert.assertEquals("abc", cache.remove(-1));
+                Assert.assertEquals(weight, cache.weightedSize());
+                Assert.assertTrue(cache.estimatedRetainedSize() > weight);
+            } finally {
+                cache.close();
+            }
+        }
+        try {
+            LRUCache.<Integer, String> builder().size(10).weigher(byLength).build();
+            Assert.fail();
+        } catch (IllegalStateException success) {
+        }
+    }
+
+    /**
+     * The stats count the hits, misses, loads and removals by cause; the listener is told of each removal off the caller
+     */
+    @Test
+    public void testStatsAndRemovalListener() throws Exception {
+        final LinkedBlockingQueue<String> removals = new LinkedBlockingQueue<String>();
+        final Thread caller = Thread.currentThread();
+        LRUCache<Integer, String> cache = LRUCache.<Integer, String> builder().size(2).recordStats()
+                .removalListener(new RemovalListener<Integer, String>() {
+                    public void onRemoval(Integer key, String value, RemovalCause cause) {
+                        if (Thread.currentThread() != caller)
+                            removals.add(key + "=" + value + ":" + cause);
+                    }
+                }).build();
+        try {
+            cache.put(1, "a");
+            cache.put(1, "b");
+            Assert.assertEquals("b", cache.get(1));
+            Assert.assertNull(cache.get(2));
+            Assert.assertEquals("c", cache.get(3, new Function<Integer, String>() {
+                public String apply(Integer key) {
+                    return "c";
+                }
+            }));
+            cache.get(1);
+            cache.put(4, "d");
+            cache.cleanUp();
+            Assert.assertEquals("d", cache.remove(4));
+            CacheStats stats = cache.stats();
+            Assert.assertEquals(2, stats.hitCount());
+            Assert.assertEquals(2, stats.missCount());
+            Assert.assertEquals(1, stats.loadSuccessCount());
+            Assert.assertEquals(1, stats.removalCount(RemovalCause.REPLACED));
+            Assert.assertEquals(1, stats.removalCount(RemovalCause.SIZE));
+            Assert.assertEquals(1, stats.removalCount(RemovalCause.EXPLICIT));
+            Assert.assertEquals(1, stats.evictionCount());
+            Assert.assertTrue(stats.drainCount() > 0);
+            Assert.assertEquals(0.5, stats.hitRate(), 0.001);
+            List<String> told = new ArrayList<String>();
+            for (int i = 0; i < 3; i++)
+                told.add(removals.poll(LONG_DELAY_MS, TimeUnit.MILLISECONDS));
+            Collections.sort(told);
+            Assert.assertEquals(Arrays.asList("1=a:REPLACED", "3=c:SIZE", "4=d:EXPLICIT"), told);
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * A notification the listener executor rejects is run by the caller, but not under the eviction lock; so another
+     * thread can clean up meanwhile
+     */
+    @Test
+    public void testRejectedNotificationRunsOffTheLock() throws Exception {
+        final ExecutorService other = Executors.newSingleThreadExecutor();
+        final AtomicReference<LRUCache<Integer, String>> cache = new AtomicReference<LRUCache<Integer, String>>();
+        final List<String> told = Collections.synchronizedList(new ArrayList<String>());
+        cache.set(LRUCache.<Integer, String> builder().size(2).listenerExecutor(new Executor() {
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        }).removalListener(new RemovalListener<Integer, String>() {
+            public void onRemoval(Integer key, String value, RemovalCause cause) {
+                try {
+                    other.submit(new Runnable() {
+                        public void run() {
+                            cache.get().cleanUp();
+                        }
+                    }).get(SMALL_DELAY_MS, TimeUnit.MILLISECONDS);
+                    told.add(key + ":" + cause);
+                } catch (Exception e) {
+                    told.add(key + ":" + e);
+                }
+            }
+        }).build());
+        try {
+            cache.get().put(1, "a");
+            cache.get().put(1, "b");
+            cache.get().put(2, "c");
+            cache.get().put(3, "d");
+            Assert.assertEquals(Arrays.asList("1:REPLACED", "2:SIZE"), told);
+        } finally {
+            cache.get().close();
+            joinPool(other);
+        }
+    }
+
+    /**
+     * The off-heap values read back as put, in place or as a copy, and the slabs bound the memory taken
+     */
+    @Test
+    public void testOffHeapPutGetAndRead() throws Exception {
+        OffHeapLRUCache<Integer, byte[]> cache = new OffHeapLRUCache<Integer, byte[]>(1000, EvictionPolicy.LRU,
+                4096, 1024, Serializer.BYTES);
+        try {
+            cache.put(1, TEST_STRING.getBytes("UTF-8"));
+            Assert.assertEquals(TEST_STRING, new String(cache.get(1), "UTF-8"));
+            Assert.assertEquals(Integer.valueOf(TEST_STRING.length()), cache.read(1, new Function<ByteBuffer, Integer>() {
+                public Integer apply(ByteBuffer view) {
+                    return view.remaining();
+                }
+            }));
+            cache.put(1, new byte[] {7});
+            Assert.assertArrayEquals(new byte[] {7}, cache.get(1));
+            Assert.assertTrue(cache.remove(1));
+            Assert.assertNull(cache.get(1));
+        } finally {
+            cache.close();
+        }
+        cache = new OffHeapLRUCache<Integer, byte[]>(1000, EvictionPolicy.LRU, 4096, 1024, Serializer.BYTES);
+        try {
+            // 4 slabs of 8 chunks of 128 bytes (with the stamp) hold 32 values at most
+            for (int i = 0; i < 100; i++)
+                cache.put(i, new byte[100]);
+            Assert.assertEquals(4096, cache.allocatedBytes());
+            Assert.assertEquals(32, cache.size());
+            Assert.assertNull(cache.get(0));
+            Assert.assertEquals(100, cache.get(99).length);
+            try {
+                cache.put(-1, new byte[1024]);
+                Assert.fail();
+            } catch (IllegalArgumentException success) {
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * Concurrent gets and puts neither deadlock nor mix up the values
+     */
+    @Test
+    public void testConcurrentGetAndPut() throws Exception {
+        final LRUCache<Integer, Integer> cache = new LRUCache<Integer, Integer>(100);
+        final AtomicInteger mismatches = new AtomicInteger();
+        ExecutorService e = Executors.newFixedThreadPool(4);
+        try {
+            for (int t = 0; t < 4; t++)
+                e.execute(new Runnable() {
+                    public void run() {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        for (int i = 0; i < 100000; i++) {
+                            int key = random.nextInt(200);
+                            if ((i & 3) == 0)
+                                cache.put(key, key);
+                            else {
+                                Integer value = cache.get(key);
+                                if (value != null && value.intValue() != key)
+                                    mismatches.incrementAndGet();
+                            }
+                        }
+                    }
+                });
+            e.shutdown();
+            Assert.assertTrue(e.awaitTermination(LONG_DELAY_MS, TimeUnit.MILLISECONDS));
+            Assert.assertEquals(0, mismatches.get());
+            Assert.assertTrue(cache.size() <= 100);
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * The segments together keep close to the size and concurrent access keeps the values intact
+     */
+    @Test
+    public void testSegmentedConcurrentGetAndPut() throws Exception {
+        final SegmentedLRUCache<Integer, Integer> cache = new SegmentedLRUCache<Integer, Integer>(256, 8);
+        final AtomicInteger mismatches = new AtomicInteger();
+        ExecutorService e = Executors.newFixedThreadPool(4);
+        try {
+            Assert.assertEquals(8, cache.getSegments());
+            for (int t = 0; t < 4; t++)
+                e.execute(new Runnable() {
+                    public void run() {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        for (int i = 0; i < 100000; i++) {
+                            int key = random.nextInt(1000);
+                            if ((i & 3) == 0)
+                                cache.put(key, key);
+                            else {
+                                Integer value = cache.get(key);
+                                if (value != null && value.intValue() != key)
+                                    mismatches.incrementAndGet();
+                            }
+                        }
+                    }
+                });
+            e.shutdown();
+            Assert.assertTrue(e.awaitTermination(LONG_DELAY_MS, TimeUnit.MILLISECONDS));
+            Assert.assertEquals(0, mismatches.get());
+            Assert.assertTrue(cache.size() <= 256);
+            cache.put(-1, -1);
+            Assert.assertEquals(Integer.valueOf(-1), cache.remove(-1));
+            Assert.assertNull(cache.get(-1));
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * The statistics of a segmented cache sum those of its segments; and stay zero unless asked for
+     */
+    @Test
+    public void testSegmentedStatsSumSegments() throws Exception {
+        SegmentedLRUCache<Integer, Integer> cache = new SegmentedLRUCache<Integer, Integer>(64, 4, EvictionPolicy.LRU,
+                true);
+        SegmentedLRUCache<Integer, Integer> unrecorded = new SegmentedLRUCache<Integer, Integer>(64, 4);
+        try {
+            for (int key = 0; key < 10; key++) {
+                cache.put(key, key);
+                unrecorded.put(key, key);
+            }
+            for (int key = 0; key < 15; key++) {
+                cache.get(key);
+                unrecorded.get(key);
+            }
+            Assert.assertEquals(Integer.valueOf(0), cache.remove(0));
+            CacheStats stats = cache.stats();
+            Assert.assertEquals(10, stats.hitCount());
+            Assert.assertEquals(5, stats.missCount());
+            Assert.assertEquals(1, stats.removalCount(RemovalCause.EXPLICIT));
+            Assert.assertEquals(0, unrecorded.stats().hitCount());
+            Assert.assertEquals(0, unrecorded.stats().missCount());
+        } finally {
+            cache.close();
+            unrecorded.close();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package concurrent.example;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import concurrent.util.ParallelTask;
+
+public class ParallelTaskTest extends BaseTestCase {
+    ExecutorService e = null;
+
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelTaskTest.class);
+    }
+
+    @Override
+    @Before
+    public void setUp() {
+        super.setUp();
+        e = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    @After
+    public void tearDown() {
+        joinPool(e);
+        super.tearDown();
+    }
+
+    static Collection<Callable<Integer>> tasks(int n, final AtomicInteger running, final AtomicInteger maxRunning) {
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>(n);
+        for (int i = 0; i < n; i++) {
+            final int value = i;
+            tasks.add(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    int now = running.incrementAndGet();
+                    for (int max = maxRunning.get(); now > max && !maxRunning.compareAndSet(max, now); max = maxRunning.get())
+                        ;
+                    Thread.sleep(1);
+                    running.decrementAndGet();
+                    return value;
+                }
+            });
+        }
+        return tasks;
+    }
+
+    /**
+     * All the results are rendered and no more than the window are ever in flight
+     */
+    @Test
+    public void testWindowBoundsInFlight() throws Exception {
+        AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+        List<Integer> results = new ParallelTask<Integer>(e, tasks(200, running, maxRunning), 4).get();
+        Assert.assertEquals(200, results.size());
+        Collections.sort(results);
+        for (int i = 0; i < 200; i++)
+            Assert.assertEquals(i, results.get(i).intValue());
+        Assert.assertTrue(maxRunning.get() <= 4);
+    }
+
+    /**
+     * The adaptive window stays within its bounds
+     */
+    @Test
+    public void testAdaptiveWindowWithinBounds() throws Exception {
+        AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+        ParallelTask<Integer> task = new ParallelTask<Integer>(e, tasks(500, running, maxRunning), 2, 16);
+        Assert.assertEquals(500, task.get().size());
+        Assert.assertTrue(maxRunning.get() <= 16);
+        Assert.assertTrue(task.getWindow() >= 2 && task.getWindow() <= 16);
+    }
+
+    /**
+     * Results are streamed to the consumer as they complete; even before the slower ones are done
+     */
+    @Test
+    public void testForEachCompletedStreams() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        tasks.add(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                release.await();
+                return -1;
+            }
+        });
+        for (int i = 0; i < 10; i++)
+            tasks.add(new StringLength(TEST_STRING));
+        final List<Integer> seen = new ArrayList<Integer>();
+        new ParallelTask<Integer>(e, tasks, 2).forEachCompleted(new Consumer<Integer>() {
+            public void accept(Integer value) {
+                seen.add(value);
+                if (seen.size() == 10) release.countDown();
+            }
+        });
+        Assert.assertEquals(11, seen.size());
+        Assert.assertEquals(-1, seen.get(10).intValue());
+    }
+
+    /**
+     * A failed task fails the get and cancels the rest
+     */
+    @Test
+    public void testFailureCancels() throws Exception {
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        tasks.add(new Callable<Integer>() {
+            public Integer call() {
+                throw new IllegalStateException();
+            }
+        });
+        AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+        tasks.addAll(tasks(100, running, maxRunning));
+        ParallelTask<Integer> task = new ParallelTask<Integer>(e, tasks, 1);
+        try {
+            task.get();
+            shouldThrow();
+        } catch (ExecutionException success) {
+            Assert.assertTrue(success.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertTrue(task.isCancelled());
+    }
+
+    /**
+     * The state moves PENDING to RUNNING to DONE with the completed count tracking the progress
+     */
+    @Test
+    public void testStateAndProgress() throws Exception {
+        AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+        ParallelTask<Integer> task = new ParallelTask<Integer>(e, tasks(50, running, maxRunning), 5);
+        Assert.assertEquals(ParallelTask.State.PENDING, task.getState());
+        Assert.assertFalse(task.isDone());
+        Assert.assertEquals(0, task.getCompletedCount());
+        task.get();
+        Assert.assertEquals(ParallelTask.State.DONE, task.getState());
+        Assert.assertTrue(task.isDone());
+        Assert.assertEquals(50, task.getCompletedCount());
+        Assert.assertFalse(task.cancel(true));
+        Assert.assertFalse(task.isCancelled());
+    }
+
+    /**
+     * Cancel is effective only once and a cancelled task is done
+     */
+    @Test
+    public void testCancelOnce() throws Exception {
+        AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+        ParallelTask<Integer> task = new ParallelTask<Integer>(e, tasks(50, running, maxRunning), 5);
+        Assert.assertTrue(task.cancel(true));
+        Assert.assertFalse(task.cancel(true));
+        Assert.assertTrue(task.isCancelled());
+        Assert.assertTrue(task.isDone());
+        Assert.assertEquals(ParallelTask.State.CANCELLED, task.getState());
+        Assert.assertEquals(50, task.getCompletedCount());
+        Assert.assertTrue(task.get().isEmpty());
+    }
+
+    /**
+     * A direct executor runs the tasks within their admission; a large batch must not grow the stack
+     */
+    @Test
+    public void testDirectExecutorLargeBatch() throws Exception {
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 50000; i++)
+            tasks.add(new StringLength(TEST_STRING));
+        Executor direct = new Executor() {
+            public void execute(Runnable r) {
+                r.run();
+            }
+        };
+        Assert.assertEquals(50000, new ParallelTask<Integer>(direct, tasks, 4).get().size());
+    }
+
+    /**
+     * A rejecting executor fails the get; the rest of a large batch fail without growing the stack
+     */
+    @Test
+    public void testRejectingExecutorLargeBatch() throws Exception {
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 50000; i++)
+            tasks.add(new StringLength(TEST_STRING));
+        ExecutorService shutDown = Executors.newSingleThreadExecutor();
+        shutDown.shutdown();
+        ParallelTask<Integer> task = new ParallelTask<Integer>(shutDown, tasks, 4);
+        try {
+            task.get();
+            shouldThrow();
+        } catch (ExecutionException success) {
+            Assert.assertTrue(success.getCause() instanceof RejectedExecutionException);
+        }
+        Assert.assertTrue(task.isDone());
+    }
+
+    static class StringLength implements Callable<Integer> {
+        final String s;
+
+        StringLength(String s) {
+            this.s = s;
+        }
+
+        public Integer call() {
+            return s.length();
+        }
+    }
+}
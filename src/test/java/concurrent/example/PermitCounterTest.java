@@ -0,0 +1,125 @@
+package concurrent.example;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import concurrent.util.PermitCounter;
+
+public class PermitCounterTest extends BaseTestCase {
+    ExecutorService e = null;
+
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(PermitCounterTest.class);
+    }
+
+    @Override
+    @Before
+    public void setUp() {
+        super.setUp();
+        e = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    @After
+    public void tearDown() {
+        joinPool(e);
+        super.tearDown();
+    }
+
+    /**
+     * Submits an acquire of n and waits till it has parked
+     */
+    Future<?> parkedAcquire(final PermitCounter counter, final int n) throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        int waiters = counter.getWaiterCount();
+        Future<?> f = e.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                started.countDown();
+                counter.acquire(n);
+                return null;
+            }
+        });
+        started.await();
+        long deadline = System.currentTimeMillis() + LONG_DELAY_MS;
+        while (counter.getWaiterCount() == waiters && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        Assert.assertEquals(waiters + 1, counter.getWaiterCount());
+        return f;
+    }
+
+    /**
+     * A waiter for more permits than released must not swallow the wake up
+     * of one they fit
+     */
+    @Test
+    public void testSmallerWaiterIsWokenPastLargerOne() throws Exception {
+        PermitCounter counter = new PermitCounter(0, false);
+        Future<?> three = parkedAcquire(counter, 3);
+        Future<?> one = parkedAcquire(counter, 1);
+        counter.release(1);
+        one.get(LONG_DELAY_MS, TimeUnit.MILLISECONDS);
+        Assert.assertFalse(three.isDone());
+        counter.release(3);
+        three.get(LONG_DELAY_MS, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(0, counter.availablePermits());
+    }
+
+    /**
+     * Every waiter the released permits fit is woken
+     */
+    @Test
+    public void testReleaseWakesAllThatFit() throws Exception {
+        PermitCounter counter = new PermitCounter(0, false);
+        Future<?> a = parkedAcquire(counter, 1);
+        Future<?> b = parkedAcquire(counter, 2);
+        Future<?> c = parkedAcquire(counter, 1);
+        counter.release(4);
+        a.get(LONG_DELAY_MS, TimeUnit.MILLISECONDS);
+        b.get(LONG_DELAY_MS, TimeUnit.MILLISECONDS);
+        c.get(LONG_DELAY_MS, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(0, counter.getWaiterCount());
+    }
+
+    /**
+     * In the fair mode neither a new comer nor a drain takes the permits a
+     * waiter is queued for
+     */
+    @Test
+    public void testFairDoesNotBarge() throws Exception {
+        PermitCounter counter = new PermitCounter(0, true);
+        Future<?> two = parkedAcquire(counter, 2);
+        counter.release(1);
+        Assert.assertFalse(counter.tryAcquire(1, SHORT_DELAY_MS, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(0, counter.drainPermits(1));
+        Assert.assertEquals(1, counter.availablePermits());
+        counter.release(1);
+        two.get(LONG_DELAY_MS, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(0, counter.availablePermits());
+    }
+
+    /**
+     * In the fair mode the permits go in the order of arrival
+     */
+    @Test
+    public void testFairHandsOverInOrder() throws Exception {
+        PermitCounter counter = new PermitCounter(0, true);
+        Future<?> two = parkedAcquire(counter, 2);
+        Future<?> one = parkedAcquire(counter, 1);
+        counter.release(1);
+        Thread.sleep(SHORT_DELAY_MS);
+        Assert.assertFalse(one.isDone());
+        counter.release(2);
+        two.get(LONG_DELAY_MS, TimeUnit.MILLISECONDS);
+        one.get(LONG_DELAY_MS, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(0, counter.availablePermits());
+    }
+}
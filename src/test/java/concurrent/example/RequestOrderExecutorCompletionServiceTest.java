@@ -1,12 +1,18 @@
 package concurrent.example;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.JUnit4TestAdapter;
 
@@ -219,4 +225,72 @@ public class RequestOrderExecutorCompletionServiceTest extends BaseTestCase {
         System.out.println(sb.toString());
         Assert.assertEquals(testStr, sb.toString());
     }
+
+    /**
+     * Only window number of tasks execute ahead of the taken one; the rest are held back till taken in order
+     */
+    @Test
+    public void testWindowHoldsBackExecution() throws Exception {
+        RequestOrderExecutorCompletionService<String> cs = new RequestOrderExecutorCompletionService<String>(e, 2);
+        final AtomicInteger started = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 6; i++) {
+            final String s = String.valueOf(i);
+            cs.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    started.incrementAndGet();
+                    release.await();
+                    return s;
+                }
+            });
+        }
+        Thread.sleep(SHORT_DELAY_MS);
+        Assert.assertEquals(2, started.get());
+        Assert.assertEquals(6, cs.pending());
+        release.countDown();
+        StringBuilder sb = new StringBuilder();
+        for (Iterator<Future<String>> it = cs.iterator(); it.hasNext();)
+            sb.append(it.next().get());
+        Assert.assertEquals("012345", sb.toString());
+        Assert.assertEquals(6, started.get());
+        Assert.assertEquals(0, cs.pending());
+    }
+
+    /**
+     * Two consumers polling with timeout never get the same future
+     */
+    @Test
+    public void testTwoConsumersTimedPoll() throws Exception {
+        final RequestOrderExecutorCompletionService<String> cs = new RequestOrderExecutorCompletionService<String>(e, 8);
+        final int n = 1000;
+        for (int i = 0; i < n; i++)
+            cs.submit(new StringTask());
+        final Set<Future<String>> taken = Collections.synchronizedSet(Collections
+                .newSetFromMap(new IdentityHashMap<Future<String>, Boolean>()));
+        final AtomicInteger count = new AtomicInteger();
+        Runnable consumer = new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < n / 2; i++) {
+                        Future<String> f = cs.poll(LONG_DELAY_MS, TimeUnit.MILLISECONDS);
+                        Assert.assertNotNull(f);
+                        Assert.assertTrue(f.isDone());
+                        taken.add(f);
+                        count.incrementAndGet();
+                    }
+                } catch (InterruptedException ie) {
+                    unexpectedException();
+                }
+            }
+        };
+        Thread t1 = new Thread(consumer);
+        Thread t2 = new Thread(consumer);
+        t1.start();
+        t2.start();
+        t1.join();
+        t2.join();
+        Assert.assertEquals(n, count.get());
+        Assert.assertEquals(n, taken.size());
+        Assert.assertNull(cs.poll());
+    }
 }
@@ -6,6 +6,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -342,4 +343,131 @@ public class TransactionalCompletionServiceTest extends BaseTestCase {
         }
         Assert.assertNull(f);//since we dont expect f to be valid as time here is very short
     }
+
+    /**
+     * A take waiting on an empty transaction must be woken right away by endTransaction and return null
+     */
+    @Test
+    public void testTakeWokenByEndTransaction() throws InterruptedException {
+        final TransactionalCompletionService<String> ecs = new SimpleTransactionalCompletionService<String>(
+                new ExecutorCompletionService<String>(e));
+        ecs.startTransaction();
+        final Object[] taken = new Object[] { "not taken" };
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    taken[0] = ecs.take();
+                } catch (InterruptedException ie) {
+                }
+            }
+        };
+        t.start();
+        Thread.sleep(SHORT_DELAY_MS);
+        Assert.assertTrue(t.isAlive());// nothing to take yet
+        ecs.endTransaction();
+        t.join(SHORT_DELAY_MS);
+        Assert.assertFalse(t.isAlive());
+        Assert.assertNull(taken[0]);
+    }
+
+    /**
+     * A take waiting on an empty transaction must be woken by a submit and get its future as soon as it completes
+     */
+    @Test
+    public void testTakeWokenBySubmit() throws Exception {
+        final TransactionalCompletionService<String> ecs = new SimpleTransactionalCompletionService<String>(
+                new ExecutorCompletionService<String>(e));
+        ecs.startTransaction();
+        final Future<?>[] taken = new Future<?>[1];
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    taken[0] = ecs.take();
+                } catch (InterruptedException ie) {
+                }
+            }
+        };
+        t.start();
+        Thread.sleep(SHORT_DELAY_MS);
+        Future<String> f = ecs.submit(new StringTask());
+        t.join(SHORT_DELAY_MS);
+        Assert.assertFalse(t.isAlive());
+        Assert.assertSame(f, taken[0]);
+        ecs.endTransaction();
+        Assert.assertTrue(ecs.isTransactionFinished());
+    }
+
+    /**
+     * Submits from one thread race with takes from another; every future is taken once and the transaction finishes
+     */
+    @Test
+    public void testConcurrentSubmitAndTakeOfManyTasks() throws Exception {
+        final int count = 10000;
+        final TransactionalCompletionService<String> ecs = new SimpleTransactionalCompletionService<String>(
+                new ExecutorCompletionService<String>(e));
+        ecs.startTransaction();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++)
+                    ecs.submit(new StringTask());
+                ecs.endTransaction();
+            }
+        };
+        t.start();
+        int taken = 0;
+        Future<String> f;
+        while ((f = ecs.take()) != null) {
+            Assert.assertEquals(TEST_STRING, f.get());
+            taken++;
+        }
+        t.join();
+        Assert.assertEquals(count, taken);
+        Assert.assertTrue(ecs.isTransactionFinished());
+        ecs.startTransaction();// must be allowed as nothing is pending
+    }
+
+    /**
+     * A cancel whose pending futures are claimed by another taker waits for that taker to take them out rather than
+     * spinning on take
+     */
+    @Test
+    public void testCancelWaitsForOtherTakersClaims() throws Exception {
+        final AtomicInteger takes = new AtomicInteger();
+        final TransactionalCompletionService<String> ecs = new SimpleTransactionalCompletionService<String>(
+                new ExecutorCompletionService<String>(e) {
+                    @Override
+                    public Future<String> take() throws InterruptedException {
+                        Thread.sleep(SHORT_DELAY_MS);// holds the claim of the taker
+                        return super.take();
+                    }
+                }) {
+            @Override
+            public Future<String> take() throws InterruptedException {
+                takes.incrementAndGet();
+                return super.take();
+            }
+        };
+        ecs.startTransaction();
+        ecs.submit(new StringTask());
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ecs.take();
+                } catch (InterruptedException ie) {
+                }
+            }
+        };
+        t.start();
+        while (takes.get() == 0)
+            Thread.sleep(1);
+        ecs.cancelTransaction();
+        Assert.assertTrue(ecs.isTransactionFinished());
+        t.join(SHORT_DELAY_MS);
+        Assert.assertFalse(t.isAlive());
+        Assert.assertTrue(takes.get() <= 3);
+    }
 }
@@ -0,0 +1,162 @@
+/**
+ *
+ */
+package concurrent.util.collection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import util.collection.BiDiMap;
+import util.collection.SnapshotBiMap;
+
+/**
+ * @author vmurthy
+ *
+ */
+public class TestBiDiMap {
+
+	@Test
+	public void testPutKeepsOneToOne() {
+		BiDiMap<Integer, String> m = new BiDiMap<>();
+		Assert.assertNull(m.put(1, "a"));
+		Assert.assertEquals("a", m.put(1, "b"));
+		Assert.assertNull(m.getKey("a"));
+		m.put(2, "b");
+		Assert.assertFalse(m.containsKey(1));
+		Assert.assertEquals(Integer.valueOf(2), m.getKey("b"));
+		Assert.assertEquals(1, m.size());
+		Assert.assertEquals(Integer.valueOf(2), m.removeValue("b"));
+		Assert.assertTrue(m.isEmpty());
+		Assert.assertTrue(m.valueSet().isEmpty());
+	}
+
+	@Test
+	public void testBulkLookupsKeepOrder() throws Exception {
+		final BiDiMap<Integer, String> m = new BiDiMap<>();
+		final List<Integer> keys = new ArrayList<>();
+		final List<String> values = new ArrayList<>();
+		for (int i = 100000; i > 0; i--) {
+			m.put(i, "v" + i);
+			keys.add(i);
+			values.add("v" + i);
+		}
+		// the lookups run on the pool of the calling task; so the slices go
+		// parallel here whatever the number of processors
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			pool.submit(() -> {
+				Assert.assertEquals(values, new ArrayList<>(m.getValuesFor(keys)));
+				Assert.assertEquals(keys, new ArrayList<>(m.getKeysFor(values)));
+				keys.add(-1);
+				Assert.assertTrue(m.getValuesFor(keys).contains(null));
+				Assert.assertEquals(values, m.streamValuesFor(keys).collect(Collectors.toList()));
+				Assert.assertEquals(100000, m.streamKeysFor(values).count());
+			}).get(1, TimeUnit.MINUTES);
+		} finally {
+			pool.shutdown();
+		}
+		Assert.assertEquals(values, new ArrayList<>(m.getValuesFor(keys)).subList(0, 100000));
+	}
+
+	@Test
+	public void testReplaceSwapsWholeVersions() throws Exception {
+		final BiDiMap<Integer, String> m = new BiDiMap<>();
+		final Map<Integer, String> a = new HashMap<>(), b = new HashMap<>();
+		for (int i = 0; i < 1000; i++) {
+			a.put(i, "a" + i);
+			b.put(i, "b" + i);
+		}
+		m.replace(a);
+		final AtomicBoolean done = new AtomicBoolean();
+		ExecutorService e = Executors.newSingleThreadExecutor();
+		Future<?> reader = e.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				while (!done.get()) {
+					for (int i = 0; i < 1000; i++)
+						Assert.assertNotNull(m.get(i));
+					SnapshotBiMap<Integer, String> snapshot = m.snapshot();
+					String version = snapshot.get(0).substring(0, 1);
+					Assert.assertEquals(1000, snapshot.size());
+					for (int i = 0; i < 1000; i++)
+						Assert.assertEquals(Integer.valueOf(i), snapshot.getKey(version + i));
+				}
+				return null;
+			}
+		});
+		for (int i = 0; i < 200; i++)
+			m.replace(i % 2 == 0 ? b : a);
+		done.set(true);
+		reader.get(1, TimeUnit.MINUTES);
+		e.shutdown();
+		Assert.assertEquals(a, m.snapshot());
+		Assert.assertSame(m.snapshot(), m.snapshot());
+		m.put(0, "z");
+		Assert.assertEquals("z", m.snapshot().get(0));
+		Assert.assertNull(m.snapshot().getKey("a0"));
+	}
+
+	@Test
+	public void testConcurrentWritesKeepPairs() throws Exception {
+		final BiDiMap<Integer, String> m = new BiDiMap<>();
+		// a pair put again and again that a lock free reader must always see
+		m.put(-1, "pinned");
+		final AtomicBoolean done = new AtomicBoolean();
+		ExecutorService e = Executors.newFixedThreadPool(5);
+		Future<Integer> reader = e.submit(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				int reads = 0;
+				while (!done.get()) {
+					Assert.assertEquals("pinned", m.get(-1));
+					Assert.assertEquals(-1, (int) m.getKey("pinned"));
+					reads++;
+				}
+				return reads;
+			}
+		});
+		List<Future<?>> writers = new ArrayList<>();
+		for (int t = 0; t < 4; t++)
+			writers.add(e.submit(new Runnable() {
+				@Override
+				public void run() {
+					ThreadLocalRandom r = ThreadLocalRandom.current();
+					for (int i = 0; i < 100000; i++) {
+						int op = r.nextInt(5);
+						if (op < 2)
+							m.put(r.nextInt(32), "v" + r.nextInt(32));
+						else if (op == 2)
+							m.remove(r.nextInt(32));
+						else if (op == 3)
+							m.removeValue("v" + r.nextInt(32));
+						else
+							m.put(-1, "pinned");
+					}
+				}
+			}));
+		for (Future<?> writer : writers)
+			writer.get(1, TimeUnit.MINUTES);
+		done.set(true);
+		e.shutdown();
+		Assert.assertTrue(reader.get(1, TimeUnit.MINUTES) > 0);
+		Assert.assertTrue(e.awaitTermination(1, TimeUnit.MINUTES));
+		Assert.assertEquals(m.size(), m.valueSet().size());
+		for (Map.Entry<Integer, String> entry : m.entrySet())
+			Assert.assertEquals(entry.getKey(), m.getKey(entry.getValue()));
+	}
+}
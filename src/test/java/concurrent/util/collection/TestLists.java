@@ -0,0 +1,103 @@
+/**
+ *
+ */
+package concurrent.util.collection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import util.collection.Lists;
+
+/**
+ * @author vmurthy
+ *
+ */
+public class TestLists {
+
+	@Test
+	public void testChunkedIsAppendOnly() {
+		List<Integer> l = Lists.chunked.create(4);
+		for (int i = 0; i < 1000; i++)
+			l.add(i);
+		l.addAll(Arrays.asList(1000, 1001));
+		Assert.assertEquals(1002, l.size());
+		for (int i = 0; i < l.size(); i++)
+			Assert.assertEquals(i, (int) l.get(i));
+		try {
+			l.set(0, 1);
+			Assert.fail("set on an append only list");
+		} catch (UnsupportedOperationException e) {
+		}
+		try {
+			l.get(1002);
+			Assert.fail("get past the end");
+		} catch (IndexOutOfBoundsException e) {
+		}
+	}
+
+	@Test
+	public void testStripedIndexes() {
+		List<String> l = Lists.striped.create("a", "b", "c");
+		Assert.assertEquals(Arrays.asList("a", "b", "c"), new ArrayList<>(l));
+		l.add(1, "x");
+		Assert.assertEquals("x", l.set(1, "y"));
+		Assert.assertEquals("y", l.remove(1));
+		Assert.assertTrue(l.remove("c"));
+		Assert.assertEquals(Arrays.asList("a", "b"), l);
+		l.add(2, "d");
+		Assert.assertEquals("d", l.get(2));
+		l.add(l.size(), "a");
+		Assert.assertEquals(0, l.indexOf("a"));
+		Assert.assertEquals(3, l.lastIndexOf("a"));
+		Assert.assertEquals(-1, l.indexOf("x"));
+		Assert.assertEquals(Arrays.asList("b", "d"), l.subList(1, 3));
+		ListIterator<String> i = l.listIterator(4);
+		Assert.assertEquals("a", i.previous());
+		Assert.assertEquals("d", i.previous());
+		i.remove();
+		Assert.assertEquals(Arrays.asList("a", "b", "a"), l);
+	}
+
+	@Test
+	public void testConcurrentAppendsKeepAll() throws Exception {
+		for (Lists kind : Arrays.asList(Lists.chunked, Lists.striped)) {
+			final List<Integer> l = kind.create(1024);
+			ExecutorService e = Executors.newFixedThreadPool(4);
+			List<Future<?>> workers = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				final int base = t * 100000;
+				workers.add(e.submit(new Runnable() {
+					@Override
+					public void run() {
+						for (int i = 0; i < 100000; i++)
+							l.add(base + i);
+					}
+				}));
+			}
+			for (Future<?> worker : workers)
+				worker.get(1, TimeUnit.MINUTES);
+			e.shutdown();
+			Assert.assertEquals(kind.name(), 400000, l.size());
+			BitSet seen = new BitSet();
+			int[] last = { -1, -1, -1, -1 };
+			for (Integer i : l) {
+				seen.set(i);
+				// the adds of one thread stay in order
+				Assert.assertTrue(kind.name(), i > last[i / 100000]);
+				last[i / 100000] = i;
+			}
+			Assert.assertEquals(kind.name(), 400000, seen.cardinality());
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ *
+ */
+package concurrent.util.collection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import util.collection.Maps;
+
+/**
+ * @author vmurthy
+ *
+ */
+public class TestMaps {
+
+	@Test
+	public void testConcurrentKinds() {
+		for (Maps kind : Arrays.asList(Maps.striped, Maps.skiplist, Maps.openhash)) {
+			Map<Integer, String> m = kind.create(4);
+			Assert.assertTrue(m instanceof ConcurrentMap);
+			for (int i = 0; i < 1000; i++)
+				Assert.assertNull(m.put(i, "v" + i));
+			Assert.assertEquals("v7", m.put(7, "w"));
+			Assert.assertEquals("w", m.remove(7));
+			Assert.assertNull(m.remove(7));
+			Assert.assertEquals(999, m.size());
+			Assert.assertEquals("v999", m.get(999));
+			Assert.assertEquals(kind.name(), Maps.hash.create(m), m);
+			Iterator<Map.Entry<Integer, String>> i = m.entrySet().iterator();
+			while (i.hasNext())
+				if (i.next().getKey() % 2 == 0)
+					i.remove();
+			Assert.assertEquals(499, m.size());
+			Assert.assertFalse(m.containsKey(0));
+			m.clear();
+			Assert.assertTrue(m.isEmpty());
+		}
+	}
+
+	@Test
+	public void testStripedKeepsInsertionOrder() {
+		Map<String, Integer> m = Maps.striped.create();
+		for (String s : Arrays.asList("d", "a", "c", "b"))
+			m.put(s, 0);
+		m.put("a", 1);
+		m.remove("c");
+		m.put("c", 2);
+		Assert.assertEquals(Arrays.asList("d", "a", "b", "c"), new ArrayList<>(m.keySet()));
+	}
+
+	@Test
+	public void testOpenHashConcurrentWrites() throws Exception {
+		final Map<Integer, Integer> m = Maps.openhash.create();
+		ExecutorService e = Executors.newFixedThreadPool(4);
+		List<Future<?>> workers = new ArrayList<>();
+		for (int t = 0; t < 4; t++)
+			workers.add(e.submit(new Runnable() {
+				@Override
+				public void run() {
+					ThreadLocalRandom r = ThreadLocalRandom.current();
+					for (int i = 0; i < 100000; i++) {
+						int k = r.nextInt(4096);
+						if (r.nextBoolean())
+							m.put(k, -k);
+						else if (r.nextBoolean())
+							m.remove(k);
+						else {
+							Integer v = m.get(k);
+							Assert.assertTrue(v == null || v == -k);
+						}
+					}
+				}
+			}));
+		for (Future<?> worker : workers)
+			worker.get(1, TimeUnit.MINUTES);
+		e.shutdown();
+		int size = 0;
+		for (Map.Entry<Integer, Integer> entry : m.entrySet()) {
+			Assert.assertEquals(-entry.getKey(), (int) entry.getValue());
+			Assert.assertEquals(entry.getValue(), m.get(entry.getKey()));
+			size++;
+		}
+		Assert.assertEquals(m.size(), size);
+	}
+}
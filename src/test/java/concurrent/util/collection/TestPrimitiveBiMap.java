@@ -0,0 +1,98 @@
+/**
+ *
+ */
+package concurrent.util.collection;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import util.collection.IntIntBiMap;
+import util.collection.LongObjectBiMap;
+import util.collection.Maps;
+
+/**
+ * @author vmurthy
+ *
+ */
+public class TestPrimitiveBiMap {
+
+	@Test
+	public void testIntIntPutKeepsOneToOne() {
+		IntIntBiMap m = Maps.intIntBiMap();
+		m.put(0, -1);
+		m.put(-5, 7);
+		Assert.assertEquals(-1, m.get(0, 99));
+		Assert.assertEquals(-5, m.getKey(7, 99));
+		m.put(0, 7);
+		Assert.assertFalse(m.containsKey(-5));
+		Assert.assertFalse(m.containsValue(-1));
+		Assert.assertEquals(0, m.getKey(7, 99));
+		Assert.assertEquals(1, m.size());
+		Assert.assertTrue(m.removeValue(7));
+		Assert.assertTrue(m.isEmpty());
+	}
+
+	@Test
+	public void testGrowAndRemove() {
+		LongObjectBiMap<String> m = Maps.longObjectBiMap(4);
+		for (long k = -500; k < 500; k++)
+			Assert.assertNull(m.put(k * 1000003L, "v" + k));
+		Assert.assertEquals(1000, m.size());
+		for (long k = -500; k < 500; k += 2)
+			Assert.assertEquals("v" + k, m.remove(k * 1000003L));
+		Assert.assertEquals(500, m.size());
+		for (long k = -500; k < 500; k++) {
+			boolean kept = (k & 1) != 0;
+			Assert.assertEquals(kept ? "v" + k : null, m.get(k * 1000003L));
+			Assert.assertEquals(kept ? k * 1000003L : -1L, m.getKey("v" + k, -1L));
+		}
+		Assert.assertEquals("v1", m.put(1000003L, "w"));
+		Assert.assertFalse(m.containsValue("v1"));
+		Assert.assertFalse(m.containsValue(null));
+		Assert.assertEquals(-1L, m.getKey(null, -1L));
+		Assert.assertFalse(m.removeValue(null));
+		m.clear();
+		Assert.assertTrue(m.isEmpty());
+		Assert.assertNull(m.get(1000003L));
+	}
+
+	@Test
+	public void testConcurrentWritesKeepPairs() throws Exception {
+		final IntIntBiMap m = new IntIntBiMap();
+		ExecutorService e = Executors.newFixedThreadPool(4);
+		for (int t = 0; t < 4; t++)
+			e.execute(new Runnable() {
+				@Override
+				public void run() {
+					ThreadLocalRandom r = ThreadLocalRandom.current();
+					for (int i = 0; i < 100000; i++) {
+						int op = r.nextInt(4);
+						if (op < 2)
+							m.put(r.nextInt(64), r.nextInt(64));
+						else if (op == 2)
+							m.remove(r.nextInt(64));
+						else
+							m.getKey(r.nextInt(64), -1);
+					}
+				}
+			});
+		e.shutdown();
+		Assert.assertTrue(e.awaitTermination(1, TimeUnit.MINUTES));
+		final int[] count = new int[1];
+		m.forEach(new IntIntBiMap.IntIntProcedure() {
+			@Override
+			public void apply(int key, int value) {
+				Assert.assertEquals(value, m.get(key, -1));
+				Assert.assertEquals(key, m.getKey(value, -1));
+				count[0]++;
+			}
+		});
+		Assert.assertEquals(m.size(), count[0]);
+	}
+}